@@ -232,12 +232,13 @@ public class ActivityPicker extends AlertActivity implements
              * {@link ResolveInfo} object.
              */
             Item(Context context, PackageManager pm, ResolveInfo resolveInfo) {
-                label = resolveInfo.loadLabel(pm);
+                final AppLabelIconCache cache = AppLabelIconCache.getInstance(context);
+                label = cache.getLabel(resolveInfo);
                 if (label == null && resolveInfo.activityInfo != null) {
                     label = resolveInfo.activityInfo.name;
                 }
 
-                icon = getResizer(context).createIconThumbnail(resolveInfo.loadIcon(pm));
+                icon = getResizer(context).createIconThumbnail(cache.getIcon(resolveInfo));
                 packageName = resolveInfo.activityInfo.applicationInfo.packageName;
                 className = resolveInfo.activityInfo.name;
             }
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ComponentInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.UserHandle;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Labels and icons of the applications and activities, shared by all the screens of the
+ * process which list applications.
+ *
+ * The entries are keyed by package, component, user and APK path.  The path changes each
+ * time a package is updated, so an entry is never returned for another version of its
+ * package; the entries of a package are also dropped when it is changed or removed.  The
+ * icons are kept as bitmaps at the density of the device, within a share of the memory
+ * class of the process, and the labels are dropped when the configuration changes.
+ *
+ * The lookups are thread safe.  {@link #prefetch(List)} loads the entries of a list on a
+ * background thread, ahead of the rows being bound, and {@link #loadIcon} loads the icon of
+ * a row bound before it was prefetched, ahead of the prefetched ones.
+ */
+public final class AppLabelIconCache {
+    private static final String TAG = "AppLabelIconCache";
+
+    private static final int MAX_LABELS = 1024;
+    // Share of the memory class of the process kept for the icons
+    private static final int ICON_MEMORY_DIVISOR = 16;
+
+    private static final int LABEL_CONFIG_CHANGES = ActivityInfo.CONFIG_LOCALE;
+    private static final int ICON_CONFIG_CHANGES = ActivityInfo.CONFIG_DENSITY
+            | ActivityInfo.CONFIG_UI_MODE | ActivityInfo.CONFIG_THEME_RESOURCE;
+
+    private static AppLabelIconCache sInstance;
+
+    private static final class Key {
+        final String packageName;
+        // Null for the application itself
+        final String className;
+        // Label or icon resource of a resolved intent filter, 0 if none
+        final int resId;
+        final int userId;
+        final String sourceDir;
+
+        Key(String packageName, String className, int resId, int userId, String sourceDir) {
+            this.packageName = packageName;
+            this.className = className;
+            this.resId = resId;
+            this.userId = userId;
+            this.sourceDir = sourceDir;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return userId == other.userId && resId == other.resId
+                    && packageName.equals(other.packageName)
+                    && equal(className, other.className)
+                    && equal(sourceDir, other.sourceDir);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = packageName.hashCode();
+            result = 31 * result + (className != null ? className.hashCode() : 0);
+            result = 31 * result + resId;
+            result = 31 * result + userId;
+            return result;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private final PackageManager mPm;
+    private final Resources mResources;
+    private final int mIconSize;
+    private final Configuration mConfiguration = new Configuration();
+    private final Handler mBackgroundHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final LruCache<Key, CharSequence> mLabels =
+            new LruCache<Key, CharSequence>(MAX_LABELS);
+    private final LruCache<Key, Bitmap> mIcons;
+
+    // Guarded by this
+    private int mInvalidations;
+
+    // The icons queued on the background thread, guarded by itself
+    private final HashMap<Key, IconLoad> mIconLoads = new HashMap<Key, IconLoad>();
+
+    private final class IconLoad implements Runnable {
+        final Key key;
+        final ApplicationInfo info;
+        final ArrayList<Runnable> callbacks = new ArrayList<Runnable>();
+        boolean urgent;
+
+        IconLoad(Key key, ApplicationInfo info) {
+            this.key = key;
+            this.info = info;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mIconLoads) {
+                // Queued again ahead of the prefetched icons, and loaded by the other run
+                if (mIconLoads.get(key) != this) {
+                    return;
+                }
+            }
+            getIcon(info);
+            synchronized (mIconLoads) {
+                mIconLoads.remove(key);
+            }
+            for (int i = 0; i < callbacks.size(); i++) {
+                mMainHandler.post(callbacks.get(i));
+            }
+        }
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                final String[] packages =
+                        intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (packages != null) {
+                    for (int i = 0; i < packages.length; i++) {
+                        invalidate(packages[i]);
+                    }
+                }
+            } else {
+                final Uri data = intent.getData();
+                if (data != null) {
+                    invalidate(data.getEncodedSchemeSpecificPart());
+                }
+            }
+        }
+    };
+
+    private final ComponentCallbacks2 mComponentCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            // The labels depend on the locale, the icons on the density and theme; the
+            // other changes, such as the orientation and screen size, keep both
+            final int changes = mConfiguration.updateFrom(newConfig);
+            if ((changes & LABEL_CONFIG_CHANGES) != 0) {
+                mLabels.evictAll();
+            }
+            if ((changes & ICON_CONFIG_CHANGES) != 0) {
+                mIcons.evictAll();
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            mIcons.evictAll();
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_MODERATE) {
+                mIcons.evictAll();
+            } else if (level >= TRIM_MEMORY_BACKGROUND) {
+                mIcons.trimToSize(mIcons.maxSize() / 2);
+            }
+        }
+    };
+
+    public static synchronized AppLabelIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppLabelIconCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private AppLabelIconCache(Context context) {
+        mPm = context.getPackageManager();
+        mResources = context.getResources();
+        mIconSize = mResources.getDimensionPixelSize(android.R.dimen.app_icon_size);
+        mConfiguration.setTo(mResources.getConfiguration());
+
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final int iconBytes = am.getMemoryClass() * 1024 * 1024 / ICON_MEMORY_DIVISOR;
+        mIcons = new LruCache<Key, Bitmap>(iconBytes) {
+            @Override
+            protected int sizeOf(Key key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        final HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mBackgroundHandler = new Handler(thread.getLooper());
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, filter, null, null);
+        final IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        context.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, sdFilter, null, null);
+        context.registerComponentCallbacks(mComponentCallbacks);
+    }
+
+    public CharSequence getLabel(ApplicationInfo info) {
+        final Key key = getKey(info, null, 0);
+        CharSequence label = mLabels.get(key);
+        if (label == null) {
+            label = info.loadLabel(mPm);
+            mLabels.put(key, label);
+        }
+        return label;
+    }
+
+    public Drawable getIcon(ApplicationInfo info) {
+        final Key key = getKey(info, null, 0);
+        Bitmap icon = mIcons.get(key);
+        if (icon == null) {
+            icon = toBitmap(info.loadIcon(mPm));
+            mIcons.put(key, icon);
+        }
+        return new BitmapDrawable(mResources, icon);
+    }
+
+    /**
+     * Returns the icon of the application if it is cached, without loading it.
+     */
+    public Drawable peekIcon(ApplicationInfo info) {
+        final Bitmap icon = mIcons.get(getKey(info, null, 0));
+        return icon != null ? new BitmapDrawable(mResources, icon) : null;
+    }
+
+    /**
+     * Returns the label of the resolved activity, which may be the one of its intent filter.
+     */
+    public CharSequence getLabel(ResolveInfo info) {
+        final ComponentInfo ci = getComponentInfo(info);
+        if (ci == null || info.nonLocalizedLabel != null || info.resolvePackageName != null) {
+            return info.loadLabel(mPm);
+        }
+        final Key key = getKey(ci.applicationInfo, ci.name, info.labelRes);
+        CharSequence label = mLabels.get(key);
+        if (label == null) {
+            label = info.loadLabel(mPm);
+            mLabels.put(key, label);
+        }
+        return label;
+    }
+
+    /**
+     * Returns the icon of the resolved activity, which may be the one of its intent filter.
+     */
+    public Drawable getIcon(ResolveInfo info) {
+        final ComponentInfo ci = getComponentInfo(info);
+        if (ci == null || info.resolvePackageName != null) {
+            return info.loadIcon(mPm);
+        }
+        final Key key = getKey(ci.applicationInfo, ci.name, info.icon);
+        Bitmap icon = mIcons.get(key);
+        if (icon == null) {
+            icon = toBitmap(info.loadIcon(mPm));
+            mIcons.put(key, icon);
+        }
+        return new BitmapDrawable(mResources, icon);
+    }
+
+    /**
+     * Load the icon of the application on the background thread, ahead of the prefetched
+     * ones, then run the callback on the main thread so that the rows showing it are bound
+     * again.  The icon is loaded once for all the callbacks queued while it is loading.
+     */
+    public void loadIcon(ApplicationInfo info, Runnable callback) {
+        queueIcon(info, callback, true);
+    }
+
+    /**
+     * Load the labels and icons of these applications on a background thread.
+     */
+    public void prefetch(List<ApplicationInfo> infos) {
+        final ArrayList<ApplicationInfo> pending = new ArrayList<ApplicationInfo>(infos);
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < pending.size(); i++) {
+                    getLabel(pending.get(i));
+                }
+            }
+        });
+        // One at a time, so that the icons of the bound rows can be loaded in between
+        for (int i = 0; i < pending.size(); i++) {
+            queueIcon(pending.get(i), null, false);
+        }
+    }
+
+    private void queueIcon(ApplicationInfo info, Runnable callback, boolean urgent) {
+        final Key key = getKey(info, null, 0);
+        IconLoad load;
+        synchronized (mIconLoads) {
+            load = mIconLoads.get(key);
+            final boolean queue;
+            if (load == null) {
+                if (mIcons.get(key) != null) {
+                    // Loaded since the row was bound
+                    if (callback != null) {
+                        mMainHandler.post(callback);
+                    }
+                    return;
+                }
+                load = new IconLoad(key, info);
+                mIconLoads.put(key, load);
+                queue = true;
+            } else {
+                // Queued again if prefetched, ahead of the other prefetched icons
+                queue = urgent && !load.urgent;
+            }
+            if (callback != null && !load.callbacks.contains(callback)) {
+                load.callbacks.add(callback);
+            }
+            if (!queue) {
+                return;
+            }
+            load.urgent = urgent;
+        }
+        if (urgent) {
+            mBackgroundHandler.postAtFrontOfQueue(load);
+        } else {
+            mBackgroundHandler.post(load);
+        }
+    }
+
+    /**
+     * Drop the labels and icons of this package, for all the users.
+     */
+    public void invalidate(String packageName) {
+        if (packageName == null) {
+            return;
+        }
+        synchronized (this) {
+            mInvalidations++;
+        }
+        for (Key key : mLabels.snapshot().keySet()) {
+            if (packageName.equals(key.packageName)) {
+                mLabels.remove(key);
+            }
+        }
+        for (Key key : mIcons.snapshot().keySet()) {
+            if (packageName.equals(key.packageName)) {
+                mIcons.remove(key);
+            }
+        }
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        final AppLabelIconCache cache;
+        synchronized (AppLabelIconCache.class) {
+            cache = sInstance;
+        }
+        if (cache == null) {
+            return;
+        }
+        writer.print(prefix);
+        writer.println("App label and icon cache:");
+        writer.print(prefix);
+        writer.println("  labels: " + cache.mLabels.size() + "/" + cache.mLabels.maxSize()
+                + " hits=" + cache.mLabels.hitCount() + " misses=" + cache.mLabels.missCount()
+                + " evictions=" + cache.mLabels.evictionCount());
+        writer.print(prefix);
+        writer.println("  icons: " + cache.mIcons.size() + "/" + cache.mIcons.maxSize()
+                + " bytes hits=" + cache.mIcons.hitCount() + " misses="
+                + cache.mIcons.missCount() + " evictions=" + cache.mIcons.evictionCount());
+        synchronized (cache) {
+            writer.print(prefix);
+            writer.println("  invalidations: " + cache.mInvalidations);
+        }
+    }
+
+    private static Key getKey(ApplicationInfo info, String className, int resId) {
+        return new Key(info.packageName, className, resId, UserHandle.getUserId(info.uid),
+                info.sourceDir);
+    }
+
+    private static ComponentInfo getComponentInfo(ResolveInfo info) {
+        if (info.activityInfo != null) {
+            return info.activityInfo;
+        }
+        return info.serviceInfo;
+    }
+
+    /**
+     * The icons decoded from a bitmap are kept as they are, the others are drawn into a
+     * bitmap of the size of an application icon.
+     */
+    private Bitmap toBitmap(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        int width = drawable.getIntrinsicWidth();
+        int height = drawable.getIntrinsicHeight();
+        if (width <= 0 || height <= 0 || width > mIconSize || height > mIconSize) {
+            width = mIconSize;
+            height = mIconSize;
+        }
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        drawable.setBounds(0, 0, width, height);
+        drawable.draw(canvas);
+        canvas.setBitmap(null);
+        return bitmap;
+    }
+}
@@ -91,14 +91,15 @@ public class AppListPreference extends ListPreference {
         }
 
         // Show the label and icon for each application package.
+        final AppLabelIconCache cache = AppLabelIconCache.getInstance(getContext());
         CharSequence[] applicationNames = new CharSequence[foundPackages];
         mEntryDrawables = new Drawable[foundPackages];
         int index = 0;
         int selectedIndex = -1;
         for (ApplicationInfo appInfo : appInfos) {
             if (appInfo != null) {
-                applicationNames[index] = appInfo.loadLabel(pm);
-                mEntryDrawables[index] = appInfo.loadIcon(pm);
+                applicationNames[index] = cache.getLabel(appInfo);
+                mEntryDrawables[index] = cache.getIcon(appInfo);
                 if (defaultPackageName != null &&
                         appInfo.packageName.contentEquals(defaultPackageName)) {
                     selectedIndex = index;
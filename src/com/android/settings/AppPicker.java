@@ -82,10 +82,12 @@ public class AppPicker extends ListActivity {
     public class AppListAdapter extends ArrayAdapter<MyApplicationInfo> {
         private final List<MyApplicationInfo> mPackageInfoList = new ArrayList<MyApplicationInfo>();
         private final LayoutInflater mInflater;
+        private final AppLabelIconCache mCache;
 
         public AppListAdapter(Context context) {
             super(context, 0);
             mInflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            mCache = AppLabelIconCache.getInstance(context);
             List<ApplicationInfo> pkgs = context.getPackageManager().getInstalledApplications(0);
             for (int i=0; i<pkgs.size(); i++) {
                 ApplicationInfo ai = pkgs.get(i);
@@ -101,10 +103,16 @@ public class AppPicker extends ListActivity {
                 }
                 MyApplicationInfo info = new MyApplicationInfo();
                 info.info = ai;
-                info.label = info.info.loadLabel(getPackageManager()).toString();
+                info.label = mCache.getLabel(info.info).toString();
                 mPackageInfoList.add(info);
             }
             Collections.sort(mPackageInfoList, sDisplayNameComparator);
+            // Load the icons in the order of the list
+            final List<ApplicationInfo> sorted = new ArrayList<ApplicationInfo>();
+            for (int i=0; i<mPackageInfoList.size(); i++) {
+                sorted.add(mPackageInfoList.get(i).info);
+            }
+            mCache.prefetch(sorted);
             MyApplicationInfo info = new MyApplicationInfo();
             info.label = context.getText(R.string.no_application);
             mPackageInfoList.add(0, info);
@@ -120,7 +128,7 @@ public class AppPicker extends ListActivity {
             MyApplicationInfo info = getItem(position);
             holder.appName.setText(info.label);
             if (info.info != null) {
-                holder.appIcon.setImageDrawable(info.info.loadIcon(getPackageManager()));
+                holder.appIcon.setImageDrawable(mCache.getIcon(info.info));
                 holder.appSize.setText(info.info.packageName);
             } else {
                 holder.appIcon.setImageDrawable(null);
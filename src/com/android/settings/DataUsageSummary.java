@@ -38,8 +38,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
@@ -73,7 +71,6 @@ import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
 import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
-import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
@@ -86,7 +83,6 @@ import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
 import android.os.UserHandle;
-import android.os.UserManager;
 import android.preference.Preference;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
@@ -96,7 +92,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -127,6 +122,7 @@ import android.widget.TextView;
 
 import com.android.internal.telephony.PhoneConstants;
 import com.android.settings.drawable.InsetBoundsDrawable;
+import com.android.settings.net.AppUsageSummary;
 import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
@@ -144,7 +140,6 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -421,8 +416,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mEmpty = (TextView) mHeader.findViewById(android.R.id.empty);
         mStupidPadding = mHeader.findViewById(R.id.stupid_padding);
 
-        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
-        mAdapter = new DataUsageAdapter(um, mUidDetailProvider, mInsetSide);
+        mAdapter = new DataUsageAdapter(mUidDetailProvider, mInsetSide);
         mListView.setOnItemClickListener(mListListener);
         mListView.setAdapter(mAdapter);
 
@@ -1351,24 +1345,22 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
     };
 
-    private final LoaderCallbacks<NetworkStats> mSummaryCallbacks = new LoaderCallbacks<
-            NetworkStats>() {
+    private final LoaderCallbacks<AppUsageSummary> mSummaryCallbacks = new LoaderCallbacks<
+            AppUsageSummary>() {
         @Override
-        public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
+        public Loader<AppUsageSummary> onCreateLoader(int id, Bundle args) {
             return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
         }
 
         @Override
-        public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedUids);
+        public void onLoadFinished(Loader<AppUsageSummary> loader, AppUsageSummary data) {
+            mAdapter.bindStats(data);
             updateEmptyVisible();
         }
 
         @Override
-        public void onLoaderReset(Loader<NetworkStats> loader) {
-            mAdapter.bindStats(null, new int[0]);
+        public void onLoaderReset(Loader<AppUsageSummary> loader) {
+            mAdapter.bindStats(null);
             updateEmptyVisible();
         }
 
@@ -1593,133 +1585,36 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     public static class DataUsageAdapter extends BaseAdapter {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
-        private final UserManager mUm;
 
-        private ArrayList<AppItem> mItems = Lists.newArrayList();
-        private long mLargest;
+        private AppUsageSummary mSummary = AppUsageSummary.EMPTY;
 
-        public DataUsageAdapter(final UserManager userManager, UidDetailProvider provider, int insetSide) {
+        public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
-            mUm = userManager;
         }
 
         /**
-         * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * Bind the given {@link AppUsageSummary}, or {@code null} to clear list.  The items
+         * are collapsed and sorted by {@link SummaryForAllUidLoader}.
          */
-        public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
-            mLargest = 0;
-
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final List<UserHandle> profiles = mUm.getUserProfiles();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-
-                final int collapseKey;
-                final int category;
-                final int userId = UserHandle.getUserId(uid);
-                if (UserHandle.isApp(uid)) {
-                    if (profiles.contains(new UserHandle(userId))) {
-                        if (userId != currentUserId) {
-                            // Add to a managed user item.
-                            final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                            accumulate(managedKey, knownItems, entry,
-                                    AppItem.CATEGORY_USER);
-                        }
-                        // Add to app item.
-                        collapseKey = uid;
-                        category = AppItem.CATEGORY_APP;
-                    } else {
-                        // Add to other user item.
-                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                        category = AppItem.CATEGORY_USER;
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                    category = AppItem.CATEGORY_APP;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                    category = AppItem.CATEGORY_APP;
-                }
-                accumulate(collapseKey, knownItems, entry, category);
-            }
-
-            final int restrictedUidsMax = restrictedUids.length;
-            for (int i = 0; i < restrictedUidsMax; ++i) {
-                final int uid = restrictedUids[i];
-                // Only splice in restricted state for current user or managed users
-                if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
-                    continue;
-                }
-
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.restricted = true;
-            }
-
-            if (!mItems.isEmpty()) {
-                final AppItem title = new AppItem();
-                title.category = AppItem.CATEGORY_APP_TITLE;
-                mItems.add(title);
-            }
-
-            Collections.sort(mItems);
+        public void bindStats(AppUsageSummary summary) {
+            mSummary = summary != null ? summary : AppUsageSummary.EMPTY;
             notifyDataSetChanged();
         }
 
-        /**
-         * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
-         * Creates the item if needed.
-         *
-         * @param collapseKey the collapse key used to map the item.
-         * @param knownItems collection of known (already existing) items.
-         * @param entry the network stats entry to extract data usage from.
-         * @param itemCategory the item is categorized on the list view by this category. Must be
-         *            either AppItem.APP_ITEM_CATEGORY or AppItem.MANAGED_USER_ITEM_CATEGORY
-         */
-        private void accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-                NetworkStats.Entry entry, int itemCategory) {
-            final int uid = entry.uid;
-            AppItem item = knownItems.get(collapseKey);
-            if (item == null) {
-                item = new AppItem(collapseKey);
-                item.category = itemCategory;
-                mItems.add(item);
-                knownItems.put(item.key, item);
-            }
-            item.addUid(uid);
-            item.total += entry.rxBytes + entry.txBytes;
-            if (mLargest < item.total) {
-                mLargest = item.total;
-            }
-        }
-
         @Override
         public int getCount() {
-            return mItems.size();
+            return mSummary.getCount();
         }
 
         @Override
         public Object getItem(int position) {
-            return mItems.get(position);
+            return mSummary.getItem(position);
         }
 
         @Override
         public long getItemId(int position) {
-            return mItems.get(position).key;
+            return mSummary.getItem(position).key;
         }
 
         /**
@@ -1735,7 +1630,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
          */
         @Override
         public int getItemViewType(int position) {
-            final AppItem item = mItems.get(position);
+            final AppItem item = mSummary.getItem(position);
             if (item.category == AppItem.CATEGORY_APP_TITLE) {
                 return 1;
             } else {
@@ -1750,7 +1645,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
         @Override
         public boolean isEnabled(int position) {
-            if (position > mItems.size()) {
+            if (position > mSummary.getCount()) {
                 throw new ArrayIndexOutOfBoundsException();
             }
             return getItemViewType(position) == 0;
@@ -1758,7 +1653,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            final AppItem item = mItems.get(position);
+            final AppItem item = mSummary.getItem(position);
             if (getItemViewType(position) == 1) {
                 if (convertView == null) {
                     convertView = inflateCategoryHeader(LayoutInflater.from(parent.getContext()),
@@ -1795,7 +1690,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                     progress.setVisibility(View.VISIBLE);
                 }
 
-                final int percentTotal = mLargest != 0 ? (int) (item.total * 100 / mLargest) : 0;
+                final long largest = mSummary.getLargest();
+                final int percentTotal = largest != 0 ? (int) (item.total * 100 / largest) : 0;
                 progress.setProgress(percentTotal);
             }
 
@@ -37,9 +37,7 @@ import android.content.res.XmlResourceParser;
 import android.nfc.NfcAdapter;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.INetworkManagementService;
-import android.os.Message;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.ServiceManager;
@@ -62,6 +60,7 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
 import android.widget.SearchView;
 
@@ -72,13 +71,16 @@ import com.android.settings.accessibility.AccessibilitySettings;
 import com.android.settings.accessibility.CaptionPropertiesFragment;
 import com.android.settings.accounts.AccountSettings;
 import com.android.settings.accounts.AccountSyncSettings;
+import com.android.settings.applications.ApplicationsState;
 import com.android.settings.applications.ExpandedDesktopPreferenceFragment;
 import com.android.settings.applications.InstalledAppDetails;
 import com.android.settings.applications.ManageApplications;
 import com.android.settings.applications.ProcessStatsUi;
+import com.android.settings.applications.RunningState;
 import com.android.settings.blacklist.BlacklistSettings;
 import com.android.settings.bluetooth.BluetoothSettings;
 import com.android.settings.dashboard.DashboardCategory;
+import com.android.settings.dashboard.DashboardModel;
 import com.android.settings.dashboard.DashboardSummary;
 import com.android.settings.dashboard.DashboardTile;
 import com.android.settings.dashboard.NoHomeDialogFragment;
@@ -123,7 +125,9 @@ import com.android.settings.wifi.p2p.WifiP2pSettings;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -219,7 +223,7 @@ public class SettingsActivity extends Activity
     private int mInitialTitleResId;
 
     // Show only these settings for restricted users
-    private int[] SETTINGS_FOR_RESTRICTED = {
+    private static final int[] SETTINGS_FOR_RESTRICTED = {
             R.id.wireless_section,
             R.id.wifi_settings,
             R.id.bluetooth_settings,
@@ -334,7 +338,7 @@ public class SettingsActivity extends Activity
 
                 if (mBatteryPresent != batteryPresent) {
                     mBatteryPresent = batteryPresent;
-                    invalidateCategories(true);
+                    invalidateCategories(false);
                 }
             }
         }
@@ -354,6 +358,27 @@ public class SettingsActivity extends Activity
     private boolean mIsShowingDashboard;
     private boolean mIsShortcut;
 
+    // Start of the launch, until it is fully drawn.
+    private long mLaunchStart;
+    private boolean mFirstDrawn;
+    private boolean mDashboardBound;
+    private final ViewTreeObserver.OnPreDrawListener mFirstDrawListener =
+            new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            getWindow().getDecorView().getViewTreeObserver().removeOnPreDrawListener(this);
+            mFirstDrawn = true;
+            if (mLaunchStart != 0) {
+                StartupTimings.record(StartupTimings.PHASE_FIRST_DRAW, mLaunchStart);
+                // The dashboard is only complete once its categories are bound
+                if (!mIsShowingDashboard || mDashboardBound) {
+                    reportLaunchFullyDrawn();
+                }
+            }
+            return true;
+        }
+    };
+
     private ViewGroup mContent;
 
     private SearchView mSearchView;
@@ -362,21 +387,19 @@ public class SettingsActivity extends Activity
     private SearchResultsSummary mSearchResultsFragment;
     private String mSearchQuery;
 
-    // Categories
+    // Categories, as last published by the DashboardModel or restored.
     private ArrayList<DashboardCategory> mCategories = new ArrayList<DashboardCategory>();
 
-    private static final String MSG_DATA_FORCE_REFRESH = "msg_data_force_refresh";
-    private static final int MSG_BUILD_CATEGORIES = 1;
-    private Handler mHandler = new Handler() {
+    private final DashboardModel.Listener mDashboardListener = new DashboardModel.Listener() {
         @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case MSG_BUILD_CATEGORIES: {
-                    final boolean forceRefresh = msg.getData().getBoolean(MSG_DATA_FORCE_REFRESH);
-                    if (forceRefresh) {
-                        buildDashboardCategories(mCategories);
-                    }
-                } break;
+        public void onDashboardChanged(DashboardModel.Snapshot snapshot) {
+            if (isDestroyed()) {
+                return;
+            }
+            onDashboardSnapshot(snapshot);
+            Fragment current = getFragmentManager().findFragmentById(R.id.main_content);
+            if (current instanceof DashboardModel.Listener) {
+                ((DashboardModel.Listener) current).onDashboardChanged(snapshot);
             }
         }
     };
@@ -390,11 +413,55 @@ public class SettingsActivity extends Activity
         return mSwitchBar;
     }
 
-    public List<DashboardCategory> getDashboardCategories(boolean forceRefresh) {
-        if (forceRefresh || mCategories.size() == 0) {
-            buildDashboardCategories(mCategories);
+    /**
+     * Return the dashboard categories to show right away, possibly built for an older state, or
+     * null if there are none yet. They are refreshed in the background and the
+     * {@link DashboardModel.Listener} fragment is told if they change.
+     *
+     * @param forceRefresh Whether to build them again even if nothing they depend on is known
+     *        to have changed.
+     */
+    public DashboardModel.Snapshot getDashboardSnapshot(boolean forceRefresh) {
+        final DashboardModel model = DashboardModel.getInstance(this);
+        DashboardModel.Snapshot snapshot = model.getSnapshot();
+        if (snapshot != null) {
+            // The model is not going to publish it again if it did not change
+            setCategories(snapshot);
+        } else if (mCategories.size() > 0) {
+            // Restored from a previous instance of the process
+            snapshot = new DashboardModel.Snapshot(mCategories, mHomeActivitiesCount);
+        }
+        model.load(newDashboardKey(), forceRefresh, new DashboardBuilder(this),
+                mDashboardListener);
+        return snapshot;
+    }
+
+    private DashboardModel.Key newDashboardKey() {
+        final boolean showDev = mDevelopmentPreferences.getBoolean(
+                DevelopmentSettings.PREF_SHOW,
+                android.os.Build.TYPE.equals("eng"));
+        return DashboardModel.getInstance(this).newKey(this, showDev, mBatteryPresent);
+    }
+
+    private void setCategories(DashboardModel.Snapshot snapshot) {
+        mCategories.clear();
+        mCategories.addAll(snapshot.categories);
+        if (snapshot.homeActivitiesCount >= 0) {
+            mHomeActivitiesCount = snapshot.homeActivitiesCount;
+        }
+    }
+
+    private void onDashboardSnapshot(DashboardModel.Snapshot snapshot) {
+        setCategories(snapshot);
+        if (snapshot.homeActivitiesCount >= 0) {
+            if (mHomeActivitiesCount < 2 && sShowNoHomeNotice) {
+                // When there's only one available home app, the Home settings are omitted.
+                // If the user just uninstalled the penultimate home app candidiate, tell
+                // them about why they aren't seeing 'Home' in the list.
+                sShowNoHomeNotice = false;
+                NoHomeDialogFragment.show(this);
+            }
         }
-        return mCategories;
     }
 
     @Override
@@ -422,11 +489,11 @@ public class SettingsActivity extends Activity
     }
 
     private void invalidateCategories(boolean forceRefresh) {
-        if (!mHandler.hasMessages(MSG_BUILD_CATEGORIES)) {
-            Message msg = new Message();
-            msg.what = MSG_BUILD_CATEGORIES;
-            msg.getData().putBoolean(MSG_DATA_FORCE_REFRESH, forceRefresh);
+        if (!mIsShowingDashboard) {
+            return;
         }
+        DashboardModel.getInstance(this).load(newDashboardKey(), forceRefresh,
+                new DashboardBuilder(this), mDashboardListener);
     }
 
     @Override
@@ -497,6 +564,8 @@ public class SettingsActivity extends Activity
 
     @Override
     protected void onCreate(Bundle savedState) {
+        final long createStart = StartupTimings.begin(StartupTimings.PHASE_ACTIVITY_CREATE);
+        mLaunchStart = createStart;
         super.onCreate(savedState);
 
         // Should happen before any call to getIntent()
@@ -659,13 +728,34 @@ public class SettingsActivity extends Activity
             }
         }
 
-        mHomeActivitiesCount = getHomeActivitiesCount();
+        getWindow().getDecorView().getViewTreeObserver().addOnPreDrawListener(
+                mFirstDrawListener);
+        StartupTimings.end(StartupTimings.PHASE_ACTIVITY_CREATE, createStart);
     }
 
-    private int getHomeActivitiesCount() {
-        final ArrayList<ResolveInfo> homeApps = new ArrayList<ResolveInfo>();
-        getPackageManager().getHomeActivities(homeApps);
-        return homeApps.size();
+    /**
+     * Called by DashboardSummary once it shows the categories: the dashboard is fully drawn.
+     */
+    public void reportDashboardBound() {
+        mDashboardBound = true;
+        if (mLaunchStart != 0 && mIsShowingDashboard && mFirstDrawn) {
+            reportLaunchFullyDrawn();
+        }
+    }
+
+    private void reportLaunchFullyDrawn() {
+        StartupTimings.record(StartupTimings.PHASE_FULLY_DRAWN, mLaunchStart);
+        mLaunchStart = 0;
+        reportFullyDrawn();
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        StartupTimings.dump(prefix, writer);
+        ApplicationsState.dump(prefix, writer);
+        AppLabelIconCache.dump(prefix, writer);
+        RunningState.dump(prefix, writer);
     }
 
     private void setTitleFromIntent(Intent intent) {
@@ -765,16 +855,13 @@ public class SettingsActivity extends Activity
     public void onResume() {
         super.onResume();
 
-        final int newHomeActivityCount = getHomeActivitiesCount();
-        if (newHomeActivityCount != mHomeActivitiesCount) {
-            mHomeActivitiesCount = newHomeActivityCount;
-            invalidateCategories(true);
-        }
+        // Home apps being installed or removed is handled by the DashboardModel, which
+        // rebuilds the categories after any package change.
 
         mDevelopmentPreferencesListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
             @Override
             public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-                invalidateCategories(true);
+                invalidateCategories(false);
             }
         };
         mDevelopmentPreferences.registerOnSharedPreferenceChangeListener(
@@ -960,6 +1047,9 @@ public class SettingsActivity extends Activity
             throw new IllegalArgumentException("Invalid fragment for this activity: "
                     + fragmentName);
         }
+        final String phase = StartupTimings.PHASE_FRAGMENT_INFLATE + ":"
+                + fragmentName.substring(fragmentName.lastIndexOf('.') + 1);
+        final long start = StartupTimings.begin(phase);
         Fragment f = Fragment.instantiate(this, fragmentName, args);
         FragmentTransaction transaction = getFragmentManager().beginTransaction();
         transaction.replace(R.id.main_content, f);
@@ -976,342 +1066,359 @@ public class SettingsActivity extends Activity
         }
         transaction.commitAllowingStateLoss();
         getFragmentManager().executePendingTransactions();
+        StartupTimings.end(phase, start);
         return f;
     }
 
     /**
-     * Called when the activity needs its list of categories/tiles built.
-     *
-     * @param categories The list in which to place the tiles categories.
-     */
-    private void buildDashboardCategories(List<DashboardCategory> categories) {
-        categories.clear();
-        loadCategoriesFromResource(R.xml.dashboard_categories, categories);
-        updateTilesList(categories);
-    }
-
-    /**
-     * Parse the given XML file as a categories description, adding each
-     * parsed categories and tiles into the target list.
-     *
-     * @param resid The XML resource to load and parse.
-     * @param target The list in which the parsed categories and tiles should be placed.
+     * Builds the dashboard categories for the DashboardModel.  It only keeps the application
+     * Context, as the model outlives the activities.
      */
-    private void loadCategoriesFromResource(int resid, List<DashboardCategory> target) {
-        XmlResourceParser parser = null;
-        try {
-            parser = getResources().getXml(resid);
-            AttributeSet attrs = Xml.asAttributeSet(parser);
+    private static final class DashboardBuilder implements DashboardModel.Builder {
+        private final Context mContext;
 
-            int type;
-            while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
-                    && type != XmlPullParser.START_TAG) {
-                // Parse next until start tag is found
-            }
+        DashboardBuilder(Context context) {
+            mContext = context.getApplicationContext();
+        }
 
-            String nodeName = parser.getName();
-            if (!"dashboard-categories".equals(nodeName)) {
-                throw new RuntimeException(
-                        "XML document must start with <preference-categories> tag; found"
-                                + nodeName + " at " + parser.getPositionDescription());
-            }
+        /**
+         * Called on the DashboardModel thread when the list of categories/tiles needs to be
+         * built.
+         */
+        @Override
+        public DashboardModel.Snapshot build(DashboardModel.Key key) {
+            final long start = StartupTimings.begin(StartupTimings.PHASE_DASHBOARD_BUILD);
+            final List<DashboardCategory> categories = new ArrayList<DashboardCategory>();
+            loadCategoriesFromResource(R.xml.dashboard_categories, categories);
+            final int[] homeActivitiesCount = { -1 };
+            updateTilesList(categories, key, homeActivitiesCount);
+            StartupTimings.end(StartupTimings.PHASE_DASHBOARD_BUILD, start);
+            return new DashboardModel.Snapshot(categories, homeActivitiesCount[0]);
+        }
 
-            Bundle curBundle = null;
+        /**
+         * Parse the given XML file as a categories description, adding each
+         * parsed categories and tiles into the target list.
+         *
+         * @param resid The XML resource to load and parse.
+         * @param target The list in which the parsed categories and tiles should be placed.
+         */
+        private void loadCategoriesFromResource(int resid, List<DashboardCategory> target) {
+            XmlResourceParser parser = null;
+            try {
+                parser = mContext.getResources().getXml(resid);
+                AttributeSet attrs = Xml.asAttributeSet(parser);
+
+                int type;
+                while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
+                        && type != XmlPullParser.START_TAG) {
+                    // Parse next until start tag is found
+                }
 
-            final int outerDepth = parser.getDepth();
-            while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
-                    && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
-                if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
-                    continue;
+                String nodeName = parser.getName();
+                if (!"dashboard-categories".equals(nodeName)) {
+                    throw new RuntimeException(
+                            "XML document must start with <preference-categories> tag; found"
+                                    + nodeName + " at " + parser.getPositionDescription());
                 }
 
-                nodeName = parser.getName();
-                if ("dashboard-category".equals(nodeName)) {
-                    DashboardCategory category = new DashboardCategory();
-
-                    TypedArray sa = obtainStyledAttributes(
-                            attrs, com.android.internal.R.styleable.PreferenceHeader);
-                    category.id = sa.getResourceId(
-                            com.android.internal.R.styleable.PreferenceHeader_id,
-                            (int)DashboardCategory.CAT_ID_UNDEFINED);
-
-                    TypedValue tv = sa.peekValue(
-                            com.android.internal.R.styleable.PreferenceHeader_title);
-                    if (tv != null && tv.type == TypedValue.TYPE_STRING) {
-                        if (tv.resourceId != 0) {
-                            category.titleRes = tv.resourceId;
-                        } else {
-                            category.title = tv.string;
-                        }
+                Bundle curBundle = null;
+
+                final int outerDepth = parser.getDepth();
+                while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
+                        && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+                    if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                        continue;
                     }
-                    sa.recycle();
 
-                    final int innerDepth = parser.getDepth();
-                    while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
-                            && (type != XmlPullParser.END_TAG || parser.getDepth() > innerDepth)) {
-                        if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
-                            continue;
+                    nodeName = parser.getName();
+                    if ("dashboard-category".equals(nodeName)) {
+                        DashboardCategory category = new DashboardCategory();
+
+                        TypedArray sa = mContext.getResources().obtainAttributes(
+                                attrs, com.android.internal.R.styleable.PreferenceHeader);
+                        category.id = sa.getResourceId(
+                                com.android.internal.R.styleable.PreferenceHeader_id,
+                                (int)DashboardCategory.CAT_ID_UNDEFINED);
+
+                        TypedValue tv = sa.peekValue(
+                                com.android.internal.R.styleable.PreferenceHeader_title);
+                        if (tv != null && tv.type == TypedValue.TYPE_STRING) {
+                            if (tv.resourceId != 0) {
+                                category.titleRes = tv.resourceId;
+                            } else {
+                                category.title = tv.string;
+                            }
                         }
+                        sa.recycle();
 
-                        String innerNodeName = parser.getName();
-                        if (innerNodeName.equals("dashboard-tile")) {
-                            DashboardTile tile = new DashboardTile();
-
-                            sa = obtainStyledAttributes(
-                                    attrs, com.android.internal.R.styleable.PreferenceHeader);
-                            tile.id = sa.getResourceId(
-                                    com.android.internal.R.styleable.PreferenceHeader_id,
-                                    (int)TILE_ID_UNDEFINED);
-                            tv = sa.peekValue(
-                                    com.android.internal.R.styleable.PreferenceHeader_title);
-                            if (tv != null && tv.type == TypedValue.TYPE_STRING) {
-                                if (tv.resourceId != 0) {
-                                    tile.titleRes = tv.resourceId;
-                                } else {
-                                    tile.title = tv.string;
-                                }
-                            }
-                            tv = sa.peekValue(
-                                    com.android.internal.R.styleable.PreferenceHeader_summary);
-                            if (tv != null && tv.type == TypedValue.TYPE_STRING) {
-                                if (tv.resourceId != 0) {
-                                    tile.summaryRes = tv.resourceId;
-                                } else {
-                                    tile.summary = tv.string;
-                                }
-                            }
-                            tile.iconRes = sa.getResourceId(
-                                    com.android.internal.R.styleable.PreferenceHeader_icon, 0);
-                            tile.fragment = sa.getString(
-                                    com.android.internal.R.styleable.PreferenceHeader_fragment);
-                            sa.recycle();
-
-                            if (curBundle == null) {
-                                curBundle = new Bundle();
+                        final int innerDepth = parser.getDepth();
+                        while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
+                                && (type != XmlPullParser.END_TAG || parser.getDepth() > innerDepth)) {
+                            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                                continue;
                             }
 
-                            final int innerDepth2 = parser.getDepth();
-                            while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
-                                    && (type != XmlPullParser.END_TAG || parser.getDepth() > innerDepth2)) {
-                                if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
-                                    continue;
+                            String innerNodeName = parser.getName();
+                            if (innerNodeName.equals("dashboard-tile")) {
+                                DashboardTile tile = new DashboardTile();
+
+                                sa = mContext.getResources().obtainAttributes(
+                                        attrs, com.android.internal.R.styleable.PreferenceHeader);
+                                tile.id = sa.getResourceId(
+                                        com.android.internal.R.styleable.PreferenceHeader_id,
+                                        (int)TILE_ID_UNDEFINED);
+                                tv = sa.peekValue(
+                                        com.android.internal.R.styleable.PreferenceHeader_title);
+                                if (tv != null && tv.type == TypedValue.TYPE_STRING) {
+                                    if (tv.resourceId != 0) {
+                                        tile.titleRes = tv.resourceId;
+                                    } else {
+                                        tile.title = tv.string;
+                                    }
+                                }
+                                tv = sa.peekValue(
+                                        com.android.internal.R.styleable.PreferenceHeader_summary);
+                                if (tv != null && tv.type == TypedValue.TYPE_STRING) {
+                                    if (tv.resourceId != 0) {
+                                        tile.summaryRes = tv.resourceId;
+                                    } else {
+                                        tile.summary = tv.string;
+                                    }
+                                }
+                                tile.iconRes = sa.getResourceId(
+                                        com.android.internal.R.styleable.PreferenceHeader_icon, 0);
+                                tile.fragment = sa.getString(
+                                        com.android.internal.R.styleable.PreferenceHeader_fragment);
+                                sa.recycle();
+
+                                if (curBundle == null) {
+                                    curBundle = new Bundle();
                                 }
 
-                                String innerNodeName2 = parser.getName();
-                                if (innerNodeName2.equals("extra")) {
-                                    getResources().parseBundleExtra("extra", attrs, curBundle);
-                                    XmlUtils.skipCurrentTag(parser);
+                                final int innerDepth2 = parser.getDepth();
+                                while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
+                                        && (type != XmlPullParser.END_TAG || parser.getDepth() > innerDepth2)) {
+                                    if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                                        continue;
+                                    }
 
-                                } else if (innerNodeName2.equals("intent")) {
-                                    tile.intent = Intent.parseIntent(getResources(), parser, attrs);
+                                    String innerNodeName2 = parser.getName();
+                                    if (innerNodeName2.equals("extra")) {
+                                        mContext.getResources().parseBundleExtra("extra", attrs, curBundle);
+                                        XmlUtils.skipCurrentTag(parser);
 
-                                } else {
-                                    XmlUtils.skipCurrentTag(parser);
+                                    } else if (innerNodeName2.equals("intent")) {
+                                        tile.intent = Intent.parseIntent(mContext.getResources(), parser, attrs);
+
+                                    } else {
+                                        XmlUtils.skipCurrentTag(parser);
+                                    }
                                 }
-                            }
 
-                            if (curBundle.size() > 0) {
-                                tile.fragmentArguments = curBundle;
-                                curBundle = null;
-                            }
+                                if (curBundle.size() > 0) {
+                                    tile.fragmentArguments = curBundle;
+                                    curBundle = null;
+                                }
 
-                            // Show the SIM Cards setting if there are more than 2 SIMs installed.
-                            if(tile.id != R.id.sim_settings || Utils.showSimCardTile(this)){
-                                category.addTile(tile);
-                            }
+                                // Show the SIM Cards setting if there are more than 2 SIMs installed.
+                                if(tile.id != R.id.sim_settings || Utils.showSimCardTile(mContext)){
+                                    category.addTile(tile);
+                                }
 
-                        } else {
-                            XmlUtils.skipCurrentTag(parser);
+                            } else {
+                                XmlUtils.skipCurrentTag(parser);
+                            }
                         }
-                    }
 
-                    target.add(category);
-                } else {
-                    XmlUtils.skipCurrentTag(parser);
+                        target.add(category);
+                    } else {
+                        XmlUtils.skipCurrentTag(parser);
+                    }
                 }
-            }
 
-        } catch (XmlPullParserException e) {
-            throw new RuntimeException("Error parsing categories", e);
-        } catch (IOException e) {
-            throw new RuntimeException("Error parsing categories", e);
-        } finally {
-            if (parser != null) parser.close();
+            } catch (XmlPullParserException e) {
+                throw new RuntimeException("Error parsing categories", e);
+            } catch (IOException e) {
+                throw new RuntimeException("Error parsing categories", e);
+            } finally {
+                if (parser != null) parser.close();
+            }
         }
-    }
 
-    private void updateTilesList(List<DashboardCategory> target) {
-        final boolean showDev = mDevelopmentPreferences.getBoolean(
-                DevelopmentSettings.PREF_SHOW,
-                android.os.Build.TYPE.equals("eng"));
+        private void updateTilesList(List<DashboardCategory> target, DashboardModel.Key key,
+                int[] outHomeActivitiesCount) {
+            final boolean showDev = key.showDevelopment;
 
-        final UserManager um = (UserManager) getSystemService(Context.USER_SERVICE);
-        final PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+            final UserManager um = (UserManager) mContext.getSystemService(Context.USER_SERVICE);
+            final PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
 
-        final int size = target.size();
-        for (int i = 0; i < size; i++) {
+            final int size = target.size();
+            for (int i = 0; i < size; i++) {
 
-            DashboardCategory category = target.get(i);
+                DashboardCategory category = target.get(i);
 
-            // Ids are integers, so downcasting is ok
-            int id = (int) category.id;
-            int n = category.getTilesCount() - 1;
-            while (n >= 0) {
+                // Ids are integers, so downcasting is ok
+                int id = (int) category.id;
+                int n = category.getTilesCount() - 1;
+                while (n >= 0) {
 
-                DashboardTile tile = category.getTile(n);
-                boolean removeTile = false;
-                id = (int) tile.id;
-                if (id == R.id.operator_settings || id == R.id.manufacturer_settings) {
-                    if (!Utils.updateTileToSpecificActivityFromMetaDataOrRemove(this, tile)) {
-                        removeTile = true;
-                    }
-                } else if (id == R.id.wifi_settings) {
-                    // Remove WiFi Settings if WiFi service is not available.
-                    if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI)) {
-                        removeTile = true;
-                    }
-                } else if (id == R.id.bluetooth_settings) {
-                    // Remove Bluetooth Settings if Bluetooth service is not available.
-                    if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH)) {
-                        removeTile = true;
-                    }
-                } else if (id == R.id.mobile_networks) {
-                    if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_TELEPHONY)) {
-                        removeTile = true;
-                    } else if (TelephonyManager.getDefault().getPhoneCount() > 1) {
-                        removeTile = true;
-                    }
-                } else if (id == R.id.data_usage_settings) {
-                    // Remove data usage when kernel module not enabled
-                    final INetworkManagementService netManager = INetworkManagementService.Stub
-                            .asInterface(ServiceManager.getService(Context.NETWORKMANAGEMENT_SERVICE));
-                    try {
-                        if (!netManager.isBandwidthControlEnabled()) {
+                    DashboardTile tile = category.getTile(n);
+                    boolean removeTile = false;
+                    id = (int) tile.id;
+                    if (id == R.id.operator_settings || id == R.id.manufacturer_settings) {
+                        if (!Utils.updateTileToSpecificActivityFromMetaDataOrRemove(mContext, tile)) {
                             removeTile = true;
                         }
-                    } catch (RemoteException e) {
-                        // ignored
-                    }
-                } else if (id == R.id.battery_settings) {
-                    // Remove battery settings when battery is not available. (e.g. TV)
+                    } else if (id == R.id.wifi_settings) {
+                        // Remove WiFi Settings if WiFi service is not available.
+                        if (!mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI)) {
+                            removeTile = true;
+                        }
+                    } else if (id == R.id.bluetooth_settings) {
+                        // Remove Bluetooth Settings if Bluetooth service is not available.
+                        if (!mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH)) {
+                            removeTile = true;
+                        }
+                    } else if (id == R.id.mobile_networks) {
+                        if (!mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_TELEPHONY)) {
+                            removeTile = true;
+                        } else if (TelephonyManager.getDefault().getPhoneCount() > 1) {
+                            removeTile = true;
+                        }
+                    } else if (id == R.id.data_usage_settings) {
+                        // Remove data usage when kernel module not enabled
+                        final INetworkManagementService netManager = INetworkManagementService.Stub
+                                .asInterface(ServiceManager.getService(Context.NETWORKMANAGEMENT_SERVICE));
+                        try {
+                            if (!netManager.isBandwidthControlEnabled()) {
+                                removeTile = true;
+                            }
+                        } catch (RemoteException e) {
+                            // ignored
+                        }
+                    } else if (id == R.id.battery_settings) {
+                        // Remove battery settings when battery is not available. (e.g. TV)
 
-                    if (!mBatteryPresent) {
-                        removeTile = true;
-                    }
-                } else if (id == R.id.home_settings) {
-                    if (!updateHomeSettingTiles(tile)) {
-                        removeTile = true;
-                    }
-                } else if (id == R.id.user_settings) {
-                    boolean hasMultipleUsers =
-                            ((UserManager) getSystemService(Context.USER_SERVICE))
-                                    .getUserCount() > 1;
-                    if (!UserHandle.MU_ENABLED
-                            || (!UserManager.supportsMultipleUsers()
-                                    && !hasMultipleUsers)
-                            || Utils.isMonkeyRunning()) {
-                        removeTile = true;
-                    }
-                } else if (id == R.id.nfc_payment_settings) {
-                    if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_NFC)) {
-                        removeTile = true;
-                    } else {
-                        // Only show if NFC is on and we have the HCE feature
-                        NfcAdapter adapter = NfcAdapter.getDefaultAdapter(this);
-                        if (adapter == null || !adapter.isEnabled() ||
-                                !getPackageManager().hasSystemFeature(
-                                        PackageManager.FEATURE_NFC_HOST_CARD_EMULATION)) {
+                        if (!key.batteryPresent) {
+                            removeTile = true;
+                        }
+                    } else if (id == R.id.home_settings) {
+                        if (!updateHomeSettingTiles(tile, outHomeActivitiesCount)) {
+                            removeTile = true;
+                        }
+                    } else if (id == R.id.user_settings) {
+                        boolean hasMultipleUsers =
+                                ((UserManager) mContext.getSystemService(Context.USER_SERVICE))
+                                        .getUserCount() > 1;
+                        if (!UserHandle.MU_ENABLED
+                                || (!UserManager.supportsMultipleUsers()
+                                        && !hasMultipleUsers)
+                                || Utils.isMonkeyRunning()) {
+                            removeTile = true;
+                        }
+                    } else if (id == R.id.nfc_payment_settings) {
+                        if (!mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_NFC)) {
+                            removeTile = true;
+                        } else {
+                            // Only show if NFC is on and we have the HCE feature
+                            NfcAdapter adapter = NfcAdapter.getDefaultAdapter(mContext);
+                            if (adapter == null || !adapter.isEnabled() ||
+                                    !mContext.getPackageManager().hasSystemFeature(
+                                            PackageManager.FEATURE_NFC_HOST_CARD_EMULATION)) {
+                                removeTile = true;
+                            }
+                        }
+                    } else if (id == R.id.print_settings) {
+                        boolean hasPrintingSupport = mContext.getPackageManager().hasSystemFeature(
+                                PackageManager.FEATURE_PRINTING);
+                        if (!hasPrintingSupport) {
+                            removeTile = true;
+                        }
+                    } else if (id == R.id.development_settings) {
+                        if (!showDev || um.hasUserRestriction(
+                                UserManager.DISALLOW_DEBUGGING_FEATURES)) {
+                            removeTile = true;
+                        }
+                    } else if (id == R.id.screen_off_gesture_settings) {
+                        boolean supported = false;
+                        try {
+                            supported = (mContext.getPackageManager().getPackageInfo("com.slim.device", 0).versionCode > 0);
+                        } catch (PackageManager.NameNotFoundException e) {
+                        }
+                        if (!supported) {
+                            removeTile = true;
+                        }
+                    } else if (id == R.id.slimota) {
+                        boolean supported = false;
+                        try {
+                            supported = (mContext.getPackageManager().getPackageInfo("com.fusionjack.slimota", 0).versionCode > 0);
+                        } catch (PackageManager.NameNotFoundException e) {
+                        }
+                        if (!supported) {
+                            removeTile = true;
+                        }
+                    } else if (id == R.id.performance_settings) {
+                        if (!(pm.hasPowerProfiles())) {
+                            removeTile = true;
+                        }
+                    } else if (id == R.id.lockscreen_settings) {
+                        final LockPatternUtils lockPatternUtils = new LockPatternUtils(mContext);
+                        if (lockPatternUtils.isLockScreenDisabled()) {
                             removeTile = true;
                         }
                     }
-                } else if (id == R.id.print_settings) {
-                    boolean hasPrintingSupport = getPackageManager().hasSystemFeature(
-                            PackageManager.FEATURE_PRINTING);
-                    if (!hasPrintingSupport) {
-                        removeTile = true;
-                    }
-                } else if (id == R.id.development_settings) {
-                    if (!showDev || um.hasUserRestriction(
-                            UserManager.DISALLOW_DEBUGGING_FEATURES)) {
-                        removeTile = true;
-                    }
-                } else if (id == R.id.screen_off_gesture_settings) {
-                    boolean supported = false;
-                    try {
-                        supported = (getPackageManager().getPackageInfo("com.slim.device", 0).versionCode > 0);
-                    } catch (PackageManager.NameNotFoundException e) {
-                    }
-                    if (!supported) {
-                        removeTile = true;
-                    }
-                } else if (id == R.id.slimota) {
-                    boolean supported = false;
-                    try {
-                        supported = (getPackageManager().getPackageInfo("com.fusionjack.slimota", 0).versionCode > 0);
-                    } catch (PackageManager.NameNotFoundException e) {
-                    }
-                    if (!supported) {
-                        removeTile = true;
-                    }
-                } else if (id == R.id.performance_settings) {
-                    if (!(pm.hasPowerProfiles())) {
+
+                    if (UserHandle.MU_ENABLED && UserHandle.myUserId() != 0
+                            && !ArrayUtils.contains(SETTINGS_FOR_RESTRICTED, id)) {
                         removeTile = true;
                     }
-                } else if (id == R.id.lockscreen_settings) {
-                    final LockPatternUtils lockPatternUtils = new LockPatternUtils(this);
-                    if (lockPatternUtils.isLockScreenDisabled()) {
-                        removeTile = true;
+
+                    if (removeTile && n < category.getTilesCount()) {
+                        category.removeTile(n);
                     }
+                    n--;
                 }
+            }
+        }
 
-                if (UserHandle.MU_ENABLED && UserHandle.myUserId() != 0
-                        && !ArrayUtils.contains(SETTINGS_FOR_RESTRICTED, id)) {
-                    removeTile = true;
-                }
+        private boolean updateHomeSettingTiles(DashboardTile tile, int[] outHomeActivitiesCount) {
+            // Once we decide to show Home settings, keep showing it forever
+            SharedPreferences sp = mContext.getSharedPreferences(HomeSettings.HOME_PREFS, Context.MODE_PRIVATE);
+            if (sp.getBoolean(HomeSettings.HOME_PREFS_DO_SHOW, false)) {
+                return true;
+            }
 
-                if (removeTile && n < category.getTilesCount()) {
-                    category.removeTile(n);
+            try {
+                outHomeActivitiesCount[0] = getHomeActivitiesCount();
+                if (outHomeActivitiesCount[0] < 2) {
+                    // When there's only one available home app, omit this settings
+                    // category entirely at the top level UI.  The notice telling why is
+                    // shown once published, see onDashboardSnapshot().
+                    return false;
+                } else {
+                    // Okay, we're allowing the Home settings category.  Tell it, when
+                    // invoked via this front door, that we'll need to be told about the
+                    // case when the user uninstalls all but one home app.
+                    if (tile.fragmentArguments == null) {
+                        tile.fragmentArguments = new Bundle();
+                    }
+                    tile.fragmentArguments.putBoolean(HomeSettings.HOME_SHOW_NOTICE, true);
                 }
-                n--;
+            } catch (Exception e) {
+                // Can't look up the home activity; bail on configuring the icon
+                Log.w(LOG_TAG, "Problem looking up home activity!", e);
             }
-        }
-    }
 
-    private boolean updateHomeSettingTiles(DashboardTile tile) {
-        // Once we decide to show Home settings, keep showing it forever
-        SharedPreferences sp = getSharedPreferences(HomeSettings.HOME_PREFS, Context.MODE_PRIVATE);
-        if (sp.getBoolean(HomeSettings.HOME_PREFS_DO_SHOW, false)) {
+            sp.edit().putBoolean(HomeSettings.HOME_PREFS_DO_SHOW, true).apply();
             return true;
         }
 
-        try {
-            mHomeActivitiesCount = getHomeActivitiesCount();
-            if (mHomeActivitiesCount < 2) {
-                // When there's only one available home app, omit this settings
-                // category entirely at the top level UI.  If the user just
-                // uninstalled the penultimate home app candidiate, we also
-                // now tell them about why they aren't seeing 'Home' in the list.
-                if (sShowNoHomeNotice) {
-                    sShowNoHomeNotice = false;
-                    NoHomeDialogFragment.show(this);
-                }
-                return false;
-            } else {
-                // Okay, we're allowing the Home settings category.  Tell it, when
-                // invoked via this front door, that we'll need to be told about the
-                // case when the user uninstalls all but one home app.
-                if (tile.fragmentArguments == null) {
-                    tile.fragmentArguments = new Bundle();
-                }
-                tile.fragmentArguments.putBoolean(HomeSettings.HOME_SHOW_NOTICE, true);
-            }
-        } catch (Exception e) {
-            // Can't look up the home activity; bail on configuring the icon
-            Log.w(LOG_TAG, "Problem looking up home activity!", e);
+        private int getHomeActivitiesCount() {
+            final ArrayList<ResolveInfo> homeApps = new ArrayList<ResolveInfo>();
+            mContext.getPackageManager().getHomeActivities(homeApps);
+            return homeApps.size();
         }
-
-        sp.edit().putBoolean(HomeSettings.HOME_PREFS_DO_SHOW, true).apply();
-        return true;
     }
 
     private void getMetaData() {
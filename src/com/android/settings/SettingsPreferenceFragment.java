@@ -97,6 +97,15 @@ public class SettingsPreferenceFragment extends PreferenceFragment implements Di
         }
     }
 
+    @Override
+    public void addPreferencesFromResource(int preferencesResId) {
+        final String phase = StartupTimings.PHASE_PREFERENCES_INFLATE + ":"
+                + getClass().getSimpleName();
+        final long start = StartupTimings.begin(phase);
+        super.addPreferencesFromResource(preferencesResId);
+        StartupTimings.end(phase, start);
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
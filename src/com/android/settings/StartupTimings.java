@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Timings of the launch phases of Settings: activity creation, dashboard build, fragment and
+ * preferences inflation, first draw and fully drawn.
+ *
+ * Synchronous phases are also shown as {@link Trace} sections. The timings are aggregated per
+ * phase in the process, and printed by {@code dumpsys activity} for a SettingsActivity.
+ */
+public final class StartupTimings {
+    public static final String PHASE_ACTIVITY_CREATE = "activity_create";
+    public static final String PHASE_DASHBOARD_BUILD = "dashboard_build";
+    public static final String PHASE_DASHBOARD_BIND = "dashboard_bind";
+    public static final String PHASE_FRAGMENT_INFLATE = "fragment_inflate";
+    public static final String PHASE_PREFERENCES_INFLATE = "preferences_inflate";
+    public static final String PHASE_FIRST_DRAW = "first_draw";
+    public static final String PHASE_FULLY_DRAWN = "fully_drawn";
+
+    // Upper bounds of the histogram buckets, in milliseconds.  The last bucket is unbounded.
+    private static final int[] BUCKETS = { 4, 8, 16, 32, 64, 128, 256, 512, 1024 };
+
+    private static final class Stat {
+        final int[] buckets = new int[BUCKETS.length + 1];
+        int count;
+        long totalMillis;
+        long maxMillis;
+
+        void add(long millis) {
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis >= BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket]++;
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+        }
+    }
+
+    // Guarded by sStats
+    private static final Map<String, Stat> sStats = new TreeMap<String, Stat>();
+
+    private StartupTimings() {
+    }
+
+    /**
+     * Start a synchronous phase on the current thread.
+     *
+     * @return the start time to pass to {@link #end(String, long)}.
+     */
+    public static long begin(String name) {
+        Trace.beginSection(name);
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * End the phase started by the last {@link #begin(String)} call of the current thread.
+     */
+    public static void end(String name, long start) {
+        Trace.endSection();
+        record(name, start);
+    }
+
+    /**
+     * Record a phase that started at the given time, for phases spanning several callbacks
+     * which cannot be shown as trace sections.
+     */
+    public static void record(String name, long start) {
+        final long millis = SystemClock.elapsedRealtime() - start;
+        synchronized (sStats) {
+            Stat stat = sStats.get(name);
+            if (stat == null) {
+                stat = new Stat();
+                sStats.put(name, stat);
+            }
+            stat.add(millis);
+        }
+    }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.print("Startup timings (ms), buckets <");
+        for (int i = 0; i < BUCKETS.length; i++) {
+            writer.print(i > 0 ? " <" : "");
+            writer.print(BUCKETS[i]);
+        }
+        writer.println(" >=" + BUCKETS[BUCKETS.length - 1] + ":");
+        synchronized (sStats) {
+            for (Map.Entry<String, Stat> entry : sStats.entrySet()) {
+                final Stat stat = entry.getValue();
+                writer.print(prefix);
+                writer.print("  ");
+                writer.print(entry.getKey());
+                writer.print(": count=" + stat.count);
+                writer.print(" avg=" + (stat.totalMillis / stat.count));
+                writer.print(" max=" + stat.maxMillis);
+                writer.print(" [");
+                for (int i = 0; i < stat.buckets.length; i++) {
+                    writer.print(i > 0 ? " " : "");
+                    writer.print(stat.buckets[i]);
+                }
+                writer.println("]");
+            }
+        }
+    }
+}
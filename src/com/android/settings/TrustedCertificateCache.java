@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings;
+
+import android.net.http.SslCertificate;
+import android.os.Build;
+import android.security.KeyChain;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * On-disk cache of the display metadata of the CA certificates listed by
+ * {@link TrustedCredentialsSettings}, one file per tab and profile, so that the list can be
+ * shown without fetching and decoding every certificate again.
+ *
+ * The aliases of the CA store are derived from the subject of their certificate, so the names
+ * of a cached alias stay valid; the fingerprint of the certificate is kept to check that it
+ * did not change when it is decoded again.  The system certificates only change with the
+ * build, so the whole cache is dropped when the build fingerprint changes.
+ *
+ * Not thread safe: the files are only read and written from the serial executor of
+ * {@link android.os.AsyncTask}.
+ */
+class TrustedCertificateCache {
+    static final String TAG = "TrustedCertificateCache";
+
+    private static final String FILE_PREFIX = "trusted_certificates_";
+    private static final int VERSION = 1;
+
+    static class Record {
+        String alias;
+        byte[] fingerprint;
+        String subjectPrimary;
+        String subjectSecondary;
+        String issuerPrimary;
+        boolean deleted;
+    }
+
+    private final AtomicFile mFile;
+
+    TrustedCertificateCache(File dir, String tabTag, int profileId) {
+        mFile = new AtomicFile(new File(dir, FILE_PREFIX + tabTag + "_" + profileId));
+    }
+
+    /**
+     * Decode a certificate and compute its metadata.
+     */
+    static Record parse(String alias, byte[] encodedCertificate) {
+        final SslCertificate sslCert =
+                new SslCertificate(KeyChain.toCertificate(encodedCertificate));
+        final Record r = new Record();
+        r.alias = alias;
+        r.fingerprint = getFingerprint(encodedCertificate);
+
+        final SslCertificate.DName subject = sslCert.getIssuedTo();
+        String cn = subject.getCName();
+        String o = subject.getOName();
+        String ou = subject.getUName();
+        // if we have a O, use O as primary subject, secondary prefer CN over OU
+        // if we don't have an O, use CN as primary, empty secondary
+        // if we don't have O or CN, use DName as primary, empty secondary
+        if (!o.isEmpty()) {
+            if (!cn.isEmpty()) {
+                r.subjectPrimary = o;
+                r.subjectSecondary = cn;
+            } else {
+                r.subjectPrimary = o;
+                r.subjectSecondary = ou;
+            }
+        } else {
+            if (!cn.isEmpty()) {
+                r.subjectPrimary = cn;
+                r.subjectSecondary = "";
+            } else {
+                r.subjectPrimary = subject.getDName();
+                r.subjectSecondary = "";
+            }
+        }
+
+        final SslCertificate.DName issuer = sslCert.getIssuedBy();
+        if (!issuer.getOName().isEmpty()) {
+            r.issuerPrimary = issuer.getOName();
+        } else if (!issuer.getCName().isEmpty()) {
+            r.issuerPrimary = issuer.getCName();
+        } else {
+            r.issuerPrimary = issuer.getDName();
+        }
+        return r;
+    }
+
+    static byte[] getFingerprint(byte[] encodedCertificate) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(encodedCertificate);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Read the cache.
+     *
+     * @return the records by alias, in the order they were written, empty if there is no
+     *         valid cache.
+     */
+    LinkedHashMap<String, Record> read() {
+        final LinkedHashMap<String, Record> records = new LinkedHashMap<String, Record>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION || !Build.FINGERPRINT.equals(in.readUTF())) {
+                return records;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Record r = new Record();
+                r.alias = in.readUTF();
+                r.fingerprint = new byte[in.readInt()];
+                in.readFully(r.fingerprint);
+                r.subjectPrimary = in.readUTF();
+                r.subjectSecondary = in.readUTF();
+                r.issuerPrimary = in.readUTF();
+                r.deleted = in.readBoolean();
+                records.put(r.alias, r);
+            }
+        } catch (FileNotFoundException e) {
+            // No cache yet
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cache", e);
+            records.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return records;
+    }
+
+    void write(Collection<Record> records) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeUTF(Build.FINGERPRINT);
+            out.writeInt(records.size());
+            for (Record r : records) {
+                out.writeUTF(r.alias);
+                out.writeInt(r.fingerprint.length);
+                out.write(r.fingerprint);
+                out.writeUTF(r.subjectPrimary);
+                out.writeUTF(r.subjectSecondary);
+                out.writeUTF(r.issuerPrimary);
+                out.writeBoolean(r.deleted);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write cache", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+
+    /**
+     * Record the new state of a system certificate enabled or disabled by the user.
+     */
+    void setDeleted(String alias, boolean deleted) {
+        final HashMap<String, Record> records = read();
+        final Record r = records.get(alias);
+        if (r != null && r.deleted != deleted) {
+            r.deleted = deleted;
+            write(records.values());
+        }
+    }
+
+    /**
+     * Drop a certificate removed by the user, or found to have changed.
+     */
+    void remove(String alias) {
+        final HashMap<String, Record> records = read();
+        if (records.remove(alias) != null) {
+            write(records.values());
+        }
+    }
+}
@@ -54,10 +54,11 @@ import android.widget.TextView;
 
 import com.android.internal.util.ParcelableString;
 
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.HashMap;
 
@@ -417,6 +418,8 @@ public class TrustedCredentialsSettings extends Fragment {
             private ProgressBar mProgressBar;
             private View mList;
             private Context mContext;
+            // The cached certificates, shown while the aliases are checked
+            private SparseArray<List<CertHolder>> mCachedCertHolders;
 
             public AliasLoader() {
                 mContext = getActivity();
@@ -448,6 +451,31 @@ public class TrustedCredentialsSettings extends Fragment {
                         return certHoldersByProfile;
                     }
 
+                    // Show the cached certificates first, the KeyChain service is slow to bind
+                    SparseArray<LinkedHashMap<String, TrustedCertificateCache.Record>>
+                            recordsByProfileId = new SparseArray<
+                            LinkedHashMap<String, TrustedCertificateCache.Record>>(n);
+                    SparseArray<List<CertHolder>> cachedCertHolders =
+                            new SparseArray<List<CertHolder>>(n);
+                    boolean cached = false;
+                    for (int i = 0; i < n; ++i) {
+                        int profileId = profiles.get(i).getIdentifier();
+                        LinkedHashMap<String, TrustedCertificateCache.Record> records =
+                                getCache(context, profileId).read();
+                        recordsByProfileId.put(profileId, records);
+                        List<CertHolder> certHolders = new ArrayList<CertHolder>(records.size());
+                        for (TrustedCertificateCache.Record record : records.values()) {
+                            certHolders.add(new CertHolder(mAdapter, mTab, record, profileId));
+                        }
+                        Collections.sort(certHolders);
+                        cachedCertHolders.put(profileId, certHolders);
+                        cached |= !records.isEmpty();
+                    }
+                    if (cached && !isCancelled()) {
+                        mCachedCertHolders = cachedCertHolders;
+                        publishProgress();
+                    }
+
                     int max = 0;
                     int progress = 0;
                     for (int i = 0; i < n; ++i) {
@@ -462,7 +490,13 @@ public class TrustedCredentialsSettings extends Fragment {
                         if (isCancelled()) {
                             return new SparseArray<List<CertHolder>>();
                         }
-                        max += aliases.size();
+                        LinkedHashMap<String, TrustedCertificateCache.Record> records =
+                                recordsByProfileId.get(profileId);
+                        for (int j = 0; j < aliases.size(); ++j) {
+                            if (!records.containsKey(aliases.get(j).string)) {
+                                max++;
+                            }
+                        }
                         aliasesByProfileId.put(profileId, aliases);
                     }
                     for (int i = 0; i < n; ++i) {
@@ -474,16 +508,34 @@ public class TrustedCredentialsSettings extends Fragment {
                         }
                         IKeyChainService service = mKeyChainConnectionByProfileId.get(profileId)
                                 .getService();
-                        List<CertHolder> certHolders = new ArrayList<CertHolder>(max);
+                        LinkedHashMap<String, TrustedCertificateCache.Record> cachedRecords =
+                                recordsByProfileId.get(profileId);
+                        LinkedHashMap<String, TrustedCertificateCache.Record> records =
+                                new LinkedHashMap<String, TrustedCertificateCache.Record>();
+                        boolean changed = false;
+                        List<CertHolder> certHolders = new ArrayList<CertHolder>(aliases.size());
                         final int aliasMax = aliases.size();
                         for (int j = 0; j < aliasMax; ++j) {
                             String alias = aliases.get(j).string;
-                            byte[] encodedCertificate = service.getEncodedCaCertificate(alias,
-                                    true);
-                            X509Certificate cert = KeyChain.toCertificate(encodedCertificate);
-                            certHolders.add(new CertHolder(service, mAdapter,
-                                    mTab, alias, cert, profileId));
-                            publishProgress(++progress, max);
+                            TrustedCertificateCache.Record record = cachedRecords.get(alias);
+                            if (record == null) {
+                                // Only the certificates not cached yet are fetched and decoded
+                                byte[] encodedCertificate = service.getEncodedCaCertificate(alias,
+                                        true);
+                                record = TrustedCertificateCache.parse(alias, encodedCertificate);
+                                changed = true;
+                                publishProgress(++progress, max);
+                            }
+                            boolean deleted = isDeleted(service, alias);
+                            if (record.deleted != deleted) {
+                                record.deleted = deleted;
+                                changed = true;
+                            }
+                            records.put(alias, record);
+                            certHolders.add(new CertHolder(mAdapter, mTab, record, profileId));
+                        }
+                        if (changed || records.size() != cachedRecords.size()) {
+                            getCache(context, profileId).write(records.values());
                         }
                         Collections.sort(certHolders);
                         certHoldersByProfile.put(profileId, certHolders);
@@ -497,7 +549,22 @@ public class TrustedCredentialsSettings extends Fragment {
                     return new SparseArray<List<CertHolder>>();
                 }
             }
+            private boolean isDeleted(IKeyChainService service, String alias) {
+                try {
+                    return mTab.deleted(service, alias);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "Remote exception while checking if alias " + alias
+                            + " is deleted.", e);
+                    return false;
+                }
+            }
             @Override protected void onProgressUpdate(Integer... progressAndMax) {
+                if (progressAndMax.length == 0) {
+                    // The cached certificates are ready
+                    showCertHolders(mCachedCertHolders);
+                    mCachedCertHolders = null;
+                    return;
+                }
                 int progress = progressAndMax[0];
                 int max = progressAndMax[1];
                 if (max != mProgressBar.getMax()) {
@@ -506,6 +573,11 @@ public class TrustedCredentialsSettings extends Fragment {
                 mProgressBar.setProgress(progress);
             }
             @Override protected void onPostExecute(SparseArray<List<CertHolder>> certHolders) {
+                showCertHolders(certHolders);
+                mProgressBar.setProgress(0);
+                mAliasLoaders.remove(mTab);
+            }
+            private void showCertHolders(SparseArray<List<CertHolder>> certHolders) {
                 mCertHoldersByUserId.clear();
                 final int n = certHolders.size();
                 for (int i = 0; i < n; ++i) {
@@ -514,11 +586,13 @@ public class TrustedCredentialsSettings extends Fragment {
                 mAdapter.notifyDataSetChanged();
                 mProgressBar.setVisibility(View.GONE);
                 mList.setVisibility(View.VISIBLE);
-                mProgressBar.setProgress(0);
-                mAliasLoaders.remove(mTab);
             }
         }
 
+        private TrustedCertificateCache getCache(Context context, int profileId) {
+            return new TrustedCertificateCache(context.getCacheDir(), mTab.mTag, profileId);
+        }
+
         public void remove(CertHolder certHolder) {
             if (mCertHoldersByUserId != null) {
                 final List<CertHolder> certs = mCertHoldersByUserId.get(certHolder.mProfileId);
@@ -531,62 +605,27 @@ public class TrustedCredentialsSettings extends Fragment {
 
     private static class CertHolder implements Comparable<CertHolder> {
         public int mProfileId;
-        private final IKeyChainService mService;
         private final TrustedCertificateAdapterCommons mAdapter;
         private final Tab mTab;
         private final String mAlias;
-        private final X509Certificate mX509Cert;
+        private final byte[] mFingerprint;
 
-        private final SslCertificate mSslCert;
         private final String mSubjectPrimary;
         private final String mSubjectSecondary;
         private boolean mDeleted;
 
-        private CertHolder(IKeyChainService service,
-                           TrustedCertificateAdapterCommons adapter,
+        private CertHolder(TrustedCertificateAdapterCommons adapter,
                            Tab tab,
-                           String alias,
-                           X509Certificate x509Cert,
+                           TrustedCertificateCache.Record record,
                            int profileId) {
             mProfileId = profileId;
-            mService = service;
             mAdapter = adapter;
             mTab = tab;
-            mAlias = alias;
-            mX509Cert = x509Cert;
-
-            mSslCert = new SslCertificate(x509Cert);
-
-            String cn = mSslCert.getIssuedTo().getCName();
-            String o = mSslCert.getIssuedTo().getOName();
-            String ou = mSslCert.getIssuedTo().getUName();
-            // if we have a O, use O as primary subject, secondary prefer CN over OU
-            // if we don't have an O, use CN as primary, empty secondary
-            // if we don't have O or CN, use DName as primary, empty secondary
-            if (!o.isEmpty()) {
-                if (!cn.isEmpty()) {
-                    mSubjectPrimary = o;
-                    mSubjectSecondary = cn;
-                } else {
-                    mSubjectPrimary = o;
-                    mSubjectSecondary = ou;
-                }
-            } else {
-                if (!cn.isEmpty()) {
-                    mSubjectPrimary = cn;
-                    mSubjectSecondary = "";
-                } else {
-                    mSubjectPrimary = mSslCert.getIssuedTo().getDName();
-                    mSubjectSecondary = "";
-                }
-            }
-            try {
-                mDeleted = mTab.deleted(mService, mAlias);
-            } catch (RemoteException e) {
-                Log.e(TAG, "Remote exception while checking if alias " + mAlias + " is deleted.",
-                        e);
-                mDeleted = false;
-            }
+            mAlias = record.alias;
+            mFingerprint = record.fingerprint;
+            mSubjectPrimary = record.subjectPrimary;
+            mSubjectSecondary = record.subjectSecondary;
+            mDeleted = record.deleted;
         }
         @Override public int compareTo(CertHolder o) {
             int primary = this.mSubjectPrimary.compareToIgnoreCase(o.mSubjectPrimary);
@@ -643,6 +682,10 @@ public class TrustedCredentialsSettings extends Fragment {
     }
 
     private void showCertDialog(final CertHolder certHolder) {
+        if (mAliasLoaders.containsKey(certHolder.mTab)) {
+            // Shown from the cache, the KeyChain service is not bound yet
+            return;
+        }
         AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
         builder.setTitle(com.android.internal.R.string.ssl_certificate);
 
@@ -735,6 +778,11 @@ public class TrustedCredentialsSettings extends Fragment {
             certificates = new ArrayList<X509Certificate>(n);
             for (int i = 0; i < n; ++i) {
                 byte[] encodedCertificate = service.getEncodedCaCertificate(chain.get(i), true);
+                if (i == 0 && !Arrays.equals(certHolder.mFingerprint,
+                        TrustedCertificateCache.getFingerprint(encodedCertificate))) {
+                    // The cached certificate changed, load it again
+                    invalidateCertHolder(certHolder);
+                }
                 X509Certificate certificate = KeyChain.toCertificate(encodedCertificate);
                 certificates.add(certificate);
             }
@@ -748,6 +796,18 @@ public class TrustedCredentialsSettings extends Fragment {
         }
     }
 
+    private void invalidateCertHolder(final CertHolder certHolder) {
+        final TrustedCertificateCache cache = new TrustedCertificateCache(
+                getActivity().getCacheDir(), certHolder.mTab.mTag, certHolder.mProfileId);
+        // On the serial executor, before the loader
+        AsyncTask.execute(new Runnable() {
+            @Override public void run() {
+                cache.remove(certHolder.mAlias);
+            }
+        });
+        certHolder.mAdapter.load();
+    }
+
     private void addCertDetails(X509Certificate certificate, final ArrayList<View> views,
             final ArrayList<String> titles) {
         SslCertificate sslCert = new SslCertificate(certificate);
@@ -757,9 +817,12 @@ public class TrustedCredentialsSettings extends Fragment {
 
     private class AliasOperation extends AsyncTask<Void, Void, Boolean> {
         private final CertHolder mCertHolder;
+        private final TrustedCertificateCache mCache;
 
         private AliasOperation(CertHolder certHolder) {
             mCertHolder = certHolder;
+            mCache = new TrustedCertificateCache(getActivity().getCacheDir(),
+                    certHolder.mTab.mTag, certHolder.mProfileId);
             mAliasOperation = this;
         }
 
@@ -770,14 +833,22 @@ public class TrustedCredentialsSettings extends Fragment {
                         mCertHolder.mProfileId);
                 IKeyChainService service = keyChainConnection.getService();
                 if (mCertHolder.mDeleted) {
-                    byte[] bytes = mCertHolder.mX509Cert.getEncoded();
+                    byte[] bytes = service.getEncodedCaCertificate(mCertHolder.mAlias, true);
                     service.installCaCertificate(bytes);
+                    mCache.setDeleted(mCertHolder.mAlias, false);
                     return true;
                 } else {
-                    return service.deleteCaCertificate(mCertHolder.mAlias);
+                    boolean ok = service.deleteCaCertificate(mCertHolder.mAlias);
+                    if (ok) {
+                        if (mCertHolder.mTab.mSwitch) {
+                            mCache.setDeleted(mCertHolder.mAlias, true);
+                        } else {
+                            mCache.remove(mCertHolder.mAlias);
+                        }
+                    }
+                    return ok;
                 }
-            } catch (CertificateEncodingException | SecurityException | IllegalStateException
-                    | RemoteException e) {
+            } catch (SecurityException | IllegalStateException | RemoteException e) {
                 Log.w(TAG, "Error while toggling alias " + mCertHolder.mAlias,
                         e);
                 return false;
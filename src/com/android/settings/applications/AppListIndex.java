@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+
+import com.android.settings.applications.ApplicationsState.AppEntry;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The sorted list of the application entries of one filter, as shown by a tab of
+ * {@link ManageApplications}.
+ *
+ * Once built, the list is kept sorted by moving single entries with a binary search when their
+ * sort key changes, instead of sorting the whole list again.  A sorted index of the normalized
+ * labels, from each word start, gives the entries matching a type-to-filter prefix.
+ *
+ * The sort keys are copied when an entry is inserted, so that it can be found again after its
+ * size or label changed.  Methods are synchronized as the prefix filtering runs on the
+ * {@link android.widget.Filter} thread, and the list of entries is handed out as an
+ * unmodifiable copy, made again after the order changed.
+ */
+class AppListIndex {
+    static final int SORT_ALPHA = 0;
+    static final int SORT_SIZE = 1;
+    static final int SORT_INTERNAL_SIZE = 2;
+    static final int SORT_EXTERNAL_SIZE = 3;
+
+    private static final class Item {
+        final AppEntry entry;
+        boolean normal;
+        String label;
+        String normalizedLabel;
+        long size;
+
+        Item(AppEntry entry) {
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * A normalized label from one of its word starts.
+     */
+    private static final class Token {
+        final String suffix;
+        final Item item;
+
+        Token(String suffix, Item item) {
+            this.suffix = suffix;
+            this.item = item;
+        }
+    }
+
+    private static final Comparator<Token> TOKEN_COMPARATOR = new Comparator<Token>() {
+        @Override
+        public int compare(Token lhs, Token rhs) {
+            int result = lhs.suffix.compareTo(rhs.suffix);
+            if (result == 0 && lhs.item != rhs.item) {
+                // A lookup token, without item, comes first
+                if (lhs.item == null) return -1;
+                if (rhs.item == null) return 1;
+                result = compareIds(lhs.item, rhs.item);
+            }
+            return result;
+        }
+    };
+
+    private final int mSortMode;
+    private final Collator mCollator = Collator.getInstance();
+
+    // Same order as the ApplicationsState comparators, the id making it total.
+    private final Comparator<Item> mItemComparator = new Comparator<Item>() {
+        @Override
+        public int compare(Item lhs, Item rhs) {
+            if (mSortMode == SORT_ALPHA) {
+                if (lhs.normal != rhs.normal) {
+                    return lhs.normal ? -1 : 1;
+                }
+            } else {
+                if (lhs.size < rhs.size) return 1;
+                if (lhs.size > rhs.size) return -1;
+            }
+            int result = mCollator.compare(lhs.label, rhs.label);
+            if (result == 0) {
+                result = compareIds(lhs, rhs);
+            }
+            return result;
+        }
+    };
+
+    private final ArrayList<Item> mItems = new ArrayList<Item>();
+    // The entries of mItems, in the same order.
+    private final ArrayList<AppEntry> mEntries = new ArrayList<AppEntry>();
+    // Unmodifiable copy of mEntries, null after they changed until it is asked for.
+    private List<AppEntry> mEntriesCopy;
+    private final HashMap<String, Item> mItemsByPackage = new HashMap<String, Item>();
+    private final ArrayList<Token> mTokens = new ArrayList<Token>();
+
+    /**
+     * @param entries the entries of the filter, usually already sorted by the
+     *        {@link ApplicationsState} comparator matching sortMode.
+     */
+    AppListIndex(int sortMode, List<AppEntry> entries) {
+        mSortMode = sortMode;
+        for (int i=0; i<entries.size(); i++) {
+            final Item item = new Item(entries.get(i));
+            readKeys(item);
+            mItems.add(item);
+            mItemsByPackage.put(item.entry.info.packageName, item);
+            addTokens(item, mTokens);
+        }
+        // Mostly a merge pass, the entries are sorted already
+        Collections.sort(mItems, mItemComparator);
+        Collections.sort(mTokens, TOKEN_COMPARATOR);
+        for (int i=0; i<mItems.size(); i++) {
+            mEntries.add(mItems.get(i).entry);
+        }
+    }
+
+    /**
+     * Return the sorted list of entries.  It is not changed by {@link #update(String)}, so
+     * it can be read from any thread; the same list is returned until the order changes.
+     */
+    synchronized List<AppEntry> getEntries() {
+        if (mEntriesCopy == null) {
+            mEntriesCopy = Collections.unmodifiableList(new ArrayList<AppEntry>(mEntries));
+        }
+        return mEntriesCopy;
+    }
+
+    /**
+     * Move the entry of this package to its new position if its sort key changed.
+     *
+     * @return whether the order of the entries changed.
+     */
+    synchronized boolean update(String packageName) {
+        final Item item = mItemsByPackage.get(packageName);
+        if (item == null) {
+            return false;
+        }
+        final Item updated = new Item(item.entry);
+        readKeys(updated);
+        final boolean labelChanged = !updated.label.equals(item.label);
+        if (!labelChanged && updated.normal == item.normal && updated.size == item.size) {
+            return false;
+        }
+
+        final int oldIndex = Collections.binarySearch(mItems, item, mItemComparator);
+        if (oldIndex < 0) {
+            // Should not happen: the keys are only changed here
+            return false;
+        }
+        mItems.remove(oldIndex);
+        mEntries.remove(oldIndex);
+        if (labelChanged) {
+            removeTokens(item);
+        }
+
+        item.normal = updated.normal;
+        item.label = updated.label;
+        item.normalizedLabel = updated.normalizedLabel;
+        item.size = updated.size;
+        if (labelChanged) {
+            final ArrayList<Token> tokens = new ArrayList<Token>();
+            addTokens(item, tokens);
+            for (int i=0; i<tokens.size(); i++) {
+                final Token token = tokens.get(i);
+                mTokens.add(-Collections.binarySearch(mTokens, token, TOKEN_COMPARATOR) - 1,
+                        token);
+            }
+        }
+
+        final int newIndex = -Collections.binarySearch(mItems, item, mItemComparator) - 1;
+        mItems.add(newIndex, item);
+        mEntries.add(newIndex, item.entry);
+        if (newIndex != oldIndex) {
+            mEntriesCopy = null;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return the entries with a word of their normalized label starting with the prefix,
+     * in the list order.
+     */
+    synchronized ArrayList<AppEntry> filter(String normalizedPrefix) {
+        final HashSet<Item> matches = new HashSet<Item>();
+        int start = Collections.binarySearch(mTokens, new Token(normalizedPrefix, null),
+                TOKEN_COMPARATOR);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        for (int i=start; i<mTokens.size(); i++) {
+            final Token token = mTokens.get(i);
+            if (!token.suffix.startsWith(normalizedPrefix)) {
+                break;
+            }
+            matches.add(token.item);
+        }
+
+        final ArrayList<Item> items = new ArrayList<Item>(matches);
+        Collections.sort(items, mItemComparator);
+        final ArrayList<AppEntry> entries = new ArrayList<AppEntry>(items.size());
+        for (int i=0; i<items.size(); i++) {
+            entries.add(items.get(i).entry);
+        }
+        return entries;
+    }
+
+    private void readKeys(Item item) {
+        final AppEntry entry = item.entry;
+        synchronized (entry) {
+            item.normal = entry.info.enabled
+                    && (entry.info.flags&ApplicationInfo.FLAG_INSTALLED) != 0;
+            item.label = entry.label != null ? entry.label : entry.info.packageName;
+            item.normalizedLabel = entry.label != null ? entry.getNormalizedLabel()
+                    : ApplicationsState.normalize(item.label);
+            switch (mSortMode) {
+                case SORT_SIZE:
+                    item.size = entry.size;
+                    break;
+                case SORT_INTERNAL_SIZE:
+                    item.size = entry.internalSize;
+                    break;
+                case SORT_EXTERNAL_SIZE:
+                    item.size = entry.externalSize;
+                    break;
+            }
+        }
+    }
+
+    private static void addTokens(Item item, List<Token> tokens) {
+        final String label = item.normalizedLabel;
+        tokens.add(new Token(label, item));
+        int space = label.indexOf(' ');
+        while (space >= 0) {
+            tokens.add(new Token(label.substring(space + 1), item));
+            space = label.indexOf(' ', space + 1);
+        }
+    }
+
+    private void removeTokens(Item item) {
+        final ArrayList<Token> tokens = new ArrayList<Token>();
+        addTokens(item, tokens);
+        for (int i=0; i<tokens.size(); i++) {
+            final int index = Collections.binarySearch(mTokens, tokens.get(i),
+                    TOKEN_COMPARATOR);
+            if (index >= 0) {
+                mTokens.remove(index);
+            }
+        }
+    }
+
+    private static int compareIds(Item lhs, Item rhs) {
+        return lhs.entry.id < rhs.entry.id ? -1 : (lhs.entry.id == rhs.entry.id ? 0 : 1);
+    }
+}
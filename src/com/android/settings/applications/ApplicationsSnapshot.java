@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * On-disk snapshot of the application entries computed by {@link ApplicationsState}, so that
+ * the application list can be shown with labels and sizes as soon as the process starts.
+ *
+ * A record is only valid for the apk it was computed from: it is keyed by package name and
+ * stores the apk path and modification time. Labels are only valid for the locale they were
+ * loaded with.
+ */
+class ApplicationsSnapshot {
+    static final String TAG = "ApplicationsSnapshot";
+
+    private static final String FILE_NAME = "applications_snapshot";
+    private static final int VERSION = 1;
+
+    static class Record {
+        String packageName;
+        String sourceDir;
+        long apkLastModified;
+        String label;
+        String normalizedLabel;
+        long size;
+        long internalSize;
+        long externalSize;
+        long cacheSize;
+        long codeSize;
+        long dataSize;
+        long externalCodeSize;
+        long externalDataSize;
+        long externalCacheSize;
+
+        /**
+         * Whether this record was computed from the given apk.
+         */
+        boolean matches(File apkFile, long apkLastModified) {
+            return apkLastModified != 0 && this.apkLastModified == apkLastModified
+                    && apkFile.getPath().equals(sourceDir);
+        }
+    }
+
+    private final AtomicFile mFile;
+
+    ApplicationsSnapshot(File dir) {
+        mFile = new AtomicFile(new File(dir, FILE_NAME));
+    }
+
+    /**
+     * Read the snapshot. Labels are dropped if the snapshot was written for another locale.
+     *
+     * @return the records by package name, empty if there is no valid snapshot.
+     */
+    HashMap<String, Record> read(String locale) {
+        final HashMap<String, Record> records = new HashMap<String, Record>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION) {
+                return records;
+            }
+            final boolean sameLocale = locale.equals(in.readUTF());
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Record r = new Record();
+                r.packageName = in.readUTF();
+                r.sourceDir = in.readUTF();
+                r.apkLastModified = in.readLong();
+                final String label = in.readUTF();
+                final String normalizedLabel = in.readUTF();
+                if (sameLocale) {
+                    r.label = label;
+                    r.normalizedLabel = normalizedLabel;
+                }
+                r.size = in.readLong();
+                r.internalSize = in.readLong();
+                r.externalSize = in.readLong();
+                r.cacheSize = in.readLong();
+                r.codeSize = in.readLong();
+                r.dataSize = in.readLong();
+                r.externalCodeSize = in.readLong();
+                r.externalDataSize = in.readLong();
+                r.externalCacheSize = in.readLong();
+                records.put(r.packageName, r);
+            }
+        } catch (FileNotFoundException e) {
+            // No snapshot yet
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read snapshot", e);
+            records.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return records;
+    }
+
+    void write(String locale, List<Record> records) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeUTF(locale);
+            out.writeInt(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                Record r = records.get(i);
+                out.writeUTF(r.packageName);
+                out.writeUTF(r.sourceDir);
+                out.writeLong(r.apkLastModified);
+                out.writeUTF(r.label);
+                out.writeUTF(r.normalizedLabel);
+                out.writeLong(r.size);
+                out.writeLong(r.internalSize);
+                out.writeLong(r.externalSize);
+                out.writeLong(r.cacheSize);
+                out.writeLong(r.codeSize);
+                out.writeLong(r.dataSize);
+                out.writeLong(r.externalCodeSize);
+                out.writeLong(r.externalDataSize);
+                out.writeLong(r.externalCacheSize);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write snapshot", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
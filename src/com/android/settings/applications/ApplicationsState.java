@@ -23,6 +23,7 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import java.io.File;
+import java.io.PrintWriter;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
@@ -30,7 +31,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -41,6 +45,8 @@ public class ApplicationsState {
     static final String TAG = "ApplicationsState";
     static final boolean DEBUG = false;
     static final boolean DEBUG_LOCKING = false;
+    // The main thread logs each wait for mEntriesMap longer than this.
+    static final long CONTENTION_WARN_NANOS = 1000*1000;
 
     public static interface Callbacks {
         public void onRunningStateChanged(boolean running);
@@ -59,6 +65,15 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Number of package size requests kept in flight at the same time.
+    static final int DEFAULT_MAX_SIZE_REQUESTS = 4;
+    // Used while a list is sorted by size, as it can't be ordered until the sizes are known.
+    static final int SIZE_SORT_MAX_SIZE_REQUESTS = 8;
+    // Size changes are reported to the sessions at most once per this delay.
+    static final long SIZE_CHANGED_BATCH_DELAY = 100;
+    // A size request without an answer after this delay is issued again.
+    static final long SIZE_REQUEST_TIMEOUT = 20*1000;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -88,6 +103,7 @@ public class ApplicationsState {
     
     public static class AppEntry extends SizeInfo {
         final File apkFile;
+        final long apkLastModified;
         final long id;
         String label;
         long size;
@@ -115,13 +131,26 @@ public class ApplicationsState {
 
         String normalizedLabel;
 
-        AppEntry(Context context, ApplicationInfo info, long id) {
+        // Whether the label and sizes were restored from the snapshot.
+        boolean restored;
+
+        AppEntry(Context context, ApplicationInfo info, long id,
+                ApplicationsSnapshot.Record record) {
             apkFile = new File(info.sourceDir);
+            apkLastModified = apkFile.lastModified();
             this.id = id;
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
-            ensureLabel(context);
+            if (record != null && record.label != null
+                    && record.matches(apkFile, apkLastModified)) {
+                this.mounted = true;
+                this.label = record.label;
+                this.normalizedLabel = record.normalizedLabel;
+                this.restored = true;
+            } else {
+                ensureLabel(context);
+            }
         }
         
         void ensureLabel(Context context) {
@@ -272,20 +301,135 @@ public class ApplicationsState {
     boolean mHaveDisabledApps;
 
     // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // to protect access to these.  Readers that do not need to modify them
+    // should use mEntriesView instead.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
     final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
-    long mCurId = 1;
-    String mCurComputingSizePkg;
+    // Incremented each time mApplications changes.
+    int mApplicationsGeneration;
+    // Entries are created without holding mEntriesMap.
+    final AtomicLong mCurId = new AtomicLong(1);
     boolean mSessionsChanged;
 
+    // Immutable copy of the above, published each time they change.
+    volatile EntriesView mEntriesView = new EntriesView();
+
+    // Packages with a pending getPackageSizeInfo() request.  Synchronize on
+    // mComputingSizePkgs.
+    final HashSet<String> mComputingSizePkgs = new HashSet<String>();
+    int mMaxSizeRequests = DEFAULT_MAX_SIZE_REQUESTS;
+
+    // Snapshot of the entries from a previous run.  The records are only kept until
+    // all the entries have been created.  Written with mEntriesMap held.
+    final ApplicationsSnapshot mSnapshot;
+    volatile HashMap<String, ApplicationsSnapshot.Record> mSnapshotRecords;
+    // Only touched by the background thread.
+    boolean mSnapshotLoaded;
+    volatile boolean mSnapshotDirty;
+
+    // Time the main thread spent waiting for mEntriesMap.
+    // Synchronize on mContentionStats.
+    final long[] mContentionStats = new long[3];
+    static final int CONTENTION_COUNT = 0;
+    static final int CONTENTION_TOTAL_NANOS = 1;
+    static final int CONTENTION_MAX_NANOS = 2;
+
+    // Packages whose size changed and that have not been reported to the sessions
+    // yet.  Synchronize on mPendingSizeChanges.
+    final ArrayList<String> mPendingSizeChanges = new ArrayList<String>();
+
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
+    /**
+     * Immutable copy of the entries and applications.  It can be read from any thread
+     * without holding mEntriesMap; the state of each entry is still protected by the entry.
+     */
+    static final class EntriesView {
+        final HashMap<String, AppEntry> entriesMap;
+        final List<AppEntry> appEntries;
+        final List<ApplicationInfo> applications;
+        // The mApplicationsGeneration of the applications above.
+        final int applicationsGeneration;
+
+        EntriesView() {
+            entriesMap = new HashMap<String, AppEntry>();
+            appEntries = Collections.emptyList();
+            applications = Collections.emptyList();
+            applicationsGeneration = -1;
+        }
+
+        EntriesView(HashMap<String, AppEntry> entriesMap, ArrayList<AppEntry> appEntries,
+                List<ApplicationInfo> applications, int applicationsGeneration) {
+            this.entriesMap = new HashMap<String, AppEntry>(entriesMap);
+            this.appEntries = Collections.unmodifiableList(new ArrayList<AppEntry>(appEntries));
+            this.applications = Collections.unmodifiableList(
+                    new ArrayList<ApplicationInfo>(applications));
+            this.applicationsGeneration = applicationsGeneration;
+        }
+    }
+
+    /**
+     * Publish a new copy of the entries.  Must be called by the writers of mEntriesMap,
+     * mAppEntries or mApplications before they release the lock.
+     */
+    void publishEntriesLocked() {
+        mEntriesView = new EntriesView(mEntriesMap, mAppEntries, mApplications,
+                mApplicationsGeneration);
+    }
+
+    /**
+     * Return the time to pass to {@link #noteLockAcquired} once mEntriesMap is acquired.
+     */
+    static long startLockWait() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Account for the time the main thread waited for mEntriesMap.  The other threads are
+     * not counted, only the main thread must never wait for the loader.
+     */
+    void noteLockAcquired(String where, long waitStart) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            return;
+        }
+        final long waited = SystemClock.elapsedRealtimeNanos() - waitStart;
+        synchronized (mContentionStats) {
+            mContentionStats[CONTENTION_COUNT]++;
+            mContentionStats[CONTENTION_TOTAL_NANOS] += waited;
+            if (waited > mContentionStats[CONTENTION_MAX_NANOS]) {
+                mContentionStats[CONTENTION_MAX_NANOS] = waited;
+            }
+        }
+        if (waited > CONTENTION_WARN_NANOS) {
+            Log.w(TAG, where + " waited " + (waited / 1000) + "us for the lock on main thread");
+        }
+    }
+
+    /**
+     * Print the main thread lock contention counters, if the state was created.
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+        final ApplicationsState state;
+        synchronized (sLock) {
+            state = sInstance;
+        }
+        if (state == null) {
+            return;
+        }
+        synchronized (state.mContentionStats) {
+            writer.print(prefix);
+            writer.println("Applications state main thread lock waits: count="
+                    + state.mContentionStats[CONTENTION_COUNT]
+                    + " totalWaitUs=" + (state.mContentionStats[CONTENTION_TOTAL_NANOS] / 1000)
+                    + " maxWaitUs=" + (state.mContentionStats[CONTENTION_MAX_NANOS] / 1000));
+        }
+    }
+
     /**
      * Releases the member variables in ApplicationsState
      */
@@ -297,6 +441,8 @@ public class ApplicationsState {
             if (mApplications != null) {
                 mApplications.clear();
             }
+            mApplicationsGeneration++;
+            publishEntriesLocked();
         }
     }
 
@@ -409,12 +555,12 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_PACKAGE_SIZE_CHANGED: {
-                    for (int i=0; i<mActiveSessions.size(); i++) {
-                        mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(
-                                (String)msg.obj);
-                    }
+                    dispatchPendingSizeChanges();
                 } break;
                 case MSG_ALL_SIZES_COMPUTED: {
+                    // Report the last sizes before telling they are all computed
+                    removeMessages(MSG_PACKAGE_SIZE_CHANGED);
+                    dispatchPendingSizeChanges();
                     for (int i=0; i<mActiveSessions.size(); i++) {
                         mActiveSessions.get(i).mCallbacks.onAllSizesComputed();
                     }
@@ -427,6 +573,20 @@ public class ApplicationsState {
                 } break;
             }
         }
+
+        private void dispatchPendingSizeChanges() {
+            final String[] packageNames;
+            synchronized (mPendingSizeChanges) {
+                packageNames = mPendingSizeChanges.toArray(
+                        new String[mPendingSizeChanges.size()]);
+                mPendingSizeChanges.clear();
+            }
+            for (int i=0; i<mActiveSessions.size(); i++) {
+                for (int j=0; j<packageNames.length; j++) {
+                    mActiveSessions.get(i).mCallbacks.onPackageSizeChanged(packageNames[j]);
+                }
+            }
+        }
     }
 
     final MainHandler mMainHandler = new MainHandler();
@@ -448,6 +608,7 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mSnapshot = new ApplicationsSnapshot(mContext.getCacheDir());
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
@@ -503,12 +664,21 @@ public class ApplicationsState {
         }
 
         public void resume() {
+            if (mResumed) {
+                return;
+            }
+            // Sessions are only resumed and paused on the main thread, so the state is
+            // still paused once the lock is taken if it was before the query.
+            final List<ApplicationInfo> applications =
+                    ApplicationsState.this.mResumed ? null : loadApplications();
             if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
+            final long waitStart = startLockWait();
             synchronized (mEntriesMap) {
+                noteLockAcquired("resume", waitStart);
                 if (!mResumed) {
                     mResumed = true;
                     mSessionsChanged = true;
-                    doResumeIfNeededLocked();
+                    doResumeIfNeededLocked(applications);
                 }
             }
             if (DEBUG_LOCKING) Log.v(TAG, "...resume releasing lock");
@@ -516,7 +686,9 @@ public class ApplicationsState {
 
         public void pause() {
             if (DEBUG_LOCKING) Log.v(TAG, "pause about to acquire lock...");
+            final long waitStart = startLockWait();
             synchronized (mEntriesMap) {
+                noteLockAcquired("pause", waitStart);
                 if (mResumed) {
                     mResumed = false;
                     mSessionsChanged = true;
@@ -530,7 +702,9 @@ public class ApplicationsState {
         // Creates a new list of app entries with the given filter and comparator.
         ArrayList<AppEntry> rebuild(AppFilter filter, Comparator<AppEntry> comparator) {
             synchronized (mRebuildSync) {
+                final long waitStart = startLockWait();
                 synchronized (mEntriesMap) {
+                    noteLockAcquired("rebuild", waitStart);
                     mRebuildingSessions.add(this);
                     mRebuildRequested = true;
                     mRebuildAsync = false;
@@ -585,24 +759,42 @@ public class ApplicationsState {
                 filter.init();
             }
             
-            List<ApplicationInfo> apps;
-            synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
-            }
+            final EntriesView view = mEntriesView;
+            final List<ApplicationInfo> apps = view.applications;
 
             ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
+            boolean entriesChanged = false;
             if (DEBUG) Log.i(TAG, "Rebuilding...");
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
+                    AppEntry entry = view.entriesMap.get(info.packageName);
+                    if (entry == null) {
+                        // Created outside of the lock, only taken to add the entry
+                        entry = createEntry(info);
+                        synchronized (mEntriesMap) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
+                            entry = addEntryLocked(entry);
+                            if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                        }
+                        entriesChanged = true;
+                    } else if (entry.info != info) {
+                        synchronized (entry) {
+                            entry.info = info;
+                        }
+                    }
+                    synchronized (entry) {
                         entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
                     }
+                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    filteredApps.add(entry);
+                }
+            }
+
+            if (entriesChanged) {
+                // Publish once for the whole list rather than copying the entries for each one
+                synchronized (mEntriesMap) {
+                    publishEntriesLocked();
                 }
             }
 
@@ -629,7 +821,9 @@ public class ApplicationsState {
 
         public void release() {
             pause();
+            final long waitStart = startLockWait();
             synchronized (mEntriesMap) {
+                noteLockAcquired("release", waitStart);
                 mSessions.remove(this);
             }
         }
@@ -637,13 +831,39 @@ public class ApplicationsState {
 
     public Session newSession(Callbacks callbacks) {
         Session s = new Session(callbacks);
+        final long waitStart = startLockWait();
         synchronized (mEntriesMap) {
+            noteLockAcquired("newSession", waitStart);
             mSessions.add(s);
         }
         return s;
     }
 
-    void doResumeIfNeededLocked() {
+    /**
+     * Query the installed applications, trimming out the ones that are disabled by
+     * something different than the user.  Called without holding mEntriesMap.
+     */
+    List<ApplicationInfo> loadApplications() {
+        List<ApplicationInfo> applications = mPm.getInstalledApplications(mRetrieveFlags);
+        if (applications == null) {
+            return new ArrayList<ApplicationInfo>();
+        }
+        for (int i=0; i<applications.size(); i++) {
+            final ApplicationInfo info = applications.get(i);
+            if (!info.enabled && info.enabledSetting
+                    != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
+                applications.remove(i);
+                i--;
+            }
+        }
+        return applications;
+    }
+
+    /**
+     * @param applications the result of {@link #loadApplications}, queried before the
+     *         lock was taken.
+     */
+    void doResumeIfNeededLocked(List<ApplicationInfo> applications) {
         if (mResumed) {
             return;
         }
@@ -652,10 +872,8 @@ public class ApplicationsState {
             mPackageIntentReceiver = new PackageIntentReceiver();
             mPackageIntentReceiver.registerReceiver();
         }
-        mApplications = mPm.getInstalledApplications(mRetrieveFlags);
-        if (mApplications == null) {
-            mApplications = new ArrayList<ApplicationInfo>();
-        }
+        mApplications = applications != null ? applications : loadApplications();
+        mApplicationsGeneration++;
 
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
@@ -671,14 +889,7 @@ public class ApplicationsState {
         mHaveDisabledApps = false;
         for (int i=0; i<mApplications.size(); i++) {
             final ApplicationInfo info = mApplications.get(i);
-            // Need to trim out any applications that are disabled by
-            // something different than the user.
             if (!info.enabled) {
-                if (info.enabledSetting != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
-                    mApplications.remove(i);
-                    i--;
-                    continue;
-                }
                 mHaveDisabledApps = true;
             }
             final AppEntry entry = mEntriesMap.get(info.packageName);
@@ -686,7 +897,10 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        publishEntriesLocked();
+        synchronized (mComputingSizePkgs) {
+            mComputingSizePkgs.clear();
+        }
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -696,6 +910,34 @@ public class ApplicationsState {
         return mHaveDisabledApps;
     }
 
+    /**
+     * Set how many package sizes can be computed concurrently.
+     */
+    void setMaxSizeRequests(int maxSizeRequests) {
+        synchronized (mComputingSizePkgs) {
+            maxSizeRequests = Math.max(1, maxSizeRequests);
+            if (mMaxSizeRequests == maxSizeRequests) {
+                return;
+            }
+            mMaxSizeRequests = maxSizeRequests;
+        }
+        if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_SIZES)) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_SIZES);
+        }
+    }
+
+    void postPackageSizeChanged(String packageName) {
+        synchronized (mPendingSizeChanges) {
+            if (!mPendingSizeChanges.contains(packageName)) {
+                mPendingSizeChanges.add(packageName);
+            }
+            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_SIZE_CHANGED)) {
+                mMainHandler.sendEmptyMessageDelayed(MainHandler.MSG_PACKAGE_SIZE_CHANGED,
+                        SIZE_CHANGED_BATCH_DELAY);
+            }
+        }
+    }
+
     void doPauseIfNeededLocked() {
         if (!mResumed) {
             return;
@@ -713,18 +955,33 @@ public class ApplicationsState {
     }
 
     AppEntry getEntry(String packageName) {
+        AppEntry entry = mEntriesView.entriesMap.get(packageName);
+        if (entry != null) {
+            return entry;
+        }
+        // Created outside of the lock, only taken to add the entry
+        final EntriesView view = mEntriesView;
+        for (int i=0; i<view.applications.size(); i++) {
+            ApplicationInfo info = view.applications.get(i);
+            if (packageName.equals(info.packageName)) {
+                entry = createEntry(info);
+                break;
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
         if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
+        final long waitStart = startLockWait();
         synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry == null) {
-                for (int i=0; i<mApplications.size(); i++) {
-                    ApplicationInfo info = mApplications.get(i);
-                    if (packageName.equals(info.packageName)) {
-                        entry = getEntryLocked(info);
-                        break;
-                    }
-                }
+            noteLockAcquired("getEntry", waitStart);
+            if (view.applicationsGeneration != mApplicationsGeneration
+                    && indexOfApplicationInfoLocked(packageName) < 0) {
+                if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock: removed");
+                return null;
             }
+            entry = addEntryLocked(entry);
+            publishEntriesLocked();
             if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
             return entry;
         }
@@ -740,25 +997,17 @@ public class ApplicationsState {
     }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        AppEntry entry = mEntriesView.entriesMap.get(packageName);
+        if (entry != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
     long sumCacheSizes() {
         long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
+        final List<AppEntry> appEntries = mEntriesView.appEntries;
+        for (int i=appEntries.size()-1; i>=0; i--) {
+            sum += appEntries.get(i).cacheSize;
         }
         return sum;
     }
@@ -773,14 +1022,22 @@ public class ApplicationsState {
     }
 
     void addPackage(String pkgName) {
+        // mResumed only changes on the main thread, where the packages are added
+        if (!mResumed) {
+            // If we are not resumed, we will do a full query the
+            // next time we resume, so there is no reason to do work
+            // here.
+            return;
+        }
         try {
+            // Queried before taking the lock
+            ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
+            final long waitStart = startLockWait();
             synchronized (mEntriesMap) {
+                noteLockAcquired("addPackage", waitStart);
                 if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
                 if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
                 if (!mResumed) {
-                    // If we are not resumed, we will do a full query the
-                    // next time we resume, so there is no reason to do work
-                    // here.
                     if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: not resumed");
                     return;
                 }
@@ -789,7 +1046,6 @@ public class ApplicationsState {
                     if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
                     return;
                 }
-                ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
                 if (!info.enabled) {
                     if (info.enabledSetting
                             != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
@@ -798,6 +1054,8 @@ public class ApplicationsState {
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                mApplicationsGeneration++;
+                publishEntriesLocked();
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
@@ -811,7 +1069,9 @@ public class ApplicationsState {
     }
 
     void removePackage(String pkgName) {
+        final long waitStart = startLockWait();
         synchronized (mEntriesMap) {
+            noteLockAcquired("removePackage", waitStart);
             if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
             int idx = indexOfApplicationInfoLocked(pkgName);
             if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " @ " + idx);
@@ -821,9 +1081,12 @@ public class ApplicationsState {
                 if (entry != null) {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
+                    mSnapshotDirty = true;
                 }
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
+                mApplicationsGeneration++;
+                publishEntriesLocked();
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
                     for (int i=0; i<mApplications.size(); i++) {
@@ -846,20 +1109,93 @@ public class ApplicationsState {
         addPackage(pkgName);
     }
     
-    AppEntry getEntryLocked(ApplicationInfo info) {
-        AppEntry entry = mEntriesMap.get(info.packageName);
-        if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
-        if (entry == null) {
-            if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
-        } else if (entry.info != info) {
-            entry.info = info;
+    /**
+     * Create the entry of this application, loading its label unless it is restored from
+     * the snapshot.  Called without holding mEntriesMap; the entry is then added with
+     * {@link #addEntryLocked}.
+     */
+    AppEntry createEntry(ApplicationInfo info) {
+        if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
+        final HashMap<String, ApplicationsSnapshot.Record> records = mSnapshotRecords;
+        final ApplicationsSnapshot.Record record = records != null
+                ? records.get(info.packageName) : null;
+        final AppEntry entry = new AppEntry(mContext, info, mCurId.getAndIncrement(), record);
+        if (entry.restored) {
+            restoreSizes(entry, record);
+        }
+        return entry;
+    }
+
+    /**
+     * Add an entry made by {@link #createEntry}, unless one was added for its package
+     * meanwhile.
+     *
+     * @return the entry of the package.
+     */
+    AppEntry addEntryLocked(AppEntry entry) {
+        final AppEntry existing = mEntriesMap.get(entry.info.packageName);
+        if (DEBUG) Log.i(TAG, "Adding entry of pkg " + entry.info.packageName + ": " + existing);
+        if (existing != null) {
+            return existing;
         }
+        mEntriesMap.put(entry.info.packageName, entry);
+        mAppEntries.add(entry);
+        mSnapshotDirty = true;
         return entry;
     }
 
+    /**
+     * Show the sizes of the last run until they are computed again.  They stay stale, so
+     * they will be refreshed after the sizes of the new and updated packages.
+     */
+    private void restoreSizes(AppEntry entry, ApplicationsSnapshot.Record record) {
+        synchronized (entry) {
+            entry.size = record.size;
+            entry.internalSize = record.internalSize;
+            entry.externalSize = record.externalSize;
+            entry.cacheSize = record.cacheSize;
+            entry.codeSize = record.codeSize;
+            entry.dataSize = record.dataSize;
+            entry.externalCodeSize = record.externalCodeSize;
+            entry.externalDataSize = record.externalDataSize;
+            entry.externalCacheSize = record.externalCacheSize;
+            entry.sizeStr = getSizeStr(entry.size);
+            entry.internalSizeStr = getSizeStr(entry.internalSize);
+            entry.externalSizeStr = getSizeStr(entry.externalSize);
+        }
+    }
+
+    static ArrayList<ApplicationsSnapshot.Record> buildSnapshotRecords(
+            List<AppEntry> appEntries) {
+        ArrayList<ApplicationsSnapshot.Record> records =
+                new ArrayList<ApplicationsSnapshot.Record>(appEntries.size());
+        for (int i=0; i<appEntries.size(); i++) {
+            AppEntry entry = appEntries.get(i);
+            synchronized (entry) {
+                if (!entry.mounted || entry.label == null) {
+                    continue;
+                }
+                ApplicationsSnapshot.Record r = new ApplicationsSnapshot.Record();
+                r.packageName = entry.info.packageName;
+                r.sourceDir = entry.apkFile.getPath();
+                r.apkLastModified = entry.apkLastModified;
+                r.label = entry.label;
+                r.normalizedLabel = entry.getNormalizedLabel();
+                r.size = entry.size;
+                r.internalSize = entry.internalSize;
+                r.externalSize = entry.externalSize;
+                r.cacheSize = entry.cacheSize;
+                r.codeSize = entry.codeSize;
+                r.dataSize = entry.dataSize;
+                r.externalCodeSize = entry.externalCodeSize;
+                r.externalDataSize = entry.externalDataSize;
+                r.externalCacheSize = entry.externalCacheSize;
+                records.add(r);
+            }
+        }
+        return records;
+    }
+
     // --------------------------------------------------------------
 
     private long getTotalInternalSize(PackageStats ps) {
@@ -900,56 +1236,54 @@ public class ApplicationsState {
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
-                synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
-                        }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                AppEntry entry = mEntriesView.entriesMap.get(stats.packageName);
+                // Only the entry is locked while its sizes are updated, so that the
+                // results of the concurrent requests do not serialize on mEntriesMap.
+                if (entry != null) {
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            sizeChanged = true;
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
-                        sendEmptyMessage(MSG_LOAD_SIZES);
+                    if (sizeChanged) {
+                        postPackageSizeChanged(stats.packageName);
                     }
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
                 }
+                if (sizeChanged) {
+                    mSnapshotDirty = true;
+                }
+                synchronized (mComputingSizePkgs) {
+                    mComputingSizePkgs.remove(stats.packageName);
+                }
+                sendEmptyMessage(MSG_LOAD_SIZES);
             }
         };
 
@@ -957,8 +1291,30 @@ public class ApplicationsState {
             super(looper);
         }
 
+        /**
+         * Cold start: read what we computed last time, so that the first entries, and the
+         * first list, are created with it until they are reconciled.  The file is read here
+         * rather than on resume to keep the main thread off the disk.
+         */
+        private void loadSnapshotIfNeeded() {
+            if (mSnapshotLoaded) {
+                return;
+            }
+            mSnapshotLoaded = true;
+            final long start = SystemClock.uptimeMillis();
+            final HashMap<String, ApplicationsSnapshot.Record> records =
+                    mSnapshot.read(Locale.getDefault().toString());
+            if (DEBUG) Log.i(TAG, "Read " + records.size() + " snapshot records in "
+                    + (SystemClock.uptimeMillis() - start) + "ms");
+            synchronized (mEntriesMap) {
+                mSnapshotRecords = records;
+            }
+        }
+
         @Override
         public void handleMessage(Message msg) {
+            loadSnapshotIfNeeded();
+
             // Always try rebuilding list first thing, if needed.
             ArrayList<Session> rebuildingSessions = null;
             synchronized (mEntriesMap) {
@@ -977,26 +1333,56 @@ public class ApplicationsState {
                 case MSG_REBUILD_LIST: {
                 } break;
                 case MSG_LOAD_ENTRIES: {
+                    // The entries are created from the published applications, outside of
+                    // the lock, which is only taken to add them.
+                    final EntriesView view = mEntriesView;
+                    final ArrayList<AppEntry> created = new ArrayList<AppEntry>();
                     int numDone = 0;
+                    for (int i=0; i<view.applications.size() && numDone<6; i++) {
+                        if (!mRunning) {
+                            mRunning = true;
+                            Message m = mMainHandler.obtainMessage(
+                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                            mMainHandler.sendMessage(m);
+                        }
+                        ApplicationInfo info = view.applications.get(i);
+                        if (view.entriesMap.get(info.packageName) == null) {
+                            AppEntry entry = createEntry(info);
+                            created.add(entry);
+                            // Entries restored from the snapshot are cheap to create,
+                            // they do not count in the batch
+                            if (!entry.restored) {
+                                numDone++;
+                            }
+                        }
+                    }
+                    boolean reload = false;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
-                            if (!mRunning) {
-                                mRunning = true;
-                                Message m = mMainHandler.obtainMessage(
-                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                mMainHandler.sendMessage(m);
-                            }
-                            ApplicationInfo info = mApplications.get(i);
-                            if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
+                        final boolean sameApplications =
+                                view.applicationsGeneration == mApplicationsGeneration;
+                        for (int i=0; i<created.size(); i++) {
+                            AppEntry entry = created.get(i);
+                            // Skip the packages removed meanwhile
+                            if (sameApplications || indexOfApplicationInfoLocked(
+                                    entry.info.packageName) >= 0) {
+                                addEntryLocked(entry);
                             }
                         }
+                        if (!sameApplications) {
+                            // Check the packages added meanwhile
+                            reload = true;
+                        } else if (numDone < 6) {
+                            // All entries are created, the snapshot is not needed anymore
+                            mSnapshotRecords = null;
+                        }
+                        if (created.size() > 0) {
+                            publishEntriesLocked();
+                        }
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
 
-                    if (numDone >= 6) {
+                    if (numDone >= 6 || reload) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
                     } else {
                         sendEmptyMessage(MSG_LOAD_ICONS);
@@ -1004,25 +1390,24 @@ public class ApplicationsState {
                 } break;
                 case MSG_LOAD_ICONS: {
                     int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
+                    // Icons are loaded under the entry locks only, the UI thread must
+                    // not wait for them to rebuild its lists.
+                    final List<AppEntry> appEntries = mEntriesView.appEntries;
+                    for (int i=0; i<appEntries.size() && numDone<2; i++) {
+                        AppEntry entry = appEntries.get(i);
+                        if (entry.icon == null || !entry.mounted) {
+                            synchronized (entry) {
+                                if (entry.ensureIconLocked(mContext, mPm)) {
+                                    if (!mRunning) {
+                                        mRunning = true;
+                                        Message m = mMainHandler.obtainMessage(
+                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                        mMainHandler.sendMessage(m);
                                     }
+                                    numDone++;
                                 }
                             }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
@@ -1036,41 +1421,79 @@ public class ApplicationsState {
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
+                    ArrayList<ApplicationsSnapshot.Record> snapshotRecords = null;
+                    ArrayList<String> requests = null;
+                    final EntriesView view = mEntriesView;
+                    synchronized (mComputingSizePkgs) {
+                        if (mComputingSizePkgs.size() >= mMaxSizeRequests) {
+                            if (DEBUG) Log.v(TAG, "MSG_LOAD_SIZES: currently computing");
                             return;
                         }
 
                         long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
+                        // First compute the unknown sizes (new or updated packages), then
+                        // refresh the stale ones.
+                        boolean needSizes = false;
+                        for (int pass=0; pass<2; pass++) {
+                            for (int i=0; i<view.appEntries.size()
+                                    && mComputingSizePkgs.size() < mMaxSizeRequests; i++) {
+                                AppEntry entry = view.appEntries.get(i);
+                                synchronized (entry) {
+                                    if (pass == 0 ? entry.size != SIZE_UNKNOWN
+                                            : (entry.size == SIZE_UNKNOWN || !entry.sizeStale)) {
+                                        continue;
+                                    }
+                                    needSizes = true;
+                                    if (mComputingSizePkgs.contains(entry.info.packageName)) {
+                                        continue;
+                                    }
+                                    // An answer may still come for a request issued before
+                                    // the last resume: only retry it once it timed out.
+                                    if (entry.sizeLoadStart != 0 &&
+                                            entry.sizeLoadStart >= (now-SIZE_REQUEST_TIMEOUT)) {
+                                        continue;
                                     }
                                     entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
+                                    mComputingSizePkgs.add(entry.info.packageName);
+                                    if (requests == null) {
+                                        requests = new ArrayList<String>();
+                                    }
+                                    requests.add(entry.info.packageName);
                                 }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
                             }
                         }
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
-                            mRunning = false;
-                            Message m = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
-                            mMainHandler.sendMessage(m);
+                        if (needSizes) {
+                            if (requests != null && !mRunning) {
+                                mRunning = true;
+                                Message m = mMainHandler.obtainMessage(
+                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                mMainHandler.sendMessage(m);
+                            }
+                            if (DEBUG) Log.v(TAG, "MSG_LOAD_SIZES: now computing");
+                        } else if (mComputingSizePkgs.isEmpty()) {
+                            if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
+                                mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
+                                mRunning = false;
+                                Message m = mMainHandler.obtainMessage(
+                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                                mMainHandler.sendMessage(m);
+                            }
+                            if (mSnapshotDirty && mSnapshotRecords == null) {
+                                mSnapshotDirty = false;
+                                snapshotRecords = buildSnapshotRecords(view.appEntries);
+                            }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
+                    }
+                    if (requests != null) {
+                        // The results are delivered on the binder threads, outside of the
+                        // lock: see mStatsObserver.
+                        for (int i=0; i<requests.size(); i++) {
+                            mPm.getPackageSizeInfo(requests.get(i), mStatsObserver);
+                        }
+                    }
+                    if (snapshotRecords != null) {
+                        // Everything is computed: save it for the next cold start
+                        mSnapshot.write(Locale.getDefault().toString(), snapshotRecords);
                     }
                 } break;
             }
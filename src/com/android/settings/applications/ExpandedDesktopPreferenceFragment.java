@@ -43,6 +43,7 @@ import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.TextView;
 import android.view.WindowManagerPolicyControl;
+import com.android.settings.AppLabelIconCache;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 import com.android.settings.SettingsPreferenceFragment;
@@ -272,12 +273,12 @@ public class ExpandedDesktopPreferenceFragment extends SettingsPreferenceFragmen
         String lastSectionIndex = null;
         ArrayList<String> sections = new ArrayList<String>();
         ArrayList<Integer> positions = new ArrayList<Integer>();
-        PackageManager pm = getPackageManager();
+        AppLabelIconCache cache = AppLabelIconCache.getInstance(getActivity());
         int count = entries.size(), offset = 0;
 
         for (int i = 0; i < count; i++) {
             ApplicationInfo info = entries.get(i).info;
-            String label = (String) info.loadLabel(pm);
+            String label = cache.getLabel(info).toString();
             String sectionIndex;
 
             if (!info.enabled) {
@@ -80,6 +80,7 @@ import com.android.settings.Utils;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 
 final class CanBeOnSdCardChecker {
@@ -571,8 +572,14 @@ public class ManageApplications extends Fragment implements
         private final Context mContext;
         private final ArrayList<View> mActive = new ArrayList<View>();
         private final int mFilterMode;
-        private ArrayList<ApplicationsState.AppEntry> mBaseEntries;
-        private ArrayList<ApplicationsState.AppEntry> mEntries;
+        // Read by the filter thread, so never modified in place.
+        private volatile List<ApplicationsState.AppEntry> mBaseEntries;
+        private List<ApplicationsState.AppEntry> mEntries;
+        // Sorts mBaseEntries, updated as single sizes change.  Read by the filter thread.
+        private volatile AppListIndex mIndex;
+        private int mIndexSortMode;
+        // Packages whose size changed since the list was last sorted by size.
+        private final HashSet<String> mResortPackages = new HashSet<String>();
         private boolean mResumed;
         private int mLastSortMode=-1;
         private boolean mWaitingForData;
@@ -582,8 +589,10 @@ public class ManageApplications extends Fragment implements
         private Filter mFilter = new Filter() {
             @Override
             protected FilterResults performFiltering(CharSequence constraint) {
-                ArrayList<ApplicationsState.AppEntry> entries
-                        = applyPrefixFilter(constraint, mBaseEntries);
+                final List<ApplicationsState.AppEntry> baseEntries = mBaseEntries;
+                List<ApplicationsState.AppEntry> entries = baseEntries != null
+                        ? applyPrefixFilter(constraint, baseEntries)
+                        : new ArrayList<ApplicationsState.AppEntry>();
                 FilterResults fr = new FilterResults();
                 fr.values = entries;
                 fr.count = entries.size();
@@ -593,7 +602,7 @@ public class ManageApplications extends Fragment implements
             @Override
             protected void publishResults(CharSequence constraint, FilterResults results) {
                 mCurFilterPrefix = constraint;
-                mEntries = (ArrayList<ApplicationsState.AppEntry>)results.values;
+                mEntries = (List<ApplicationsState.AppEntry>)results.values;
                 notifyDataSetChanged();
                 mTab.updateStorageUsage();
             }
@@ -665,22 +674,30 @@ public class ManageApplications extends Fragment implements
                     filterObj = ApplicationsState.ALL_ENABLED_FILTER;
                     break;
             }
+            // Sorting by size needs all the sizes as soon as possible
+            mState.setMaxSizeRequests(mLastSortMode == SORT_ORDER_SIZE
+                    ? ApplicationsState.SIZE_SORT_MAX_SIZE_REQUESTS
+                    : ApplicationsState.DEFAULT_MAX_SIZE_REQUESTS);
             switch (mLastSortMode) {
                 case SORT_ORDER_SIZE:
                     switch (mWhichSize) {
                         case SIZE_INTERNAL:
                             comparatorObj = ApplicationsState.INTERNAL_SIZE_COMPARATOR;
+                            mIndexSortMode = AppListIndex.SORT_INTERNAL_SIZE;
                             break;
                         case SIZE_EXTERNAL:
                             comparatorObj = ApplicationsState.EXTERNAL_SIZE_COMPARATOR;
+                            mIndexSortMode = AppListIndex.SORT_EXTERNAL_SIZE;
                             break;
                         default:
                             comparatorObj = ApplicationsState.SIZE_COMPARATOR;
+                            mIndexSortMode = AppListIndex.SORT_SIZE;
                             break;
                     }
                     break;
                 default:
                     comparatorObj = ApplicationsState.ALPHA_COMPARATOR;
+                    mIndexSortMode = AppListIndex.SORT_ALPHA;
                     break;
             }
             ArrayList<ApplicationsState.AppEntry> entries
@@ -689,7 +706,7 @@ public class ManageApplications extends Fragment implements
                 // Don't have new list yet, but can continue using the old one.
                 return;
             }
-            mBaseEntries = entries;
+            setBaseEntries(entries);
             if (mBaseEntries != null) {
                 mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
             } else {
@@ -708,12 +725,47 @@ public class ManageApplications extends Fragment implements
             }
         }
 
-        ArrayList<ApplicationsState.AppEntry> applyPrefixFilter(CharSequence prefix,
-                ArrayList<ApplicationsState.AppEntry> origEntries) {
+        private void setBaseEntries(ArrayList<ApplicationsState.AppEntry> entries) {
+            mResortPackages.clear();
+            if (entries != null) {
+                mIndex = new AppListIndex(mIndexSortMode, entries);
+                mBaseEntries = mIndex.getEntries();
+            } else {
+                mIndex = null;
+                mBaseEntries = null;
+            }
+        }
+
+        /**
+         * Move the entries whose size changed to their new position, rather than
+         * rebuilding the whole list.
+         */
+        private void resortChangedSizes() {
+            if (mIndex == null || mResortPackages.isEmpty()) {
+                return;
+            }
+            boolean changed = false;
+            for (String packageName : mResortPackages) {
+                changed |= mIndex.update(packageName);
+            }
+            mResortPackages.clear();
+            if (changed) {
+                mBaseEntries = mIndex.getEntries();
+                mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+                notifyDataSetChanged();
+            }
+        }
+
+        List<ApplicationsState.AppEntry> applyPrefixFilter(CharSequence prefix,
+                List<ApplicationsState.AppEntry> origEntries) {
             if (prefix == null || prefix.length() == 0) {
                 return origEntries;
             } else {
                 String prefixStr = ApplicationsState.normalize(prefix.toString());
+                final AppListIndex index = mIndex;
+                if (index != null && origEntries == index.getEntries()) {
+                    return index.filter(prefixStr);
+                }
                 final String spacePrefixStr = " " + prefixStr;
                 ArrayList<ApplicationsState.AppEntry> newEntries
                         = new ArrayList<ApplicationsState.AppEntry>();
@@ -744,7 +796,7 @@ public class ManageApplications extends Fragment implements
             mTab.mListContainer.setVisibility(View.VISIBLE);
             mTab.mLoadingContainer.setVisibility(View.GONE);
             mWaitingForData = false;
-            mBaseEntries = apps;
+            setBaseEntries(apps);
             mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
             notifyDataSetChanged();
             mTab.updateStorageUsage();
@@ -763,6 +815,9 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onPackageSizeChanged(String packageName) {
+            if (mLastSortMode == SORT_ORDER_SIZE) {
+                mResortPackages.add(packageName);
+            }
             for (int i=0; i<mActive.size(); i++) {
                 AppViewHolder holder = (AppViewHolder)mActive.get(i).getTag();
                 if (holder.entry.info.packageName.equals(packageName)) {
@@ -775,7 +830,7 @@ public class ManageApplications extends Fragment implements
                         // user viewed, and are sorting by size...  they may
                         // have cleared data, so we immediately want to resort
                         // the list with the new size to reflect it to the user.
-                        rebuild(false);
+                        resortChangedSizes();
                     }
                     mTab.updateStorageUsage();
                     return;
@@ -786,7 +841,11 @@ public class ManageApplications extends Fragment implements
         @Override
         public void onAllSizesComputed() {
             if (mLastSortMode == SORT_ORDER_SIZE) {
-                rebuild(false);
+                if (mIndex != null) {
+                    resortChangedSizes();
+                } else {
+                    rebuild(false);
+                }
             }
             mTab.updateStorageUsage();
         }
@@ -853,13 +912,10 @@ public class ManageApplications extends Fragment implements
         }
 
         private void releaseApplicationsAdapter() {
-            if (mBaseEntries != null) {
-                mBaseEntries.clear();
-            }
-
-            if (mEntries != null) {
-                mEntries.clear();
-            }
+            // Dropped rather than cleared, they may be read by the filter thread
+            mIndex = null;
+            mBaseEntries = null;
+            mEntries = null;
 
             if (mSession != null) {
                 mSession.release();
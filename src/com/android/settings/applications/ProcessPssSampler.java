@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManagerNative;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import com.android.settings.applications.RunningState.ProcessItem;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Samples the PSS of the processes listed by {@link RunningState}.
+ *
+ * Collecting the PSS of a process walks all of its mappings in the kernel, so it is only
+ * done on every update for the processes whose items are on screen, and for the processes
+ * that were never sampled, because they are new or restarted with a new pid.  The other
+ * processes keep their last sample until it is older than {@link #MAX_SAMPLE_AGE}, and at
+ * most {@link #MAX_STALE_SAMPLES} of them are sampled again per update, the oldest first.
+ *
+ * Only used from the background thread of {@link RunningState}, except for
+ * {@link #setVisiblePids} and {@link #dump}.
+ */
+final class ProcessPssSampler {
+    static final String TAG = "ProcessPssSampler";
+    static final boolean DEBUG = false;
+
+    static final long MAX_SAMPLE_AGE = 30*1000;
+    static final int MAX_STALE_SAMPLES = 4;
+
+    private static final Comparator<ProcessItem> AGE_COMPARATOR = new Comparator<ProcessItem>() {
+        @Override
+        public int compare(ProcessItem lhs, ProcessItem rhs) {
+            if (lhs.mPssTime != rhs.mPssTime) {
+                return lhs.mPssTime < rhs.mPssTime ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    private final ArrayList<ProcessItem> mToSample = new ArrayList<ProcessItem>();
+    private final ArrayList<ProcessItem> mStale = new ArrayList<ProcessItem>();
+    private int mLastNumProcesses = -1;
+
+    // ----- following protected by this -----
+
+    private SparseBooleanArray mVisiblePids = new SparseBooleanArray();
+
+    // The cost of the last update, and of all of them
+    private int mLastNumSampled;
+    private int mLastNumCached;
+    private long mLastTime;
+    private long mNumUpdates;
+    private long mTotalNumSampled;
+    private long mTotalNumCached;
+    private long mTotalTime;
+
+    /**
+     * Set the pids of the processes shown to the user.
+     *
+     * @return whether they changed.
+     */
+    synchronized boolean setVisiblePids(SparseBooleanArray pids) {
+        if (pids.size() == mVisiblePids.size()) {
+            boolean same = true;
+            for (int i=0; i<pids.size(); i++) {
+                if (pids.keyAt(i) != mVisiblePids.keyAt(i)) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return false;
+            }
+        }
+        mVisiblePids = pids;
+        return true;
+    }
+
+    /**
+     * Sample the PSS of these processes where needed, leaving it in
+     * {@link ProcessItem#mPss}.
+     *
+     * @return whether the set of processes changed since the last update.
+     */
+    boolean sample(ArrayList<ProcessItem> procs) throws RemoteException {
+        final long start = SystemClock.uptimeMillis();
+        final SparseBooleanArray visiblePids;
+        synchronized (this) {
+            visiblePids = mVisiblePids;
+        }
+
+        final int numProc = procs.size();
+        boolean processesChanged = numProc != mLastNumProcesses;
+        mLastNumProcesses = numProc;
+        for (int i=0; i<numProc; i++) {
+            ProcessItem proc = procs.get(i);
+            if (proc.mPssPid != proc.mPid) {
+                processesChanged = true;
+                mToSample.add(proc);
+            } else if (visiblePids.get(proc.mPid)) {
+                mToSample.add(proc);
+            } else if (start - proc.mPssTime >= MAX_SAMPLE_AGE) {
+                mStale.add(proc);
+            }
+        }
+        if (mStale.size() > MAX_STALE_SAMPLES) {
+            Collections.sort(mStale, AGE_COMPARATOR);
+        }
+        for (int i=0; i<mStale.size() && i<MAX_STALE_SAMPLES; i++) {
+            mToSample.add(mStale.get(i));
+        }
+
+        final int numSampled = mToSample.size();
+        try {
+            if (numSampled > 0) {
+                int[] pids = new int[numSampled];
+                for (int i=0; i<numSampled; i++) {
+                    pids[i] = mToSample.get(i).mPid;
+                }
+                long[] pss = ActivityManagerNative.getDefault().getProcessPss(pids);
+                final long now = SystemClock.uptimeMillis();
+                for (int i=0; i<numSampled; i++) {
+                    ProcessItem proc = mToSample.get(i);
+                    proc.mPss = pss[i];
+                    proc.mPssPid = pids[i];
+                    proc.mPssTime = now;
+                }
+            }
+        } finally {
+            mToSample.clear();
+            mStale.clear();
+        }
+
+        final long time = SystemClock.uptimeMillis() - start;
+        synchronized (this) {
+            mLastNumSampled = numSampled;
+            mLastNumCached = numProc - numSampled;
+            mLastTime = time;
+            mNumUpdates++;
+            mTotalNumSampled += numSampled;
+            mTotalNumCached += numProc - numSampled;
+            mTotalTime += time;
+        }
+        if (DEBUG) Log.d(TAG, "Sampled " + numSampled + " of " + numProc + " processes in "
+                + time + "ms, " + visiblePids.size() + " visible");
+        return processesChanged;
+    }
+
+    synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("  last update: sampled=" + mLastNumSampled + " cached=" + mLastNumCached
+                + " time=" + mLastTime + "ms visible=" + mVisiblePids.size());
+        writer.print(prefix);
+        writer.println("  all updates: count=" + mNumUpdates + " sampled=" + mTotalNumSampled
+                + " cached=" + mTotalNumCached + " time=" + mTotalTime + "ms");
+    }
+}
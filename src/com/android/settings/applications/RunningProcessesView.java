@@ -35,6 +35,7 @@ import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.FrameLayout;
@@ -51,7 +52,7 @@ import java.util.Iterator;
 
 public class RunningProcessesView extends FrameLayout
         implements AdapterView.OnItemClickListener, RecyclerListener,
-        RunningState.OnRefreshUiListener {
+        AbsListView.OnScrollListener, RunningState.OnRefreshUiListener {
     
     final int mMyUserId;
 
@@ -99,6 +100,7 @@ public class RunningProcessesView extends FrameLayout
         ViewHolder mHolder;
         long mFirstRunTime;
         boolean mSetBackground;
+        int mChangedSeq;
 
         void updateTime(Context context, StringBuilder builder) {
             TextView uptimeView = null;
@@ -189,6 +191,7 @@ public class RunningProcessesView extends FrameLayout
                 ai.mItem = item;
                 ai.mHolder = this;
                 ai.mFirstRunTime = item.mActiveSince;
+                ai.mChangedSeq = item.mChangedSeq;
                 if (item.mBackground) {
                     description.setText(rootView.getContext().getText(R.string.cached));
                 } else {
@@ -448,6 +451,8 @@ public class RunningProcessesView extends FrameLayout
         mListView.setAdapter(mAdapter);
         mHeader = inflater.inflate(R.layout.running_processes_header, null);
         mListView.addHeaderView(mHeader, null, false /* set as not selectable */);
+        // Also called after each layout, to keep the visible processes up to date
+        mListView.setOnScrollListener(this);
         mColorBar = (LinearColorBar)mHeader.findViewById(R.id.color_bar);
         Resources res = getResources();
         mColorBar.setColors(res.getColor(R.color.running_processes_system_ram),
@@ -465,6 +470,29 @@ public class RunningProcessesView extends FrameLayout
         SECONDARY_SERVER_MEM = memInfo.secondaryServerThreshold;
     }
     
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        updateVisibleItems();
+    }
+
+    void updateVisibleItems() {
+        final ArrayList<RunningState.MergedItem> items = mAdapter.mItems;
+        final int headers = mListView.getHeaderViewsCount();
+        final int first = Math.max(mListView.getFirstVisiblePosition() - headers, 0);
+        final int last = Math.min(mListView.getLastVisiblePosition() - headers + 1,
+                items.size());
+        if (first < last) {
+            mState.setVisibleItems(items.subList(first, last));
+        } else {
+            mState.setVisibleItems(Collections.<RunningState.MergedItem>emptyList());
+        }
+    }
+
     public void doPause() {
         mState.pause();
         mDataAvail = null;
@@ -484,6 +512,17 @@ public class RunningProcessesView extends FrameLayout
         return false;
     }
 
+    void rebindChangedItems() {
+        synchronized (mState.mLock) {
+            for (ActiveItem ai : new ArrayList<ActiveItem>(mActiveItems.values())) {
+                if (ai.mChangedSeq != ai.mItem.mChangedSeq
+                        && ai.mRootView.getWindowToken() != null) {
+                    mActiveItems.put(ai.mRootView, ai.mHolder.bind(mState, ai.mItem, mBuilder));
+                }
+            }
+        }
+    }
+
     void updateTimes() {
         Iterator<ActiveItem> it = mActiveItems.values().iterator();
         while (it.hasNext()) {
@@ -507,6 +546,11 @@ public class RunningProcessesView extends FrameLayout
                 refreshUi(false);
                 updateTimes();
                 break;
+            case REFRESH_ITEMS:
+                rebindChangedItems();
+                refreshUi(false);
+                updateTimes();
+                break;
             case REFRESH_STRUCTURE:
                 refreshUi(true);
                 updateTimes();
@@ -466,6 +466,7 @@ public class RunningServiceDetails extends Fragment
             if (mMergedItem != null) {
                 mSnippetActiveItem = mSnippetViewHolder.bind(mState,
                         mMergedItem, mBuilder);
+                mState.setVisibleItems(Collections.singletonList(mMergedItem));
             } else if (mSnippetActiveItem != null) {
                 // Clear whatever is currently being shown.
                 mSnippetActiveItem.mHolder.size.setText("");
@@ -637,6 +638,11 @@ public class RunningServiceDetails extends Fragment
                 refreshUi(false);
                 updateTimes();
                 break;
+            case REFRESH_ITEMS:
+                refreshUi(mMergedItem != null && mSnippetActiveItem != null
+                        && mSnippetActiveItem.mChangedSeq != mMergedItem.mChangedSeq);
+                updateTimes();
+                break;
             case REFRESH_STRUCTURE:
                 refreshUi(true);
                 updateTimes();
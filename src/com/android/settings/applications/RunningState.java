@@ -17,7 +17,6 @@
 package com.android.settings.applications;
 
 import android.app.ActivityManager;
-import android.app.ActivityManagerNative;
 import android.app.ActivityThread;
 import android.content.ComponentName;
 import android.content.Context;
@@ -42,11 +41,13 @@ import android.os.UserManager;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
 import com.android.settings.drawable.CircleFramedDrawable;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -72,6 +73,8 @@ public class RunningState {
 
     static final long TIME_UPDATE_DELAY = 1000;
     static final long CONTENTS_UPDATE_DELAY = 2000;
+    // The update delay is doubled up to this while the processes do not change
+    static final long MAX_CONTENTS_UPDATE_DELAY = 16000;
 
     static final int MAX_SERVICES = 100;
 
@@ -142,6 +145,10 @@ public class RunningState {
 
     int mSequence = 0;
 
+    final ProcessPssSampler mPssSampler = new ProcessPssSampler();
+    // Whether the last update found processes started or gone
+    boolean mProcessesChanged;
+
     final Comparator<RunningState.MergedItem> mBackgroundComparator
         = new Comparator<RunningState.MergedItem>() {
             @Override
@@ -208,6 +215,7 @@ public class RunningState {
     boolean mResumed;
     boolean mHaveData;
     boolean mWatchingBackgroundItems;
+    long mUpdateDelay = CONTENTS_UPDATE_DELAY;
 
     ArrayList<BaseItem> mItems = new ArrayList<BaseItem>();
     ArrayList<MergedItem> mMergedItems = new ArrayList<MergedItem>();
@@ -242,11 +250,21 @@ public class RunningState {
                         }
                     }
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    cmd.arg1 = update(mApplicationContext, mAm);
                     mHandler.sendMessage(cmd);
+                    final long delay;
+                    synchronized (mLock) {
+                        if (cmd.arg1 != OnRefreshUiListener.REFRESH_DATA || mProcessesChanged) {
+                            mUpdateDelay = CONTENTS_UPDATE_DELAY;
+                        } else {
+                            mUpdateDelay = Math.min(mUpdateDelay * 2,
+                                    MAX_CONTENTS_UPDATE_DELAY);
+                        }
+                        delay = mUpdateDelay;
+                    }
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, delay);
                     break;
             }
         }
@@ -261,9 +279,8 @@ public class RunningState {
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REFRESH_UI:
-                    mNextUpdate = msg.arg1 != 0
-                            ? OnRefreshUiListener.REFRESH_STRUCTURE
-                            : OnRefreshUiListener.REFRESH_DATA;
+                    // Don't lose a bigger refresh that was not shown yet.
+                    mNextUpdate = Math.max(mNextUpdate, msg.arg1);
                     break;
                 case MSG_UPDATE_TIME:
                     synchronized (mLock) {
@@ -291,7 +308,9 @@ public class RunningState {
     static interface OnRefreshUiListener {
         public static final int REFRESH_TIME = 0;
         public static final int REFRESH_DATA = 1;
-        public static final int REFRESH_STRUCTURE = 2;
+        // Some items changed, see BaseItem.mChangedSeq, but the list is the same
+        public static final int REFRESH_ITEMS = 2;
+        public static final int REFRESH_STRUCTURE = 3;
 
         public void onRefreshUi(int what);
     }
@@ -312,6 +331,8 @@ public class RunningState {
         String mDescription;
 
         int mCurSeq;
+        // The last update that changed what is shown of this item
+        int mChangedSeq;
 
         long mActiveSince;
         long mSize;
@@ -363,6 +384,11 @@ public class RunningState {
         
         MergedItem mMergedItem;
 
+        // The last PSS sample, the pid it was taken from and its uptime
+        long mPss;
+        int mPssPid;
+        long mPssTime;
+
         boolean mInteresting;
 
         // Purely for sorting.
@@ -596,6 +622,11 @@ public class RunningState {
         }
 
         boolean update(Context context, boolean background) {
+            final boolean lastBackground = mBackground;
+            final PackageItemInfo lastPackageInfo = mPackageInfo;
+            final CharSequence lastDisplayLabel = mDisplayLabel;
+            final String lastDescription = mDescription;
+            final long lastActiveSince = mActiveSince;
             mBackground = background;
 
             if (mUser != null) {
@@ -641,6 +672,28 @@ public class RunningState {
                 }
             }
 
+            return lastBackground != mBackground || lastPackageInfo != mPackageInfo
+                    || lastDisplayLabel != mDisplayLabel || lastDescription != mDescription
+                    || lastActiveSince != mActiveSince;
+        }
+
+        /**
+         * Whether any of the processes of this item changed in this update.
+         */
+        boolean hasChangedProcesses(int curSeq) {
+            if (mProcess != null && mProcess.mChangedSeq == curSeq) {
+                return true;
+            }
+            for (int i=0; i<mOtherProcesses.size(); i++) {
+                if (mOtherProcesses.get(i).mChangedSeq == curSeq) {
+                    return true;
+                }
+            }
+            for (int i=0; i<mChildren.size(); i++) {
+                if (mChildren.get(i).mChangedSeq == curSeq) {
+                    return true;
+                }
+            }
             return false;
         }
         
@@ -756,6 +809,7 @@ public class RunningState {
         synchronized (mLock) {
             mResumed = true;
             mRefreshUiListener = listener;
+            mUpdateDelay = CONTENTS_UPDATE_DELAY;
             // TODO: The set of users may have changed too, so we should probably recompute it
             // each time, but that might be costly. See http://b/18696308
             if (mInterestingConfigChanges.applyNewConfig(mApplicationContext.getResources())) {
@@ -844,6 +898,7 @@ public class RunningState {
             }
             if (userItem == null) {
                 userItem = new MergedItem(newItem.mUserId);
+                userItem.mChangedSeq = mSequence;
                 userItems.put(newItem.mUserId, userItem);
             } else {
                 userItem.mChildren.clear();
@@ -860,7 +915,10 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
+    /**
+     * @return the {@link OnRefreshUiListener} refresh needed to show the new state.
+     */
+    private int update(Context context, ActivityManager am) {
         final PackageManager pm = context.getPackageManager();
 
         mSequence++;
@@ -973,6 +1031,7 @@ public class RunningState {
                 int pid = si.restarting == 0 ? si.pid : 0;
                 if (pid != proc.mPid) {
                     changed = true;
+                    proc.mChangedSeq = mSequence;
                     if (proc.mPid != pid) {
                         if (proc.mPid != 0) {
                             mServiceProcessesByPid.remove(proc.mPid);
@@ -986,7 +1045,10 @@ public class RunningState {
                 proc.mDependentProcesses.clear();
                 proc.mCurSeq = mSequence;
             }
-            changed |= proc.updateService(context, si);
+            if (proc.updateService(context, si)) {
+                changed = true;
+                proc.mChangedSeq = mSequence;
+            }
         }
         
         // Now update the map of other processes that are running (but
@@ -1071,8 +1133,10 @@ public class RunningState {
         final int NAP = mServiceProcessesByPid.size();
         for (int i=0; i<NAP; i++) {
             ProcessItem proc = mServiceProcessesByPid.valueAt(i);
-            if (proc.mCurSeq == mSequence) {
-                changed |= proc.buildDependencyChain(context, pm, mSequence);
+            if (proc.mCurSeq == mSequence
+                    && proc.buildDependencyChain(context, pm, mSequence)) {
+                changed = true;
+                proc.mChangedSeq = mSequence;
             }
         }
         
@@ -1122,6 +1186,8 @@ public class RunningState {
             }
         }
 
+        boolean structureChanged = false;
+
         if (changed) {
             // First determine an order for the services.
             ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
@@ -1168,7 +1234,7 @@ public class RunningState {
                 
                 // Now add the services running in it.
                 MergedItem mergedItem = null;
-                boolean haveAllMerged = false;
+                boolean haveAllMerged = true;
                 boolean needDivider = false;
                 for (ServiceItem si : pi.mServices.values()) {
                     si.mNeedDivider = needDivider;
@@ -1184,22 +1250,37 @@ public class RunningState {
                     }
                 }
                 
-                if (!haveAllMerged || mergedItem == null
+                // The services of a process are keyed by component name, so the
+                // previous MergedItem is kept as long as they are all the same.
+                if (!haveAllMerged || mergedItem == null || mergedItem.mProcess != pi
                         || mergedItem.mServices.size() != pi.mServices.size()) {
                     // Whoops, we need to build a new MergedItem!
                     mergedItem = new MergedItem(pi.mUserId);
+                    mergedItem.mChangedSeq = mSequence;
                     for (ServiceItem si : pi.mServices.values()) {
                         mergedItem.mServices.add(si);
                         si.mMergedItem = mergedItem;
                     }
                     mergedItem.mProcess = pi;
+                }
+                final int lastProc = mProcessItems.size()-1;
+                boolean sameProcesses = mergedItem.mOtherProcesses.size() == lastProc-firstProc;
+                for (int mpi=firstProc; sameProcesses && mpi<lastProc; mpi++) {
+                    sameProcesses = mergedItem.mOtherProcesses.get(mpi-firstProc)
+                            == mProcessItems.get(mpi);
+                }
+                if (!sameProcesses) {
                     mergedItem.mOtherProcesses.clear();
-                    for (int mpi=firstProc; mpi<(mProcessItems.size()-1); mpi++) {
+                    for (int mpi=firstProc; mpi<lastProc; mpi++) {
                         mergedItem.mOtherProcesses.add(mProcessItems.get(mpi));
                     }
+                    mergedItem.mChangedSeq = mSequence;
                 }
                 
-                mergedItem.update(context, false);
+                if (mergedItem.update(context, false)
+                        || mergedItem.hasChangedProcesses(mSequence)) {
+                    mergedItem.mChangedSeq = mSequence;
+                }
                 if (mergedItem.mUserId != mMyUserId) {
                     addOtherUserItem(context, newMergedItems, mOtherUserMergedItems, mergedItem);
                 } else {
@@ -1216,8 +1297,12 @@ public class RunningState {
                     if (proc.mMergedItem == null) {
                         proc.mMergedItem = new MergedItem(proc.mUserId);
                         proc.mMergedItem.mProcess = proc;
+                        proc.mMergedItem.mChangedSeq = mSequence;
+                    }
+                    if (proc.mMergedItem.update(context, false)
+                            || proc.mMergedItem.hasChangedProcesses(mSequence)) {
+                        proc.mMergedItem.mChangedSeq = mSequence;
                     }
-                    proc.mMergedItem.update(context, false);
                     if (proc.mMergedItem.mUserId != mMyUserId) {
                         addOtherUserItem(context, newMergedItems, mOtherUserMergedItems,
                                 proc.mMergedItem);
@@ -1234,13 +1319,20 @@ public class RunningState {
             for (int i=0; i<NU; i++) {
                 MergedItem user = mOtherUserMergedItems.valueAt(i);
                 if (user.mCurSeq == mSequence) {
-                    user.update(context, false);
+                    if (user.update(context, false) || user.hasChangedProcesses(mSequence)) {
+                        user.mChangedSeq = mSequence;
+                    }
                 }
             }
 
             synchronized (mLock) {
                 mItems = newItems;
-                mMergedItems = newMergedItems;
+                // Rows are only added, removed or moved when the list is not the same
+                // items in the same order; otherwise only the changed items are shown again.
+                if (!newMergedItems.equals(mMergedItems)) {
+                    mMergedItems = newMergedItems;
+                    structureChanged = true;
+                }
             }
         }
         
@@ -1281,17 +1373,12 @@ public class RunningState {
         ArrayList<MergedItem> newUserBackgroundItems = null;
         boolean diffUsers = false;
         try {
+            mProcessesChanged = mPssSampler.sample(mAllProcessItems);
             final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
-            for (int i=0; i<numProc; i++) {
-                pids[i] = mAllProcessItems.get(i).mPid;
-            }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
             int bgIndex = 0;
-            for (int i=0; i<pids.length; i++) {
+            for (int i=0; i<numProc; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
+                changed |= proc.updateSize(context, proc.mPss, mSequence);
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
@@ -1391,7 +1478,7 @@ public class RunningState {
                 mBackgroundItems = newBackgroundItems;
                 mUserBackgroundItems = newUserBackgroundItems;
                 if (mWatchingBackgroundItems) {
-                    changed = true;
+                    structureChanged = true;
                 }
             }
             if (!mHaveData) {
@@ -1400,7 +1487,10 @@ public class RunningState {
             }
         }
         
-        return changed;
+        if (structureChanged) {
+            return OnRefreshUiListener.REFRESH_STRUCTURE;
+        }
+        return changed ? OnRefreshUiListener.REFRESH_ITEMS : OnRefreshUiListener.REFRESH_DATA;
     }
     
     ArrayList<BaseItem> getCurrentItems() {
@@ -1409,6 +1499,45 @@ public class RunningState {
         }
     }
     
+    /**
+     * Set the items shown to the user.  The memory of their processes is sampled on
+     * every update, the others only from time to time.
+     */
+    void setVisibleItems(List<MergedItem> items) {
+        SparseBooleanArray pids = new SparseBooleanArray();
+        synchronized (mLock) {
+            for (int i=0; i<items.size(); i++) {
+                addPids(items.get(i), pids);
+            }
+        }
+        if (!mPssSampler.setVisiblePids(pids)) {
+            return;
+        }
+        synchronized (mLock) {
+            // Don't leave the newly shown processes with an old sample for long.
+            if (mUpdateDelay > CONTENTS_UPDATE_DELAY) {
+                mUpdateDelay = CONTENTS_UPDATE_DELAY;
+                if (mResumed && mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
+                    mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+                    mBackgroundHandler.sendEmptyMessageDelayed(MSG_UPDATE_CONTENTS,
+                            CONTENTS_UPDATE_DELAY);
+                }
+            }
+        }
+    }
+
+    private static void addPids(MergedItem item, SparseBooleanArray pids) {
+        if (item.mProcess != null) {
+            pids.put(item.mProcess.mPid, true);
+        }
+        for (int i=0; i<item.mOtherProcesses.size(); i++) {
+            pids.put(item.mOtherProcesses.get(i).mPid, true);
+        }
+        for (int i=0; i<item.mChildren.size(); i++) {
+            addPids(item.mChildren.get(i), pids);
+        }
+    }
+
     void setWatchingBackgroundItems(boolean watching) {
         synchronized (mLock) {
             mWatchingBackgroundItems = watching;
@@ -1426,4 +1555,20 @@ public class RunningState {
             return mUserBackgroundItems;
         }
     }
+
+    public static void dump(String prefix, PrintWriter writer) {
+        final RunningState state;
+        synchronized (sGlobalLock) {
+            state = sInstance;
+        }
+        if (state == null) {
+            return;
+        }
+        writer.print(prefix);
+        synchronized (state.mLock) {
+            writer.println("Running processes memory sampling: update delay="
+                    + state.mUpdateDelay + "ms");
+        }
+        state.mPssSampler.dump(prefix, writer);
+    }
 }
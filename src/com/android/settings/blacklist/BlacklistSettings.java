@@ -17,26 +17,24 @@
 package com.android.settings.blacklist;
 
 import android.app.ListFragment;
-import android.content.ContentResolver;
+import android.app.LoaderManager;
+import android.content.AsyncQueryHandler;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.ContentObserver;
+import android.content.CursorLoader;
+import android.content.Loader;
 import android.database.Cursor;
 import android.location.CountryDetector;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Looper;
-import android.os.Message;
 import android.os.Process;
-import android.provider.ContactsContract.PhoneLookup;
 import android.provider.Settings;
 import android.provider.Telephony.Blacklist;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
-import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -54,13 +52,17 @@ import com.android.settings.SettingsActivity;
 import com.android.settings.SubSettings;
 import com.android.settings.cyanogenmod.BaseSystemSettingSwitchBar;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 
 /**
  * Blacklist settings UI for the Phone app.
  */
 public class BlacklistSettings extends ListFragment
-        implements BaseSystemSettingSwitchBar.SwitchBarChangeCallback {
+        implements BaseSystemSettingSwitchBar.SwitchBarChangeCallback,
+        LoaderManager.LoaderCallbacks<Cursor> {
 
     private static final String[] BLACKLIST_PROJECTION = {
         Blacklist._ID,
@@ -112,9 +114,8 @@ public class BlacklistSettings extends ListFragment
 
         setHasOptionsMenu(true);
 
-        mCursor = getActivity().managedQuery(Blacklist.CONTENT_URI,
-                BLACKLIST_PROJECTION, null, null, null);
         mAdapter = new BlacklistAdapter(getActivity(), null);
+        getLoaderManager().initLoader(0, null, this);
 
         mEmptyView = (TextView) getView().findViewById(android.R.id.empty);
 
@@ -188,6 +189,9 @@ public class BlacklistSettings extends ListFragment
         if (mEnabledSwitch != null) {
             mEnabledSwitch.teardownSwitchBar();
         }
+        if (mAdapter != null) {
+            mAdapter.release();
+        }
     }
 
     @Override
@@ -217,93 +221,144 @@ public class BlacklistSettings extends ListFragment
         updateEnabledState();
     }
 
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CursorLoader(getActivity(), Blacklist.CONTENT_URI,
+                BLACKLIST_PROJECTION, null, null, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        mCursor = data;
+        if (mLastEnabledState) {
+            mAdapter.swapCursor(data);
+        }
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mCursor = null;
+        mAdapter.swapCursor(null);
+    }
+
     private static class BlacklistAdapter extends ResourceCursorAdapter
             implements ToggleImageView.OnCheckedChangeListener {
-        private Object mLock = new Object();
-        private ContentResolver mResolver;
-        private String mCurrentCountryIso;
-        private SparseArray<String> mRequestedLookups = new SparseArray<String>();
-        private HashMap<String, String> mContactNameCache = new HashMap<String, String>();
-
-        private Handler mMainHandler = new Handler() {
-            @Override
-            public void handleMessage(Message msg) {
-                int lookupIndex = msg.arg1;
-                String name = (String) msg.obj;
-                mContactNameCache.put(mRequestedLookups.get(lookupIndex),
-                        name == null ? "" : name);
-                mRequestedLookups.delete(lookupIndex);
-                notifyDataSetChanged();
-            }
-        };
-        private Handler mQueryHandler;
+        // Rows looked up around the ones shown, so that scrolling finds their names
+        private static final int PREFETCH_ROWS = 20;
 
-        private class QueryHandler extends Handler {
-            public static final int MSG_LOOKUP = 1;
-            private static final int MSG_FINISH = 2;
+        private final ContactNameCache mNameCache;
+        private String mCurrentCountryIso;
 
-            public QueryHandler(Looper looper) {
-                super(looper);
+        // Cache keys by number, and the keys being looked up
+        private final HashMap<String, String> mNumberKeys = new HashMap<String, String>();
+        private final HashSet<String> mRequestedLookups = new HashSet<String>();
+        // The rows bound with an unknown name since the last lookup
+        private int mFirstMissingPosition = -1;
+        private int mLastMissingPosition = -1;
+
+        private final HandlerThread mQueryThread;
+        private final Handler mQueryHandler;
+        private final Handler mMainHandler = new Handler();
+
+        // The toggles written but not in the cursor yet, by row id and column
+        private final HashMap<String, PendingWrite> mPendingWrites =
+                new HashMap<String, PendingWrite>();
+        private final AsyncQueryHandler mWriteHandler;
+
+        private static class PendingWrite {
+            final String key;
+            final boolean checked;
+            boolean done;
+
+            PendingWrite(String key, boolean checked) {
+                this.key = key;
+                this.checked = checked;
             }
+        }
 
+        private final Runnable mScheduleLookup = new Runnable() {
             @Override
-            public void handleMessage(Message msg) {
-                switch (msg.what) {
-                    case MSG_LOOKUP:
-                        String name = lookupNameForNumber((String) msg.obj);
-                        mMainHandler.obtainMessage(0, msg.arg1, 0, name).sendToTarget();
-                        synchronized (mLock) {
-                            if (mQueryHandler != null) {
-                                Message finishMessage = mQueryHandler.obtainMessage(MSG_FINISH);
-                                mQueryHandler.sendMessageDelayed(finishMessage, 3000);
-                            }
+            public void run() {
+                final ArrayList<String> keys = new ArrayList<String>();
+                final Cursor cursor = getCursor();
+                if (cursor != null && !cursor.isClosed() && mFirstMissingPosition >= 0) {
+                    final int first = Math.max(mFirstMissingPosition - PREFETCH_ROWS, 0);
+                    final int last = Math.min(mLastMissingPosition + PREFETCH_ROWS,
+                            cursor.getCount() - 1);
+                    for (int i = first; i <= last; i++) {
+                        if (!cursor.moveToPosition(i)) {
+                            break;
                         }
-                        break;
-                    case MSG_FINISH:
-                        synchronized (mLock) {
-                            if (mQueryHandler != null) {
-                                mQueryHandler.getLooper().quit();
-                                mQueryHandler = null;
-                            }
+                        String key = getNumberKey(cursor.getString(COLUMN_NUMBER));
+                        if (mNameCache.get(key) == null && mRequestedLookups.add(key)) {
+                            keys.add(key);
                         }
-                        break;
-                }
-            }
-
-            private String lookupNameForNumber(String number) {
-                if (!TextUtils.isEmpty(mCurrentCountryIso)) {
-                    // Normalise the number: this is needed because the PhoneLookup query
-                    // below does not accept a country code as an input.
-                    String numberE164 = PhoneNumberUtils.formatNumberToE164(number,
-                            mCurrentCountryIso);
-                    if (!TextUtils.isEmpty(numberE164)) {
-                        // Only use it if the number could be formatted to E164.
-                        number = numberE164;
                     }
                 }
-
-                String result = null;
-                final String[] projection = new String[] { PhoneLookup.DISPLAY_NAME };
-                Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
-                Cursor cursor = mResolver.query(uri, projection, null, null, null);
-                if (cursor != null) {
-                    if (cursor.moveToFirst()) {
-                        result = cursor.getString(0);
-                    }
-                    cursor.close();
+                mFirstMissingPosition = mLastMissingPosition = -1;
+                if (keys.isEmpty()) {
+                    return;
                 }
 
-                return result;
+                mQueryHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mNameCache.lookup(keys);
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                mRequestedLookups.removeAll(keys);
+                                notifyDataSetChanged();
+                            }
+                        });
+                    }
+                });
             }
-        }
+        };
 
         public BlacklistAdapter(Context context, Cursor cursor) {
-            super(context, R.layout.blacklist_entry_row, cursor);
+            super(context, R.layout.blacklist_entry_row, cursor, 0);
 
             final CountryDetector detector =
                     (CountryDetector) context.getSystemService(Context.COUNTRY_DETECTOR);
             mCurrentCountryIso = detector.detectCountry().getCountryIso();
-            mResolver = context.getContentResolver();
+            mNameCache = ContactNameCache.getInstance(context);
+
+            mQueryThread = new HandlerThread("blacklist_contact_query",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            mQueryThread.start();
+            mQueryHandler = new Handler(mQueryThread.getLooper());
+
+            mWriteHandler = new AsyncQueryHandler(context.getContentResolver()) {
+                @Override
+                protected void onUpdateComplete(int token, Object cookie, int result) {
+                    PendingWrite write = (PendingWrite) cookie;
+                    if (result > 0) {
+                        write.done = true;
+                    } else if (mPendingWrites.get(write.key) == write) {
+                        // something went wrong, go back to the state of the cursor
+                        mPendingWrites.remove(write.key);
+                        notifyDataSetChanged();
+                    }
+                }
+            };
+        }
+
+        void release() {
+            mMainHandler.removeCallbacks(mScheduleLookup);
+            mQueryThread.quit();
+        }
+
+        @Override
+        public Cursor swapCursor(Cursor newCursor) {
+            // The toggles written so far are in the new cursor
+            Iterator<PendingWrite> it = mPendingWrites.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().done) {
+                    it.remove();
+                }
+            }
+            return super.swapCursor(newCursor);
         }
 
         @Override
@@ -331,7 +386,8 @@ public class BlacklistSettings extends ListFragment
         public void bindView(View view, Context context, Cursor cursor) {
             ViewHolder holder = (ViewHolder) view.getTag();
             String number = cursor.getString(COLUMN_NUMBER);
-            String name = mContactNameCache.get(number);
+            String key = getNumberKey(number);
+            String name = mNameCache.get(key);
             String formattedNumber = PhoneNumberUtils.formatNumber(number,
                     null, mCurrentCountryIso);
 
@@ -344,14 +400,15 @@ public class BlacklistSettings extends ListFragment
                 holder.subText.setVisibility(View.VISIBLE);
             }
 
-            if (name == null) {
-                int id = cursor.getInt(COLUMN_ID);
-                scheduleNameLookup(id, number);
+            if (name == null && !mRequestedLookups.contains(key)) {
+                scheduleNameLookup(cursor.getPosition());
             }
 
-            holder.callStatus.setCheckedInternal(cursor.getInt(COLUMN_PHONE) != 0, false);
-            holder.messageStatus.setCheckedInternal(cursor.getInt(COLUMN_MESSAGE) != 0, false);
-            holder.position = cursor.getPosition();
+            holder.id = cursor.getLong(COLUMN_ID);
+            holder.callStatus.setCheckedInternal(isChecked(holder.id, Blacklist.PHONE_MODE,
+                    cursor.getInt(COLUMN_PHONE) != 0), false);
+            holder.messageStatus.setCheckedInternal(isChecked(holder.id, Blacklist.MESSAGE_MODE,
+                    cursor.getInt(COLUMN_MESSAGE) != 0), false);
         }
 
         @Override
@@ -359,30 +416,40 @@ public class BlacklistSettings extends ListFragment
             View parent = (View) view.getParent();
             ViewHolder holder = (ViewHolder) parent.getTag();
             String column = (String) view.getTag();
-            long id = getItemId(holder.position);
-            Uri uri = ContentUris.withAppendedId(Blacklist.CONTENT_URI, id);
+            Uri uri = ContentUris.withAppendedId(Blacklist.CONTENT_URI, holder.id);
             ContentValues cv = new ContentValues();
 
+            // Show the new state until the cursor has it
+            PendingWrite write = new PendingWrite(holder.id + "/" + column, view.isChecked());
+            mPendingWrites.put(write.key, write);
+
             cv.put(column, view.isChecked() ? 1 : 0);
-            if (mResolver.update(uri, cv, null, null) <= 0) {
-                // something went wrong, force an update to the correct state
-                notifyDataSetChanged();
-            }
+            mWriteHandler.startUpdate(0, write, uri, cv, null, null);
         }
 
-        private void scheduleNameLookup(int id, String number) {
-            synchronized (mLock) {
-                if (mQueryHandler == null) {
-                    HandlerThread thread = new HandlerThread("blacklist_contact_query",
-                            Process.THREAD_PRIORITY_BACKGROUND);
-                    thread.start();
-                    mQueryHandler = new QueryHandler(thread.getLooper());
-                }
+        private boolean isChecked(long id, String column, boolean checked) {
+            PendingWrite write = mPendingWrites.get(id + "/" + column);
+            return write != null ? write.checked : checked;
+        }
+
+        private String getNumberKey(String number) {
+            String key = mNumberKeys.get(number);
+            if (key == null) {
+                key = mNameCache.getKey(number);
+                mNumberKeys.put(number, key);
             }
+            return key;
+        }
 
-            mRequestedLookups.put(id, number);
-            Message msg = mQueryHandler.obtainMessage(QueryHandler.MSG_LOOKUP, id, 0, number);
-            msg.sendToTarget();
+        private void scheduleNameLookup(int position) {
+            // Look up the names of all the rows bound in this pass at once
+            if (mFirstMissingPosition < 0) {
+                mFirstMissingPosition = mLastMissingPosition = position;
+                mMainHandler.post(mScheduleLookup);
+            } else {
+                mFirstMissingPosition = Math.min(mFirstMissingPosition, position);
+                mLastMissingPosition = Math.max(mLastMissingPosition, position);
+            }
         }
 
         private static class ViewHolder {
@@ -390,7 +457,7 @@ public class BlacklistSettings extends ListFragment
             TextView subText;
             ToggleImageView callStatus;
             ToggleImageView messageStatus;
-            int position;
+            long id;
         }
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.blacklist;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.location.CountryDetector;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Process wide cache of the contact names of the blacklisted numbers, keyed by their E.164
+ * form, so that they are kept while the blacklist is closed and opened again.
+ *
+ * The names are looked up a batch at a time, with a single query of the normalized numbers
+ * of the contacts.  The numbers in E.164 form it doesn't match are then matched against the
+ * contact numbers stored without a normalized form, with a second query for the batch; only
+ * the numbers that can't be normalized are looked up one by one.  The numbers without a
+ * contact are cached too, and the whole cache is dropped when the contacts change.
+ */
+class ContactNameCache {
+    private static final int MAX_SIZE = 512;
+    // Keeps the selection arguments of a query well below the limit of SQLite
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private static final String[] PHONE_PROJECTION = {
+        Phone.NORMALIZED_NUMBER,
+        Phone.DISPLAY_NAME
+    };
+    private static final String[] UNNORMALIZED_PROJECTION = {
+        Phone.NUMBER,
+        Phone.DISPLAY_NAME
+    };
+    private static final String UNNORMALIZED_SELECTION = Phone.NORMALIZED_NUMBER + " IS NULL";
+    private static final String[] LOOKUP_PROJECTION = {
+        PhoneLookup.DISPLAY_NAME
+    };
+
+    private static ContactNameCache sInstance;
+
+    private final ContentResolver mResolver;
+    private final String mCountryIso;
+
+    // The names by number key, empty for the numbers that are not in the contacts
+    private final LruCache<String, String> mNames = new LruCache<String, String>(MAX_SIZE);
+
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mNames.evictAll();
+        }
+    };
+
+    static synchronized ContactNameCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContactNameCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ContactNameCache(Context context) {
+        mResolver = context.getContentResolver();
+        final CountryDetector detector =
+                (CountryDetector) context.getSystemService(Context.COUNTRY_DETECTOR);
+        mCountryIso = detector.detectCountry().getCountryIso();
+        mResolver.registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true,
+                mContactsObserver);
+    }
+
+    /**
+     * @return the key of a number in the cache: its E.164 form, or the number itself
+     *         if it can't be formatted so.
+     */
+    String getKey(String number) {
+        if (!TextUtils.isEmpty(mCountryIso)) {
+            String numberE164 = PhoneNumberUtils.formatNumberToE164(number, mCountryIso);
+            if (!TextUtils.isEmpty(numberE164)) {
+                return numberE164;
+            }
+        }
+        return number;
+    }
+
+    /**
+     * @return the contact name of this number key, empty if it has none, or null if it
+     *         was not looked up yet.
+     */
+    String get(String key) {
+        return mNames.get(key);
+    }
+
+    /**
+     * Look up the contact names of these number keys.  Blocks on the contacts provider.
+     */
+    void lookup(List<String> keys) {
+        for (int start = 0; start < keys.size(); start += MAX_BATCH_SIZE) {
+            lookupBatch(keys.subList(start, Math.min(start + MAX_BATCH_SIZE, keys.size())));
+        }
+    }
+
+    private void lookupBatch(List<String> keys) {
+        final HashSet<String> found = new HashSet<String>();
+        final StringBuilder selection = new StringBuilder(Phone.NORMALIZED_NUMBER);
+        selection.append(" IN (");
+        for (int i = 0; i < keys.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(')');
+
+        Cursor cursor = mResolver.query(Phone.CONTENT_URI, PHONE_PROJECTION,
+                selection.toString(), keys.toArray(new String[keys.size()]), null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    String key = cursor.getString(0);
+                    String name = cursor.getString(1);
+                    if (key != null && !TextUtils.isEmpty(name) && found.add(key)) {
+                        mNames.put(key, name);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        final HashSet<String> unmatched = new HashSet<String>();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            if (found.contains(key)) {
+                continue;
+            }
+            if (key.startsWith("+")) {
+                unmatched.add(key);
+                continue;
+            }
+            // Only the numbers in E.164 form have a normalized number to match
+            String name = lookupName(key);
+            mNames.put(key, name == null ? "" : name);
+        }
+        if (!unmatched.isEmpty()) {
+            lookupUnnormalized(unmatched);
+        }
+    }
+
+    /**
+     * Match these number keys against the contact numbers stored without a normalized form,
+     * and cache the ones left unmatched as having no contact.
+     */
+    private void lookupUnnormalized(HashSet<String> keys) {
+        Cursor cursor = mResolver.query(Phone.CONTENT_URI, UNNORMALIZED_PROJECTION,
+                UNNORMALIZED_SELECTION, null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext() && !keys.isEmpty()) {
+                    String number = cursor.getString(0);
+                    String name = cursor.getString(1);
+                    if (number == null || TextUtils.isEmpty(name)) {
+                        continue;
+                    }
+                    String key = getKey(number);
+                    if (keys.remove(key)) {
+                        mNames.put(key, name);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        for (String key : keys) {
+            mNames.put(key, "");
+        }
+    }
+
+    private String lookupName(String number) {
+        String result = null;
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+        Cursor cursor = mResolver.query(uri, LOOKUP_PROJECTION, null, null, null);
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                result = cursor.getString(0);
+            }
+            cursor.close();
+        }
+        return result;
+    }
+}
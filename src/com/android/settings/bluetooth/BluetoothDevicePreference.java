@@ -60,6 +60,9 @@ public final class BluetoothDevicePreference extends Preference implements
 
     private AlertDialog mDisconnectDialog;
 
+    // Defers the attribute changes to the next frame, if set
+    private DeviceListBatcher mBatcher;
+
     private Context mContext;
 
     private static final int OK_BUTTON = -1;
@@ -97,6 +100,10 @@ public final class BluetoothDevicePreference extends Preference implements
         mOnSettingsClickListener = listener;
     }
 
+    void setBatcher(DeviceListBatcher batcher) {
+        mBatcher = batcher;
+    }
+
     @Override
     protected void onPrepareForRemoval() {
         super.onPrepareForRemoval();
@@ -108,6 +115,17 @@ public final class BluetoothDevicePreference extends Preference implements
     }
 
     public void onDeviceAttributesChanged() {
+        if (mBatcher != null) {
+            mBatcher.onPreferenceChanged(this);
+            return;
+        }
+        refresh();
+
+        // This could affect ordering, so notify that
+        notifyHierarchyChanged();
+    }
+
+    void refresh() {
         /*
          * The preference framework takes care of making sure the value has
          * changed before proceeding. It will also call notifyChanged() if
@@ -129,8 +147,9 @@ public final class BluetoothDevicePreference extends Preference implements
 
         // Used to gray out the item
         setEnabled(!mCachedDevice.isBusy());
+    }
 
-        // This could affect ordering, so notify that
+    void notifyOrderChanged() {
         notifyHierarchyChanged();
     }
 
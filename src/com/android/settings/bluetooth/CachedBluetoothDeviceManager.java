@@ -23,25 +23,43 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * CachedBluetoothDeviceManager manages the set of remote Bluetooth devices.
+ *
+ * The devices are indexed by address, so the events of a device are dispatched without
+ * going through all the devices found by a discovery.  Lookups take no lock; the changes of
+ * the set are synchronized to keep the index and the ordered list in step.
  */
 final class CachedBluetoothDeviceManager {
     private static final String TAG = "CachedBluetoothDeviceManager";
     private static final boolean DEBUG = Utils.D;
 
     private Context mContext;
-    private final List<CachedBluetoothDevice> mCachedDevices =
-            new ArrayList<CachedBluetoothDevice>();
+    // The devices by address
+    private final ConcurrentHashMap<String, CachedBluetoothDevice> mDevicesByAddress =
+            new ConcurrentHashMap<String, CachedBluetoothDevice>();
+    // The same devices in the order they were added, iterated without copy or lock
+    private final CopyOnWriteArrayList<CachedBluetoothDevice> mCachedDevices =
+            new CopyOnWriteArrayList<CachedBluetoothDevice>();
+    private final Collection<CachedBluetoothDevice> mCachedDevicesView =
+            Collections.unmodifiableList(mCachedDevices);
 
     CachedBluetoothDeviceManager(Context context) {
         mContext = context;
     }
 
-    public synchronized Collection<CachedBluetoothDevice> getCachedDevicesCopy() {
-        return new ArrayList<CachedBluetoothDevice>(mCachedDevices);
+    /**
+     * Return a read only view of the devices, in the order they were added.  It can be
+     * iterated while the devices change: an iteration sees the devices as they were when it
+     * started.
+     */
+    public Collection<CachedBluetoothDevice> getCachedDevices() {
+        return mCachedDevicesView;
     }
 
     public static boolean onDeviceDisappeared(CachedBluetoothDevice cachedDevice) {
@@ -67,17 +85,13 @@ final class CachedBluetoothDeviceManager {
      *   not been previously seen
      */
     CachedBluetoothDevice findDevice(BluetoothDevice device) {
-        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
-            if (cachedDevice.getDevice().equals(device)) {
-                return cachedDevice;
-            }
-        }
-        return null;
+        return mDevicesByAddress.get(device.getAddress());
     }
 
     /**
      * Create and return a new {@link CachedBluetoothDevice}. This assumes
      * that {@link #findDevice} has already been called and returned null.
+     * If the device was added by another thread meanwhile, that one is returned.
      * @param device the address of the new Bluetooth device
      * @return the newly created CachedBluetoothDevice object
      */
@@ -86,7 +100,12 @@ final class CachedBluetoothDeviceManager {
             BluetoothDevice device) {
         CachedBluetoothDevice newDevice = new CachedBluetoothDevice(mContext, adapter,
             profileManager, device);
-        synchronized (mCachedDevices) {
+        synchronized (this) {
+            CachedBluetoothDevice cachedDevice = mDevicesByAddress.get(device.getAddress());
+            if (cachedDevice != null) {
+                return cachedDevice;
+            }
+            mDevicesByAddress.put(device.getAddress(), newDevice);
             mCachedDevices.add(newDevice);
         }
         return newDevice;
@@ -113,37 +132,38 @@ final class CachedBluetoothDeviceManager {
     }
 
     public synchronized void clearNonBondedDevices() {
-        for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
-            CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
+        final ArrayList<CachedBluetoothDevice> removed = new ArrayList<CachedBluetoothDevice>();
+        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
             if (cachedDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
-                mCachedDevices.remove(i);
+                removed.add(cachedDevice);
             }
         }
+        removeDevicesLocked(removed);
     }
 
     public synchronized void onScanningStateChanged(boolean started) {
         // If starting a new scan, clear old visibility
-        // Iterate in reverse order since devices may be removed.
-        for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
-            CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
+        final ArrayList<CachedBluetoothDevice> removed = new ArrayList<CachedBluetoothDevice>();
+        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
             if (started) {
                 cachedDevice.setVisible(false);
             } else if (!started &&
                 cachedDevice.getBondState() == BluetoothDevice.BOND_NONE &&
                 cachedDevice.isRemovable()) {
-                mCachedDevices.remove(cachedDevice);
+                removed.add(cachedDevice);
             }
         }
+        removeDevicesLocked(removed);
     }
 
-    public synchronized void onBtClassChanged(BluetoothDevice device) {
+    public void onBtClassChanged(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.refreshBtClass();
         }
     }
 
-    public synchronized void onUuidChanged(BluetoothDevice device) {
+    public void onUuidChanged(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.onUuidChanged();
@@ -155,6 +175,7 @@ final class CachedBluetoothDeviceManager {
         if (cachedDevice != null &&
             cachedDevice.getBondState() == BluetoothDevice.BOND_NONE &&
             cachedDevice.isRemovable()) {
+            mDevicesByAddress.remove(cachedDevice.getDevice().getAddress());
             mCachedDevices.remove(cachedDevice);
         }
     }
@@ -163,11 +184,12 @@ final class CachedBluetoothDeviceManager {
         // When Bluetooth is turning off, we need to clear the non-bonded devices
         // Otherwise, they end up showing up on the next BT enable
         if (bluetoothState == BluetoothAdapter.STATE_TURNING_OFF) {
-            for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
-                CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
+            final ArrayList<CachedBluetoothDevice> removed =
+                    new ArrayList<CachedBluetoothDevice>();
+            for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
                 if (cachedDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
                     cachedDevice.setVisible(false);
-                    mCachedDevices.remove(i);
+                    removed.add(cachedDevice);
                 } else {
                     // For bonded devices, we need to clear the connection status so that
                     // when BT is enabled next time, device connection status shall be retrieved
@@ -175,8 +197,23 @@ final class CachedBluetoothDeviceManager {
                     cachedDevice.clearProfileConnectionState();
                 }
             }
+            removeDevicesLocked(removed);
         }
     }
+
+    /**
+     * Remove the devices with a single copy of the ordered list.
+     */
+    private void removeDevicesLocked(List<CachedBluetoothDevice> devices) {
+        if (devices.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < devices.size(); i++) {
+            mDevicesByAddress.remove(devices.get(i).getDevice().getAddress());
+        }
+        mCachedDevices.removeAll(devices);
+    }
+
     private void log(String msg) {
         if (DEBUG) {
             Log.d(TAG, msg);
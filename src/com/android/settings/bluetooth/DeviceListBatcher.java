@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Collects the device events of a {@link DeviceListPreferenceFragment} during a discovery,
+ * and applies them to its preferences at most once per display frame.
+ *
+ * A device changing several times before the next frame, as its RSSI is reported again and
+ * again, is only refreshed once, and the list is only laid out again once for all the
+ * changes of the frame.  Must be used from the main thread.
+ */
+final class DeviceListBatcher implements Choreographer.FrameCallback {
+    private static final String TAG = "DeviceListBatcher";
+    private static final boolean DEBUG = Utils.D;
+
+    private final DeviceListPreferenceFragment mFragment;
+    private Choreographer mChoreographer;
+    private boolean mScheduled;
+
+    private final LinkedHashSet<CachedBluetoothDevice> mAddedDevices =
+            new LinkedHashSet<CachedBluetoothDevice>();
+    private final LinkedHashSet<CachedBluetoothDevice> mDeletedDevices =
+            new LinkedHashSet<CachedBluetoothDevice>();
+    private final LinkedHashSet<BluetoothDevicePreference> mChangedPreferences =
+            new LinkedHashSet<BluetoothDevicePreference>();
+    // Events merged with one already pending, for the debug log
+    private int mMergedEvents;
+
+    DeviceListBatcher(DeviceListPreferenceFragment fragment) {
+        mFragment = fragment;
+    }
+
+    void onDeviceAdded(CachedBluetoothDevice cachedDevice) {
+        mDeletedDevices.remove(cachedDevice);
+        if (!mAddedDevices.add(cachedDevice)) {
+            mMergedEvents++;
+        }
+        schedule();
+    }
+
+    void onDeviceDeleted(CachedBluetoothDevice cachedDevice) {
+        mAddedDevices.remove(cachedDevice);
+        if (!mDeletedDevices.add(cachedDevice)) {
+            mMergedEvents++;
+        }
+        schedule();
+    }
+
+    void onPreferenceChanged(BluetoothDevicePreference preference) {
+        if (!mChangedPreferences.add(preference)) {
+            mMergedEvents++;
+        }
+        schedule();
+    }
+
+    /**
+     * Apply the pending events now, before the device list group or filter changes.
+     */
+    void flush() {
+        if (mScheduled) {
+            mChoreographer.removeFrameCallback(this);
+            mScheduled = false;
+            apply();
+        }
+    }
+
+    /**
+     * Drop the pending events, when all the devices are removed from the list.
+     */
+    void clear() {
+        if (mScheduled) {
+            mChoreographer.removeFrameCallback(this);
+            mScheduled = false;
+        }
+        mAddedDevices.clear();
+        mDeletedDevices.clear();
+        mChangedPreferences.clear();
+        mMergedEvents = 0;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mScheduled = false;
+        apply();
+    }
+
+    private void schedule() {
+        if (!mScheduled) {
+            if (mChoreographer == null) {
+                mChoreographer = Choreographer.getInstance();
+            }
+            mChoreographer.postFrameCallback(this);
+            mScheduled = true;
+        }
+    }
+
+    private void apply() {
+        if (DEBUG) {
+            Log.d(TAG, "added: " + mAddedDevices.size() + ", deleted: " + mDeletedDevices.size()
+                    + ", changed: " + mChangedPreferences.size() + ", merged: " + mMergedEvents);
+        }
+        // Copy, as the fragment may report other events while they are applied
+        final ArrayList<CachedBluetoothDevice> deleted =
+                new ArrayList<CachedBluetoothDevice>(mDeletedDevices);
+        final ArrayList<CachedBluetoothDevice> added =
+                new ArrayList<CachedBluetoothDevice>(mAddedDevices);
+        final ArrayList<BluetoothDevicePreference> changed =
+                new ArrayList<BluetoothDevicePreference>(mChangedPreferences);
+        mDeletedDevices.clear();
+        mAddedDevices.clear();
+        mChangedPreferences.clear();
+        mMergedEvents = 0;
+
+        for (int i = 0; i < deleted.size(); i++) {
+            mFragment.removeDevice(deleted.get(i));
+        }
+        for (int i = 0; i < added.size(); i++) {
+            mFragment.addDevice(added.get(i));
+        }
+        for (int i = 0; i < changed.size(); i++) {
+            changed.get(i).refresh();
+        }
+        if (!changed.isEmpty()) {
+            // This could affect ordering, so notify that, once for all the changes
+            changed.get(changed.size() - 1).notifyOrderChanged();
+        }
+    }
+}
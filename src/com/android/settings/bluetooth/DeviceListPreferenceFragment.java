@@ -57,16 +57,21 @@ public abstract class DeviceListPreferenceFragment extends
     final WeakHashMap<CachedBluetoothDevice, BluetoothDevicePreference> mDevicePreferenceMap =
             new WeakHashMap<CachedBluetoothDevice, BluetoothDevicePreference>();
 
+    // Applies the device events once per frame
+    private final DeviceListBatcher mBatcher = new DeviceListBatcher(this);
+
     DeviceListPreferenceFragment(String restrictedKey) {
         super(restrictedKey);
         mFilter = BluetoothDeviceFilter.ALL_FILTER;
     }
 
     final void setFilter(BluetoothDeviceFilter.Filter filter) {
+        mBatcher.flush();
         mFilter = filter;
     }
 
     final void setFilter(int filterType) {
+        mBatcher.flush();
         mFilter = BluetoothDeviceFilter.getFilter(filterType);
     }
 
@@ -87,6 +92,7 @@ public abstract class DeviceListPreferenceFragment extends
     }
 
     void setDeviceListGroup(PreferenceGroup preferenceGroup) {
+        mBatcher.flush();
         mDeviceListGroup = preferenceGroup;
     }
 
@@ -117,6 +123,7 @@ public abstract class DeviceListPreferenceFragment extends
     }
 
     void removeAllDevices() {
+        mBatcher.clear();
         mLocalAdapter.stopScanning();
         mDevicePreferenceMap.clear();
         mDeviceListGroup.removeAll();
@@ -124,15 +131,16 @@ public abstract class DeviceListPreferenceFragment extends
 
     void addCachedDevices() {
         Collection<CachedBluetoothDevice> cachedDevices =
-                mLocalManager.getCachedDeviceManager().getCachedDevicesCopy();
+                mLocalManager.getCachedDeviceManager().getCachedDevices();
         for (CachedBluetoothDevice cachedDevice : cachedDevices) {
-            onDeviceAdded(cachedDevice);
+            addDevice(cachedDevice);
         }
     }
 
     void removeOorDevices() {
+        mBatcher.flush();
         Collection<CachedBluetoothDevice> cachedDevices =
-                mLocalManager.getCachedDeviceManager().getCachedDevicesCopy();
+                mLocalManager.getCachedDeviceManager().getCachedDevices();
         for (CachedBluetoothDevice cachedDevice : cachedDevices) {
              if (cachedDevice.getBondState() == BluetoothDevice.BOND_NONE &&
                  !cachedDevice.isVisible()) {
@@ -171,6 +179,11 @@ public abstract class DeviceListPreferenceFragment extends
     }
 
     public void onDeviceAdded(CachedBluetoothDevice cachedDevice) {
+        // Applied with the other events of the frame
+        mBatcher.onDeviceAdded(cachedDevice);
+    }
+
+    void addDevice(CachedBluetoothDevice cachedDevice) {
         if (mDevicePreferenceMap.get(cachedDevice) != null) {
             return;
         }
@@ -194,6 +207,7 @@ public abstract class DeviceListPreferenceFragment extends
                 getActivity(), cachedDevice);
 
         initDevicePreference(preference);
+        preference.setBatcher(mBatcher);
         mDeviceListGroup.addPreference(preference);
         mDevicePreferenceMap.put(cachedDevice, preference);
     }
@@ -207,6 +221,10 @@ public abstract class DeviceListPreferenceFragment extends
     }
 
     public void onDeviceDeleted(CachedBluetoothDevice cachedDevice) {
+        mBatcher.onDeviceDeleted(cachedDevice);
+    }
+
+    void removeDevice(CachedBluetoothDevice cachedDevice) {
         BluetoothDevicePreference preference = mDevicePreferenceMap.remove(cachedDevice);
         if (preference != null) {
             mDeviceListGroup.removePreference(preference);
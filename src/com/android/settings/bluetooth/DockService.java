@@ -416,7 +416,7 @@ public final class DockService extends Service implements ServiceListener {
     }
 
     synchronized boolean hasOtherConnectedDevices(BluetoothDevice dock) {
-        Collection<CachedBluetoothDevice> cachedDevices = mDeviceManager.getCachedDevicesCopy();
+        Collection<CachedBluetoothDevice> cachedDevices = mDeviceManager.getCachedDevices();
         Set<BluetoothDevice> btDevices = mLocalAdapter.getBondedDevices();
         if (btDevices == null || cachedDevices == null || btDevices.isEmpty()) {
             return false;
@@ -22,6 +22,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Message;
 import android.text.TextUtils;
@@ -32,8 +33,10 @@ import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.android.settings.AppLabelIconCache;
 import com.android.settings.R;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -42,6 +45,8 @@ import java.util.TreeSet;
 public class PackageListAdapter extends BaseAdapter implements Runnable {
     private PackageManager mPm;
     private LayoutInflater mInflater;
+    private AppLabelIconCache mCache;
+    private Drawable mDefaultIcon;
     private List<PackageItem> mInstalledPackages = new LinkedList<PackageItem>();
 
     // Packages which don't have launcher icons, but which we want to show nevertheless
@@ -65,16 +70,24 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
         }
     };
 
+    // Binds the rows again once an icon missing from the cache is loaded
+    private final Runnable mIconLoaded = new Runnable() {
+        @Override
+        public void run() {
+            notifyDataSetChanged();
+        }
+    };
+
     public static class PackageItem implements Comparable<PackageItem> {
         public final String packageName;
         public final CharSequence title;
         private final TreeSet<CharSequence> activityTitles = new TreeSet<CharSequence>();
-        public final Drawable icon;
+        private final ApplicationInfo appInfo;
 
-        PackageItem(String packageName, CharSequence title, Drawable icon) {
-            this.packageName = packageName;
+        PackageItem(ApplicationInfo appInfo, CharSequence title) {
+            this.packageName = appInfo.packageName;
             this.title = title;
-            this.icon = icon;
+            this.appInfo = appInfo;
         }
 
         @Override
@@ -87,6 +100,8 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
     public PackageListAdapter(Context context) {
         mPm = context.getPackageManager();
         mInflater = LayoutInflater.from(context);
+        mCache = AppLabelIconCache.getInstance(context);
+        mDefaultIcon = mPm.getDefaultActivityIcon();
         reloadList();
     }
 
@@ -128,7 +143,12 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
 
         PackageItem applicationInfo = getItem(position);
         holder.title.setText(applicationInfo.title);
-        holder.icon.setImageDrawable(applicationInfo.icon);
+        Drawable icon = mCache.peekIcon(applicationInfo.appInfo);
+        if (icon == null) {
+            icon = mDefaultIcon;
+            mCache.loadIcon(applicationInfo.appInfo, mIconLoaded);
+        }
+        holder.icon.setImageDrawable(icon);
 
         boolean needSummary = applicationInfo.activityTitles.size() > 0;
         if (applicationInfo.activityTitles.size() == 1) {
@@ -149,7 +169,7 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
 
     private void reloadList() {
         mInstalledPackages.clear();
-        new Thread(this).start();
+        AsyncTask.execute(this);
     }
 
     @Override
@@ -157,25 +177,28 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
         final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
         mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
         List<ResolveInfo> installedAppsInfo = mPm.queryIntentActivities(mainIntent, 0);
+        // The icons are loaded by the cache, after the ones of the rows already bound
+        final ArrayList<ApplicationInfo> appInfos = new ArrayList<ApplicationInfo>();
 
         for (ResolveInfo info : installedAppsInfo) {
             ApplicationInfo appInfo = info.activityInfo.applicationInfo;
-            final PackageItem item = new PackageItem(appInfo.packageName,
-                    appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
-            item.activityTitles.add(info.loadLabel(mPm));
+            final PackageItem item = new PackageItem(appInfo, mCache.getLabel(appInfo));
+            item.activityTitles.add(mCache.getLabel(info));
             mHandler.obtainMessage(0, item).sendToTarget();
+            appInfos.add(appInfo);
         }
 
         for (String packageName : PACKAGE_WHITELIST) {
             try {
                 ApplicationInfo appInfo = mPm.getApplicationInfo(packageName, 0);
-                final PackageItem item = new PackageItem(appInfo.packageName,
-                        appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
+                final PackageItem item = new PackageItem(appInfo, mCache.getLabel(appInfo));
                 mHandler.obtainMessage(0, item).sendToTarget();
+                appInfos.add(appInfo);
             } catch (PackageManager.NameNotFoundException ignored) {
                 // package not present, so nothing to add -> ignore it
             }
         }
+        mCache.prefetch(appInfos);
     }
 
     private static class ViewHolder {
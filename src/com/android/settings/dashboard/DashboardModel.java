@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.dashboard;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The categories and tiles of the dashboard, built on a background thread so that the top
+ * level Settings screen does not wait for the PackageManager.
+ *
+ * The last built snapshot is kept for the process, keyed by the user, the configuration, a
+ * generation bumped on every package change and the other inputs of the build. It is shown
+ * right away by the next dashboard, and only replaced if a new build gives different tiles.
+ */
+public class DashboardModel {
+    private static final String LOG_TAG = "DashboardModel";
+
+    /**
+     * Builds the categories, called on the background thread.
+     */
+    public interface Builder {
+        Snapshot build(Key key);
+    }
+
+    /**
+     * Notified on the main thread when a snapshot with different tiles is published.
+     */
+    public interface Listener {
+        void onDashboardChanged(Snapshot snapshot);
+    }
+
+    /**
+     * What a snapshot was built from.
+     */
+    public static final class Key {
+        final int userId;
+        final Configuration configuration;
+        final int packageGeneration;
+        public final boolean showDevelopment;
+        public final boolean batteryPresent;
+
+        Key(int userId, Configuration configuration, int packageGeneration,
+                boolean showDevelopment, boolean batteryPresent) {
+            this.userId = userId;
+            this.configuration = configuration;
+            this.packageGeneration = packageGeneration;
+            this.showDevelopment = showDevelopment;
+            this.batteryPresent = batteryPresent;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return userId == other.userId
+                    && packageGeneration == other.packageGeneration
+                    && showDevelopment == other.showDevelopment
+                    && batteryPresent == other.batteryPresent
+                    && configuration.equals(other.configuration);
+        }
+
+        @Override
+        public int hashCode() {
+            return configuration.hashCode() * 31 + packageGeneration;
+        }
+    }
+
+    /**
+     * An immutable list of categories.  The categories and tiles must not be modified.
+     */
+    public static final class Snapshot {
+        public final List<DashboardCategory> categories;
+        public final int homeActivitiesCount;
+
+        public Snapshot(List<DashboardCategory> categories, int homeActivitiesCount) {
+            this.categories = Collections.unmodifiableList(
+                    new ArrayList<DashboardCategory>(categories));
+            this.homeActivitiesCount = homeActivitiesCount;
+        }
+
+        /**
+         * The parceled categories, to tell whether two snapshots show the same tiles.
+         */
+        byte[] marshall() {
+            final Parcel parcel = Parcel.obtain();
+            try {
+                parcel.writeTypedList(categories);
+                return parcel.marshall();
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+
+    private static DashboardModel sInstance;
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Handler mBackgroundHandler;
+
+    // Guarded by this
+    private int mPackageGeneration;
+    private Key mKey;
+    private Snapshot mSnapshot;
+    private byte[] mSnapshotContent;
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (DashboardModel.this) {
+                mPackageGeneration++;
+            }
+        }
+    };
+
+    public static synchronized DashboardModel getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DashboardModel(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DashboardModel(Context context) {
+        mContext = context;
+
+        final HandlerThread thread = new HandlerThread(LOG_TAG);
+        thread.start();
+        mBackgroundHandler = new Handler(thread.getLooper());
+
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mPackageReceiver, filter);
+    }
+
+    /**
+     * Return the key of a snapshot built now.
+     */
+    public synchronized Key newKey(Context context, boolean showDevelopment,
+            boolean batteryPresent) {
+        return new Key(UserHandle.myUserId(),
+                new Configuration(context.getResources().getConfiguration()),
+                mPackageGeneration, showDevelopment, batteryPresent);
+    }
+
+    /**
+     * Return the last built snapshot, even if it was built for another key, or null.
+     */
+    public synchronized Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Build a snapshot for this key in the background, unless the last one was built for the
+     * same key and no refresh is forced. The listener is only called if the tiles changed.
+     */
+    public void load(final Key key, boolean forceRefresh, final Builder builder,
+            final Listener listener) {
+        synchronized (this) {
+            if (!forceRefresh && mSnapshot != null && key.equals(mKey)) {
+                return;
+            }
+        }
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long start = SystemClock.elapsedRealtime();
+                final Snapshot snapshot = builder.build(key);
+                final byte[] content = snapshot.marshall();
+                final boolean changed;
+                synchronized (DashboardModel.this) {
+                    changed = !Arrays.equals(content, mSnapshotContent);
+                    mKey = key;
+                    if (changed) {
+                        mSnapshot = snapshot;
+                        mSnapshotContent = content;
+                    }
+                }
+                Log.d(LOG_TAG, "Dashboard built in " + (SystemClock.elapsedRealtime() - start)
+                        + " ms, changed: " + changed);
+                if (changed) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onDashboardChanged(snapshot);
+                        }
+                    });
+                }
+            }
+        });
+    }
+}
@@ -23,8 +23,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -34,32 +32,22 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
+import com.android.settings.StartupTimings;
 
 import java.util.List;
 
-public class DashboardSummary extends Fragment {
+public class DashboardSummary extends Fragment implements DashboardModel.Listener {
     private static final String LOG_TAG = "DashboardSummary";
 
     private LayoutInflater mLayoutInflater;
     private ViewGroup mDashboard;
 
-    private static final int MSG_REBUILD_UI = 1;
-    private Handler mHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case MSG_REBUILD_UI: {
-                    final Context context = getActivity();
-                    rebuildUI(context);
-                } break;
-            }
-        }
-    };
-
     private class HomePackageReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            rebuildUI(context);
+            // A package changed: build them again, the new categories are delivered to
+            // onDashboardChanged() if they differ
+            ((SettingsActivity) getActivity()).getDashboardSnapshot(true);
         }
     }
     private HomePackageReceiver mHomePackageReceiver = new HomePackageReceiver();
@@ -68,7 +56,13 @@ public class DashboardSummary extends Fragment {
     public void onResume() {
         super.onResume();
 
-        sendRebuildUI();
+        // Show the last categories right away, they are only built again in the background
+        // if something they depend on changed
+        final DashboardModel.Snapshot snapshot =
+                ((SettingsActivity) getActivity()).getDashboardSnapshot(false);
+        if (snapshot != null) {
+            rebuildUI(getActivity(), snapshot);
+        }
 
         final IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
         filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
@@ -97,19 +91,24 @@ public class DashboardSummary extends Fragment {
         return rootView;
     }
 
-    private void rebuildUI(Context context) {
+    @Override
+    public void onDashboardChanged(DashboardModel.Snapshot snapshot) {
+        rebuildUI(getActivity(), snapshot);
+    }
+
+    private void rebuildUI(Context context, DashboardModel.Snapshot snapshot) {
         if (!isAdded()) {
             Log.w(LOG_TAG, "Cannot build the DashboardSummary UI yet as the Fragment is not added");
             return;
         }
 
         long start = System.currentTimeMillis();
+        final long traceStart = StartupTimings.begin(StartupTimings.PHASE_DASHBOARD_BIND);
         final Resources res = getResources();
 
         mDashboard.removeAllViews();
 
-        List<DashboardCategory> categories =
-                ((SettingsActivity) context).getDashboardCategories(true);
+        final List<DashboardCategory> categories = snapshot.categories;
 
         final int count = categories.size();
 
@@ -141,6 +140,8 @@ public class DashboardSummary extends Fragment {
             // Add the category
             mDashboard.addView(categoryView);
         }
+        StartupTimings.end(StartupTimings.PHASE_DASHBOARD_BIND, traceStart);
+        ((SettingsActivity) context).reportDashboardBound();
         long delta = System.currentTimeMillis() - start;
         Log.d(LOG_TAG, "rebuildUI took: " + delta + " ms");
     }
@@ -165,10 +166,4 @@ public class DashboardSummary extends Fragment {
             statusTextView.setVisibility(View.GONE);
         }
     }
-
-    private void sendRebuildUI() {
-        if (!mHandler.hasMessages(MSG_REBUILD_UI)) {
-            mHandler.sendEmptyMessage(MSG_REBUILD_UI);
-        }
-    }
 }
@@ -26,6 +26,8 @@ import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -41,8 +43,11 @@ import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 import com.android.settings.Utils;
 import com.android.settings.search.Index;
+import com.android.settings.search.SearchResultsCache;
+import com.android.settings.search.SearchResultsCache.Snapshot;
 
 import java.util.HashMap;
+import java.util.Locale;
 
 public class SearchResultsSummary extends Fragment {
 
@@ -70,22 +75,53 @@ public class SearchResultsSummary extends Fragment {
 
     private boolean mShowResults;
 
+    // Recent results, shared by all the instances as they are bound to the Index generation
+    private static final SearchResultsCache sCache = new SearchResultsCache();
+
     /**
-     * A basic AsyncTask for updating the query results cursor
+     * A basic AsyncTask for updating the query results cursor.
+     *
+     * The results are read from the cache when possible. Canceling the task cancels the
+     * database query, so that only the latest query completes.
      */
-    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Snapshot> {
+        private final Index mIndex = Index.getInstance(getActivity());
+        private final String mLocale = Locale.getDefault().toString();
+        private final int mGeneration = mIndex.getGeneration();
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        public void cancelQuery() {
+            cancel(false);
+            mCancellationSignal.cancel();
+        }
+
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
+        protected Snapshot doInBackground(String... params) {
+            final String query = params[0];
+            Snapshot snapshot = sCache.getOrNarrowResults(mLocale, mGeneration, query);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            Cursor cursor = null;
+            try {
+                cursor = mIndex.search(query, mCancellationSignal);
+                snapshot = Snapshot.fromCursor(cursor);
+            } catch (OperationCanceledException e) {
+                return null;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            sCache.putResults(mLocale, mGeneration, query, snapshot);
+            return snapshot;
         }
 
         @Override
-        protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                setResultsCursor(cursor);
-                setResultsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
+        protected void onPostExecute(Snapshot snapshot) {
+            if (!isCancelled() && snapshot != null) {
+                setResultsCursor(snapshot.newCursor());
+                setResultsVisibility(snapshot.getCount() > 0);
             }
         }
     }
@@ -93,19 +129,33 @@ public class SearchResultsSummary extends Fragment {
     /**
      * A basic AsyncTask for updating the suggestions cursor
      */
-    private class UpdateSuggestionsTask extends AsyncTask<String, Void, Cursor> {
+    private class UpdateSuggestionsTask extends AsyncTask<String, Void, Snapshot> {
+        private final Index mIndex = Index.getInstance(getActivity());
+        private final String mLocale = Locale.getDefault().toString();
+        private final int mGeneration = mIndex.getGeneration();
+
         @Override
-        protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).getSuggestions(params[0]);
+        protected Snapshot doInBackground(String... params) {
+            final String query = params[0];
+            Snapshot snapshot = sCache.getSuggestions(mLocale, mGeneration, query);
+            if (snapshot != null || isCancelled()) {
+                return snapshot;
+            }
+            final Cursor cursor = mIndex.getSuggestions(query);
+            try {
+                snapshot = Snapshot.fromCursor(cursor);
+            } finally {
+                cursor.close();
+            }
+            sCache.putSuggestions(mLocale, mGeneration, query, snapshot);
+            return snapshot;
         }
 
         @Override
-        protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
-                setSuggestionsCursor(cursor);
-                setSuggestionsVisibility(cursor.getCount() > 0);
-            } else if (cursor != null) {
-                cursor.close();
+        protected void onPostExecute(Snapshot snapshot) {
+            if (!isCancelled() && snapshot != null) {
+                setSuggestionsCursor(snapshot.newCursor());
+                setSuggestionsVisibility(snapshot.getCount() > 0);
             }
         }
     }
@@ -327,7 +377,7 @@ public class SearchResultsSummary extends Fragment {
 
     private void clearResults() {
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
         setResultsCursor(null);
@@ -360,7 +410,7 @@ public class SearchResultsSummary extends Fragment {
 
     private void clearAllTasks() {
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
         if (mUpdateSuggestionsTask != null) {
@@ -385,6 +435,14 @@ public class SearchResultsSummary extends Fragment {
             setResultsVisibility(false);
             setResultsCursor(null);
         } else {
+            // Going back to a recent query (e.g. when deleting characters) needs no task at all
+            final Snapshot snapshot = sCache.getResults(Locale.getDefault().toString(),
+                    Index.getInstance(getActivity()).getGeneration(), mQuery);
+            if (snapshot != null) {
+                setResultsCursor(snapshot.newCursor());
+                setResultsVisibility(snapshot.getCount() > 0);
+                return;
+            }
             mUpdateSearchResultsTask = new UpdateSearchResultsTask();
             mUpdateSearchResultsTask.execute(mQuery);
         }
@@ -32,6 +32,7 @@ import android.os.UserManager;
 import android.util.Log;
 
 import com.android.internal.os.BatterySipper;
+import com.android.settings.AppLabelIconCache;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
@@ -256,6 +257,7 @@ public class BatteryEntry {
         System.arraycopy(sipper.mPackages, 0, packageLabels, 0, sipper.mPackages.length);
 
         // Convert package names to user-facing labels where possible
+        final AppLabelIconCache cache = AppLabelIconCache.getInstance(context);
         IPackageManager ipm = AppGlobals.getPackageManager();
         final int userId = UserHandle.getUserId(uid);
         for (int i = 0; i < packageLabels.length; i++) {
@@ -267,13 +269,13 @@ public class BatteryEntry {
                             + packageLabels[i] + ", user " + userId);
                     continue;
                 }
-                CharSequence label = ai.loadLabel(pm);
+                CharSequence label = cache.getLabel(ai);
                 if (label != null) {
                     packageLabels[i] = label.toString();
                 }
                 if (ai.icon != 0) {
                     defaultPackageName = sipper.mPackages[i];
-                    icon = ai.loadIcon(pm);
+                    icon = cache.getIcon(ai);
                     break;
                 }
             } catch (RemoteException e) {
@@ -304,7 +306,7 @@ public class BatteryEntry {
                             name = nm.toString();
                             if (pi.applicationInfo.icon != 0) {
                                 defaultPackageName = pkgName;
-                                icon = pi.applicationInfo.loadIcon(pm);
+                                icon = cache.getIcon(pi.applicationInfo);
                             }
                             break;
                         }
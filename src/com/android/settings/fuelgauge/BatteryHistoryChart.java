@@ -24,7 +24,6 @@ import android.provider.Settings;
 import android.text.format.DateFormat;
 import android.text.format.Formatter;
 import android.util.Log;
-import android.util.TimeUtils;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
@@ -37,8 +36,6 @@ import android.graphics.Path;
 import android.graphics.Typeface;
 import android.os.BatteryStats;
 import android.os.SystemClock;
-import android.os.BatteryStats.HistoryItem;
-import android.telephony.ServiceState;
 import android.text.TextPaint;
 import android.util.AttributeSet;
 import android.util.TypedValue;
@@ -205,7 +202,8 @@ public class BatteryHistoryChart extends View {
     int mLevelLeft;
     int mLevelRight;
 
-    int mNumHist;
+    BatteryHistoryTimeline mTimeline;
+    long mRemainingTimeUs;
     long mHistStart;
     long mHistDataEnd;
     long mHistEnd;
@@ -472,7 +470,7 @@ public class BatteryHistoryChart extends View {
         }
     }
 
-    void setStats(BatteryStats stats, Intent broadcast) {
+    void setStats(final BatteryStats stats, Intent broadcast) {
         mStats = stats;
         mBatteryBroadcast = broadcast;
 
@@ -541,73 +539,41 @@ public class BatteryHistoryChart extends View {
         mChargeDurationString = "";
         setContentDescription(mChargeLabelString);
 
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
         mBatLow = 0;
         mBatHigh = 100;
-        mStartWallTime = 0;
-        mEndDataWallTime = 0;
-        mEndWallTime = 0;
-        mHistStart = 0;
-        mHistEnd = 0;
-        long lastWallTime = 0;
-        long lastRealtime = 0;
-        int aggrStates = 0;
-        int aggrStates2 = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (first) {
-                    first = false;
-                    mHistStart = rec.time;
-                }
-                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                        || rec.cmd == HistoryItem.CMD_RESET) {
-                    // If there is a ridiculously large jump in time, then we won't be
-                    // able to create a good chart with that data, so just ignore the
-                    // times we got before and pretend like our data extends back from
-                    // the time we have now.
-                    // Also, if we are getting a time change and we are less than 5 minutes
-                    // since the start of the history real time, then also use this new
-                    // time to compute the base time, since whatever time we had before is
-                    // pretty much just noise.
-                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
-                            || rec.time < (mHistStart+(5*60*1000L))) {
-                        mStartWallTime = 0;
-                    }
-                    lastWallTime = rec.currentTime;
-                    lastRealtime = rec.time;
-                    if (mStartWallTime == 0) {
-                        mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
-                    }
-                }
-                if (rec.isDeltaData()) {
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistDataEnd = rec.time;
-                    aggrStates |= rec.states;
-                    aggrStates2 |= rec.states2;
-                }
-            }
-        }
-        mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
-        mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
-        mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
-        mNumHist = lastInteresting;
-        mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-        mHaveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
-                || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
-                        |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
-                        |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0;
+        mRemainingTimeUs = remainingTimeUs;
         if (!com.android.settings.Utils.isWifiOnly(getContext())) {
             mHavePhoneSignal = true;
         }
+
+        // The history is decoded in the background, the chart is built once it is ready
+        mTimeline = null;
+        BatteryHistoryTimeline.load(stats, new BatteryHistoryTimeline.Callback() {
+            @Override
+            public void onTimelineLoaded(BatteryHistoryTimeline timeline) {
+                if (mStats == stats) {
+                    setTimeline(timeline);
+                }
+            }
+        });
+    }
+
+    private void setTimeline(BatteryHistoryTimeline timeline) {
+        mTimeline = timeline;
+        mHistStart = timeline.histStart;
+        mHistDataEnd = timeline.histDataEnd;
+        mStartWallTime = timeline.startWallTime;
+        mEndDataWallTime = timeline.endDataWallTime;
+        mHaveGps = timeline.haveGps;
+        mHaveWifi = timeline.haveWifi;
+        mHistEnd = mHistDataEnd + (mRemainingTimeUs/1000);
+        mEndWallTime = mEndDataWallTime + (mRemainingTimeUs/1000);
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
+
+        if (mLastWidth > 0 && mLastHeight > 0) {
+            buildChart(mLastWidth, mLastHeight);
+        }
+        invalidate();
     }
 
     @Override
@@ -690,6 +656,15 @@ public class BatteryHistoryChart extends View {
 
         mLastWidth = w;
         mLastHeight = h;
+        if (mTimeline != null) {
+            buildChart(w, h);
+        }
+    }
+
+    /**
+     * Lay out the chart for this size, from the decoded history.
+     */
+    private void buildChart(int w, int h) {
         mBitmap = null;
         mCanvas = null;
 
@@ -765,8 +740,6 @@ public class BatteryHistoryChart extends View {
         final long walltimeStart = mStartWallTime;
         final long walltimeChange = mEndWallTime > walltimeStart
                 ? (mEndWallTime-walltimeStart) : 1;
-        long curWalltime = mStartWallTime;
-        long lastRealtime = 0;
 
         final int batLow = mBatLow;
         final int batChange = mBatHigh-mBatLow;
@@ -775,197 +748,126 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
 
         int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
-        boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
-        int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
-        final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
-                    x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
-                    if (x < 0) {
-                        x = 0;
-                    }
-                    if (false) {
-                        StringBuilder sb = new StringBuilder(128);
-                        sb.append("walloff=");
-                        TimeUtils.formatDuration(curWalltime - walltimeStart, sb);
-                        sb.append(" wallchange=");
-                        TimeUtils.formatDuration(walltimeChange, sb);
-                        sb.append(" x=");
-                        sb.append(x);
-                        Log.d("foo", sb.toString());
-                    }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
-
-                    if (lastX != x) {
-                        // We have moved by at least a pixel.
-                        if (lastY != y) {
-                            // Don't plot changes within a pixel.
-                            Path path;
-                            byte value = rec.batteryLevel;
-                            if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
-                            else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
-                            else path = null; //mBatGoodPath;
-
-                            if (path != lastLinePath) {
-                                if (lastLinePath != null) {
-                                    lastLinePath.lineTo(x, y);
-                                }
-                                if (path != null) {
-                                    path.moveTo(x, y);
-                                }
-                                lastLinePath = path;
-                            } else if (path != null) {
-                                path.lineTo(x, y);
-                            }
-
-                            if (curLevelPath == null) {
-                                curLevelPath = mBatLevelPath;
-                                curLevelPath.moveTo(x, y);
-                                startX = x;
-                            } else {
-                                curLevelPath.lineTo(x, y);
-                            }
-                            lastX = x;
-                            lastY = y;
-                        }
-                    }
+        boolean lastWifiRunning = false, lastCpuRunning = false;
+        final BatteryHistoryTimeline timeline = mTimeline;
+        final int N = mEndDataWallTime > mStartWallTime ? timeline.count : 0;
+        for (int i = 0; i < N; i++) {
+            final int flags = timeline.flags[i];
+            if ((flags&BatteryHistoryTimeline.FLAG_BREAK) != 0) {
+                if (curLevelPath != null) {
+                    finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
+                            lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
+                            lastCpuRunning, lastLinePath);
+                    lastX = lastY = -1;
+                    curLevelPath = null;
+                    lastLinePath = null;
+                    lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
+                }
+                continue;
+            }
 
-                    if (mLargeMode) {
-                        final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
-                        if (charging != lastCharging) {
-                            if (charging) {
-                                mChargingPath.moveTo(x, h-mChargingOffset);
-                            } else {
-                                mChargingPath.lineTo(x, h-mChargingOffset);
-                            }
-                            lastCharging = charging;
+            x = mLevelLeft + (int)(((timeline.wallTimes[i]-walltimeStart)*levelWidth)
+                    /walltimeChange);
+            if (x < 0) {
+                x = 0;
+            }
+            final byte value = timeline.levels[i];
+            y = mLevelTop + levelh - ((value-batLow)*(levelh-1))/batChange;
+
+            if (lastX != x) {
+                // We have moved by at least a pixel.
+                if (lastY != y) {
+                    // Don't plot changes within a pixel.
+                    Path path;
+                    if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
+                    else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
+                    else path = null; //mBatGoodPath;
+
+                    if (path != lastLinePath) {
+                        if (lastLinePath != null) {
+                            lastLinePath.lineTo(x, y);
                         }
-
-                        final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
-                        if (screenOn != lastScreenOn) {
-                            if (screenOn) {
-                                mScreenOnPath.moveTo(x, h-mScreenOnOffset);
-                            } else {
-                                mScreenOnPath.lineTo(x, h-mScreenOnOffset);
-                            }
-                            lastScreenOn = screenOn;
+                        if (path != null) {
+                            path.moveTo(x, y);
                         }
+                        lastLinePath = path;
+                    } else if (path != null) {
+                        path.lineTo(x, y);
+                    }
 
-                        final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-                        if (gpsOn != lastGpsOn) {
-                            if (gpsOn) {
-                                mGpsOnPath.moveTo(x, h-mGpsOnOffset);
-                            } else {
-                                mGpsOnPath.lineTo(x, h-mGpsOnOffset);
-                            }
-                            lastGpsOn = gpsOn;
-                        }
+                    if (curLevelPath == null) {
+                        curLevelPath = mBatLevelPath;
+                        curLevelPath.moveTo(x, y);
+                        startX = x;
+                    } else {
+                        curLevelPath.lineTo(x, y);
+                    }
+                    lastX = x;
+                    lastY = y;
+                }
+            }
 
-                        final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
-                                    >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
-                        boolean wifiRunning;
-                        if (lastWifiSupplState != wifiSupplState) {
-                            lastWifiSupplState = wifiSupplState;
-                            switch (wifiSupplState) {
-                                case BatteryStats.WIFI_SUPPL_STATE_DISCONNECTED:
-                                case BatteryStats.WIFI_SUPPL_STATE_DORMANT:
-                                case BatteryStats.WIFI_SUPPL_STATE_INACTIVE:
-                                case BatteryStats.WIFI_SUPPL_STATE_INTERFACE_DISABLED:
-                                case BatteryStats.WIFI_SUPPL_STATE_INVALID:
-                                case BatteryStats.WIFI_SUPPL_STATE_UNINITIALIZED:
-                                    wifiRunning = lastWifiSupplRunning = false;
-                                    break;
-                                default:
-                                    wifiRunning = lastWifiSupplRunning = true;
-                                    break;
-                            }
-                        } else {
-                            wifiRunning = lastWifiSupplRunning;
-                        }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
-                                |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
-                                |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
-                            wifiRunning = true;
-                        }
-                        if (wifiRunning != lastWifiRunning) {
-                            if (wifiRunning) {
-                                mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
-                            } else {
-                                mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
-                            }
-                            lastWifiRunning = wifiRunning;
-                        }
+            if (mLargeMode) {
+                final boolean charging = (flags&BatteryHistoryTimeline.FLAG_CHARGING) != 0;
+                if (charging != lastCharging) {
+                    if (charging) {
+                        mChargingPath.moveTo(x, h-mChargingOffset);
+                    } else {
+                        mChargingPath.lineTo(x, h-mChargingOffset);
+                    }
+                    lastCharging = charging;
+                }
 
-                        final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
-                        if (cpuRunning != lastCpuRunning) {
-                            if (cpuRunning) {
-                                mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
-                            } else {
-                                mCpuRunningPath.lineTo(x, h - mCpuRunningOffset);
-                            }
-                            lastCpuRunning = cpuRunning;
-                        }
+                final boolean screenOn = (flags&BatteryHistoryTimeline.FLAG_SCREEN_ON) != 0;
+                if (screenOn != lastScreenOn) {
+                    if (screenOn) {
+                        mScreenOnPath.moveTo(x, h-mScreenOnOffset);
+                    } else {
+                        mScreenOnPath.lineTo(x, h-mScreenOnOffset);
+                    }
+                    lastScreenOn = screenOn;
+                }
 
-                        if (mLargeMode && mHavePhoneSignal) {
-                            int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
-                                    >> HistoryItem.STATE_PHONE_STATE_SHIFT)
-                                    == ServiceState.STATE_POWER_OFF) {
-                                bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
-                                bin = 1;
-                            } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
-                                        >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
-                                bin += 2;
-                            }
-                            mPhoneSignalChart.addTick(x, bin);
-                        }
+                final boolean gpsOn = (flags&BatteryHistoryTimeline.FLAG_GPS_ON) != 0;
+                if (gpsOn != lastGpsOn) {
+                    if (gpsOn) {
+                        mGpsOnPath.moveTo(x, h-mGpsOnOffset);
+                    } else {
+                        mGpsOnPath.lineTo(x, h-mGpsOnOffset);
                     }
+                    lastGpsOn = gpsOn;
+                }
 
-                } else {
-                    long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
-                        } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
-                        }
-                        lastRealtime = rec.time;
+                final boolean wifiRunning =
+                        (flags&BatteryHistoryTimeline.FLAG_WIFI_RUNNING) != 0;
+                if (wifiRunning != lastWifiRunning) {
+                    if (wifiRunning) {
+                        mWifiRunningPath.moveTo(x, h-mWifiRunningOffset);
+                    } else {
+                        mWifiRunningPath.lineTo(x, h-mWifiRunningOffset);
                     }
+                    lastWifiRunning = wifiRunning;
+                }
 
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
-                                    || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
-                        if (curLevelPath != null) {
-                            finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                    lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                    lastCpuRunning, lastLinePath);
-                            lastX = lastY = -1;
-                            curLevelPath = null;
-                            lastLinePath = null;
-                            lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
-                        }
+                final boolean cpuRunning = (flags&BatteryHistoryTimeline.FLAG_CPU_RUNNING) != 0;
+                if (cpuRunning != lastCpuRunning) {
+                    if (cpuRunning) {
+                        mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
+                    } else {
+                        mCpuRunningPath.lineTo(x, h - mCpuRunningOffset);
                     }
+                    lastCpuRunning = cpuRunning;
+                }
+
+                if (mHavePhoneSignal) {
+                    mPhoneSignalChart.addTick(x,
+                            (flags&BatteryHistoryTimeline.PHONE_SIGNAL_BIN_MASK)
+                            >> BatteryHistoryTimeline.PHONE_SIGNAL_BIN_SHIFT);
                 }
-                
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
         }
 
         if (lastY < 0 || lastX < 0) {
@@ -1111,6 +1013,10 @@ public class BatteryHistoryChart extends View {
         //buildBitmap(width, height);
 
         if (DEBUG) Log.d(TAG, "onDraw: " + width + "x" + height);
+        if (mTimeline == null) {
+            // Still decoding the history
+            return;
+        }
         //canvas.drawBitmap(mBitmap, 0, 0, null);
         drawChart(canvas, width, height);
     }
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.AsyncTask;
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+import android.telephony.ServiceState;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * The battery history of a {@link BatteryStats}, as drawn by {@link BatteryHistoryChart}.
+ *
+ * The history items are walked once on a background thread, and each data point is kept as
+ * its wall time, battery level and state bits in primitive arrays, so the chart can be laid
+ * out again at any size without walking the history again.  The last timeline is kept for
+ * the same history, which {@link BatteryHistoryPreference} and {@link BatteryHistoryDetail}
+ * both show.
+ */
+final class BatteryHistoryTimeline {
+    static final String TAG = "BatteryHistoryTimeline";
+
+    static final int FLAG_CHARGING = 1<<0;
+    static final int FLAG_SCREEN_ON = 1<<1;
+    static final int FLAG_GPS_ON = 1<<2;
+    static final int FLAG_WIFI_RUNNING = 1<<3;
+    static final int FLAG_CPU_RUNNING = 1<<4;
+    // Not a data point: the lines of the chart are ended here, across a reset or time change
+    static final int FLAG_BREAK = 1<<5;
+    static final int PHONE_SIGNAL_BIN_SHIFT = 8;
+    static final int PHONE_SIGNAL_BIN_MASK = 0xf<<PHONE_SIGNAL_BIN_SHIFT;
+
+    interface Callback {
+        /**
+         * Called on the main thread once the history is decoded.
+         */
+        void onTimelineLoaded(BatteryHistoryTimeline timeline);
+    }
+
+    long histStart;
+    long histDataEnd;
+    long startWallTime;
+    long endDataWallTime;
+    boolean haveGps;
+    boolean haveWifi;
+
+    int count;
+    long[] wallTimes;
+    byte[] levels = new byte[64];
+    int[] flags = new int[64];
+
+    // The history the last timeline was decoded from, guarded by BatteryHistoryTimeline.class
+    private static BatteryHistoryTimeline sLastTimeline;
+    private static long sLastStartClockTime;
+    private static int sLastHistorySize;
+
+    private BatteryHistoryTimeline() {
+    }
+
+    /**
+     * Decode the history of these stats in the background, unless it was just decoded.
+     */
+    static void load(final BatteryStats stats, final Callback callback) {
+        final long startClockTime = stats.getStartClockTime();
+        final int historySize = stats.getHistoryUsedSize();
+        synchronized (BatteryHistoryTimeline.class) {
+            if (sLastTimeline != null && sLastStartClockTime == startClockTime
+                    && sLastHistorySize == historySize) {
+                callback.onTimelineLoaded(sLastTimeline);
+                return;
+            }
+        }
+        new AsyncTask<Void, Void, BatteryHistoryTimeline>() {
+            @Override
+            protected BatteryHistoryTimeline doInBackground(Void... params) {
+                final BatteryHistoryTimeline timeline = decode(stats);
+                synchronized (BatteryHistoryTimeline.class) {
+                    sLastTimeline = timeline;
+                    sLastStartClockTime = startClockTime;
+                    sLastHistorySize = historySize;
+                }
+                return timeline;
+            }
+
+            @Override
+            protected void onPostExecute(BatteryHistoryTimeline timeline) {
+                callback.onTimelineLoaded(timeline);
+            }
+        }.execute();
+    }
+
+    private static BatteryHistoryTimeline decode(BatteryStats stats) {
+        final BatteryHistoryTimeline t = new BatteryHistoryTimeline();
+        // The command records, and the current time of the time changes, are only needed
+        // until the start wall time is known
+        byte[] cmds = new byte[64];
+        long[] times = new long[64];
+        long[] currentTimes = new long[64];
+        int lastDataIndex = -1;
+
+        long lastWallTime = 0;
+        long lastRealtime = 0;
+        int aggrStates = 0;
+        int aggrStates2 = 0;
+        boolean first = true;
+        boolean lastWifiSupplRunning = false;
+        int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
+        synchronized (stats) {
+            if (stats.startIteratingHistoryLocked()) {
+                final HistoryItem rec = new HistoryItem();
+                while (stats.getNextHistoryLocked(rec)) {
+                    if (first) {
+                        first = false;
+                        t.histStart = rec.time;
+                    }
+                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
+                            || rec.cmd == HistoryItem.CMD_RESET) {
+                        // If there is a ridiculously large jump in time, then we won't be
+                        // able to create a good chart with that data, so just ignore the
+                        // times we got before and pretend like our data extends back from
+                        // the time we have now.
+                        // Also, if we are getting a time change and we are less than 5
+                        // minutes since the start of the history real time, then also use
+                        // this new time to compute the base time, since whatever time we
+                        // had before is pretty much just noise.
+                        if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
+                                || rec.time < (t.histStart+(5*60*1000L))) {
+                            t.startWallTime = 0;
+                        }
+                        lastWallTime = rec.currentTime;
+                        lastRealtime = rec.time;
+                        if (t.startWallTime == 0) {
+                            t.startWallTime = lastWallTime - (lastRealtime-t.histStart);
+                        }
+                    }
+                    if (rec.cmd == HistoryItem.CMD_OVERFLOW) {
+                        // Neither a data point, a time change nor a break
+                        continue;
+                    }
+
+                    final int i = t.count;
+                    if (i == cmds.length) {
+                        final int size = i * 2;
+                        cmds = Arrays.copyOf(cmds, size);
+                        times = Arrays.copyOf(times, size);
+                        currentTimes = Arrays.copyOf(currentTimes, size);
+                        t.levels = Arrays.copyOf(t.levels, size);
+                        t.flags = Arrays.copyOf(t.flags, size);
+                    }
+                    cmds[i] = rec.cmd;
+                    times[i] = rec.time;
+                    currentTimes[i] = rec.currentTime;
+                    t.count++;
+                    if (!rec.isDeltaData()) {
+                        continue;
+                    }
+
+                    lastDataIndex = i;
+                    t.histDataEnd = rec.time;
+                    aggrStates |= rec.states;
+                    aggrStates2 |= rec.states2;
+                    t.levels[i] = rec.batteryLevel;
+
+                    int flags = 0;
+                    if ((rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0) {
+                        flags |= FLAG_CHARGING;
+                    }
+                    if ((rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0) {
+                        flags |= FLAG_SCREEN_ON;
+                    }
+                    if ((rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0) {
+                        flags |= FLAG_GPS_ON;
+                    }
+                    if ((rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0) {
+                        flags |= FLAG_CPU_RUNNING;
+                    }
+
+                    final int wifiSupplState =
+                        ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                                >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
+                    boolean wifiRunning;
+                    if (lastWifiSupplState != wifiSupplState) {
+                        lastWifiSupplState = wifiSupplState;
+                        switch (wifiSupplState) {
+                            case BatteryStats.WIFI_SUPPL_STATE_DISCONNECTED:
+                            case BatteryStats.WIFI_SUPPL_STATE_DORMANT:
+                            case BatteryStats.WIFI_SUPPL_STATE_INACTIVE:
+                            case BatteryStats.WIFI_SUPPL_STATE_INTERFACE_DISABLED:
+                            case BatteryStats.WIFI_SUPPL_STATE_INVALID:
+                            case BatteryStats.WIFI_SUPPL_STATE_UNINITIALIZED:
+                                wifiRunning = lastWifiSupplRunning = false;
+                                break;
+                            default:
+                                wifiRunning = lastWifiSupplRunning = true;
+                                break;
+                        }
+                    } else {
+                        wifiRunning = lastWifiSupplRunning;
+                    }
+                    if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                            |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
+                            |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
+                        wifiRunning = true;
+                    }
+                    if (wifiRunning) {
+                        flags |= FLAG_WIFI_RUNNING;
+                    }
+
+                    int bin;
+                    if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            >> HistoryItem.STATE_PHONE_STATE_SHIFT)
+                            == ServiceState.STATE_POWER_OFF) {
+                        bin = 0;
+                    } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                        bin = 1;
+                    } else {
+                        bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
+                        bin += 2;
+                    }
+                    t.flags[i] = flags | (bin << PHONE_SIGNAL_BIN_SHIFT);
+                }
+                stats.finishIteratingHistoryLocked();
+            }
+        }
+
+        t.endDataWallTime = lastWallTime + t.histDataEnd - lastRealtime;
+        t.haveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+        t.haveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
+                || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
+                        |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0;
+
+        // Now that the start wall time is known, compute the wall time of each data point
+        // and where the lines break, dropping the other records.  Nothing after the last data
+        // point is drawn.
+        final int recordCount = lastDataIndex + 1;
+        t.wallTimes = new long[recordCount];
+        t.count = 0;
+        long curWalltime = t.startWallTime;
+        lastRealtime = 0;
+        for (int i = 0; i < recordCount; i++) {
+            final int n = t.count;
+            if (cmds[i] == HistoryItem.CMD_UPDATE) {
+                curWalltime += times[i]-lastRealtime;
+                lastRealtime = times[i];
+                t.wallTimes[n] = curWalltime;
+                t.levels[n] = t.levels[i];
+                t.flags[n] = t.flags[i];
+                t.count++;
+                continue;
+            }
+            long lastWalltime = curWalltime;
+            if (cmds[i] == HistoryItem.CMD_CURRENT_TIME || cmds[i] == HistoryItem.CMD_RESET) {
+                if (currentTimes[i] >= t.startWallTime) {
+                    curWalltime = currentTimes[i];
+                } else {
+                    curWalltime = t.startWallTime + (times[i]-t.histStart);
+                }
+                lastRealtime = times[i];
+            }
+            if (cmds[i] != HistoryItem.CMD_CURRENT_TIME
+                    || Math.abs(lastWalltime-curWalltime) > (60*60*1000)) {
+                t.wallTimes[n] = curWalltime;
+                t.levels[n] = 0;
+                t.flags[n] = FLAG_BREAK;
+                t.count++;
+            }
+        }
+        t.wallTimes = Arrays.copyOf(t.wallTimes, t.count);
+        t.levels = Arrays.copyOf(t.levels, t.count);
+        t.flags = Arrays.copyOf(t.flags, t.count);
+        if (BatteryHistoryChart.DEBUG) Log.d(TAG, "Decoded " + t.count + " points");
+        return t;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+/**
+ * Data usage of the applications and users for a cycle, collapsed and sorted by
+ * {@link SummaryForAllUidLoader} so it can be bound as is.
+ */
+public class AppUsageSummary {
+    public static final AppUsageSummary EMPTY = new AppUsageSummary(new AppItem[0], 0);
+
+    private final AppItem[] mItems;
+    private final long mLargest;
+
+    AppUsageSummary(AppItem[] items, long largest) {
+        mItems = items;
+        mLargest = largest;
+    }
+
+    public int getCount() {
+        return mItems.length;
+    }
+
+    public AppItem getItem(int position) {
+        return mItems[position];
+    }
+
+    /**
+     * Return the largest total of the items, used to scale their usage.
+     */
+    public long getLargest() {
+        return mLargest;
+    }
+}
@@ -16,15 +16,34 @@
 
 package com.android.settings.net;
 
+import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.app.ActivityManager;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsSession;
+import android.net.NetworkPolicyManager;
 import android.net.NetworkStats;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.SparseArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+/**
+ * Loader of the data usage of all the UIDs for a cycle, collapsed into the
+ * {@link AppItem}s shown by the data usage list.
+ */
+public class SummaryForAllUidLoader extends AsyncTaskLoader<AppUsageSummary> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
@@ -53,16 +72,116 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     @Override
-    public NetworkStats loadInBackground() {
+    public AppUsageSummary loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
+        final NetworkStats stats;
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            stats = mSession.getSummaryForAllUid(template, start, end, false);
         } catch (RemoteException e) {
             return null;
         }
+        final int[] restrictedUids = NetworkPolicyManager.from(getContext()).getUidsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        return collapse(stats, restrictedUids);
+    }
+
+    private AppUsageSummary collapse(NetworkStats stats, int[] restrictedUids) {
+        final int currentUserId = ActivityManager.getCurrentUser();
+        final UserManager um = (UserManager) getContext().getSystemService(Context.USER_SERVICE);
+        final List<UserHandle> profiles = um.getUserProfiles();
+        final BitSet profileIds = new BitSet();
+        for (int i = 0; i < profiles.size(); i++) {
+            profileIds.set(profiles.get(i).getIdentifier());
+        }
+
+        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+
+            // Decide how to collapse items together
+            final int uid = entry.uid;
+            final long bytes = entry.rxBytes + entry.txBytes;
+
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                if (profileIds.get(userId)) {
+                    if (userId != currentUserId) {
+                        // Add to a managed user item.
+                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                        accumulate(knownItems, managedKey, AppItem.CATEGORY_USER, uid, bytes);
+                    }
+                    // Add to app item.
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    // Add to other user item.
+                    collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                    category = AppItem.CATEGORY_USER;
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            accumulate(knownItems, collapseKey, category, uid, bytes);
+        }
+
+        for (int i = 0; i < restrictedUids.length; i++) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            if (!profileIds.get(UserHandle.getUserId(uid))) {
+                continue;
+            }
+
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        final int count = knownItems.size();
+        if (count == 0) {
+            return AppUsageSummary.EMPTY;
+        }
+        final AppItem[] items = new AppItem[count + 1];
+        long largest = 0;
+        for (int i = 0; i < count; i++) {
+            items[i] = knownItems.valueAt(i);
+            largest = Math.max(largest, items[i].total);
+        }
+        final AppItem title = new AppItem();
+        title.category = AppItem.CATEGORY_APP_TITLE;
+        items[count] = title;
+        Arrays.sort(items);
+        return new AppUsageSummary(items, largest);
+    }
+
+    /**
+     * Accumulate the usage of a UID into the item mapped by the collapse key, creating the item
+     * if needed.
+     */
+    private static void accumulate(SparseArray<AppItem> knownItems, int collapseKey,
+            int category, int uid, long bytes) {
+        AppItem item = knownItems.get(collapseKey);
+        if (item == null) {
+            item = new AppItem(collapseKey);
+            item.category = category;
+            knownItems.put(collapseKey, item);
+        }
+        item.addUid(uid);
+        item.total += bytes;
     }
 
     @Override
@@ -57,6 +57,7 @@ import android.widget.SectionIndexer;
 import android.widget.Spinner;
 import android.widget.TextView;
 
+import com.android.settings.AppLabelIconCache;
 import com.android.settings.PinnedHeaderListFragment;
 import com.android.settings.R;
 import com.android.settings.Settings.NotificationAppListActivity;
@@ -373,18 +374,19 @@ public class NotificationAppList extends PinnedHeaderListFragment
     };
 
 
-    public static AppRow loadAppRow(PackageManager pm, ApplicationInfo app,
+    public static AppRow loadAppRow(Context context, ApplicationInfo app,
             Backend backend) {
+        final AppLabelIconCache cache = AppLabelIconCache.getInstance(context);
         final AppRow row = new AppRow();
         row.pkg = app.packageName;
         row.uid = app.uid;
         try {
-            row.label = app.loadLabel(pm);
+            row.label = cache.getLabel(app);
         } catch (Throwable t) {
             Log.e(TAG, "Error loading application label for " + row.pkg, t);
             row.label = row.pkg;
         }
-        row.icon = app.loadIcon(pm);
+        row.icon = cache.getIcon(app);
         row.banned = backend.getNotificationsBanned(row.pkg, row.uid);
         row.priority = backend.getHighPriority(row.pkg, row.uid);
         row.sensitive = backend.getSensitive(row.pkg, row.uid);
@@ -467,7 +469,7 @@ public class NotificationAppList extends PinnedHeaderListFragment
                         continue;
                     }
 
-                    final AppRow row = loadAppRow(mPM, info, mBackend);
+                    final AppRow row = loadAppRow(mContext, info, mBackend);
                     mRows.put(key, row);
                 }
 
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.privacyguard;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.widget.ImageView;
+
+import com.android.settings.AppLabelIconCache;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Loads the application icons of the rows of a list on a background thread.
+ *
+ * The icons of the rows bound last are loaded first, and only the last
+ * {@link #MAX_PENDING} requests are kept, so the rows scrolled through quickly are skipped
+ * in favor of the visible ones.  The loaded icons are kept in the {@link AppLabelIconCache}
+ * and set straight on the views still showing their application.
+ */
+class AppIconLoader {
+    private static final int MAX_PENDING = 24;
+
+    private final AppLabelIconCache mCache;
+    private final Handler mMainHandler = new Handler();
+    private final HandlerThread mThread;
+    private final Handler mBackgroundHandler;
+
+    // Main thread only
+    private final WeakHashMap<ImageView, String> mViews = new WeakHashMap<ImageView, String>();
+
+    // Guarded by mPending, the most recent request first
+    private final LinkedList<ApplicationInfo> mPending = new LinkedList<ApplicationInfo>();
+
+    private final Runnable mLoadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                final ApplicationInfo info;
+                synchronized (mPending) {
+                    if (mPending.isEmpty()) {
+                        return;
+                    }
+                    info = mPending.removeFirst();
+                }
+                final Drawable icon = mCache.getIcon(info);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onIconLoaded(info.packageName, icon);
+                    }
+                });
+            }
+        }
+    };
+
+    AppIconLoader(Context context) {
+        mCache = AppLabelIconCache.getInstance(context);
+        mThread = new HandlerThread("AppIconLoader", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mBackgroundHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Show the icon of the application in this view, or the default icon until it is loaded.
+     */
+    void bind(ImageView view, ApplicationInfo info, Drawable defaultIcon) {
+        final Drawable icon = mCache.peekIcon(info);
+        if (icon != null) {
+            mViews.remove(view);
+            view.setImageDrawable(icon);
+            return;
+        }
+        view.setImageDrawable(defaultIcon);
+        mViews.put(view, info.packageName);
+
+        synchronized (mPending) {
+            for (int i = 0; i < mPending.size(); i++) {
+                if (mPending.get(i).packageName.equals(info.packageName)) {
+                    mPending.remove(i);
+                    break;
+                }
+            }
+            mPending.addFirst(info);
+            while (mPending.size() > MAX_PENDING) {
+                mPending.removeLast();
+            }
+        }
+        mBackgroundHandler.removeCallbacks(mLoadRunnable);
+        mBackgroundHandler.post(mLoadRunnable);
+    }
+
+    void release() {
+        synchronized (mPending) {
+            mPending.clear();
+        }
+        mThread.quit();
+        mViews.clear();
+    }
+
+    private void onIconLoaded(String packageName, Drawable icon) {
+        final ArrayList<ImageView> views = new ArrayList<ImageView>();
+        for (Map.Entry<ImageView, String> entry : mViews.entrySet()) {
+            if (packageName.equals(entry.getValue())) {
+                views.add(entry.getKey());
+            }
+        }
+        for (int i = 0; i < views.size(); i++) {
+            final ImageView view = views.get(i);
+            mViews.remove(view);
+            view.setImageDrawable(icon);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.privacyguard;
+
+import android.app.AppOpsManager;
+import android.content.AsyncTaskLoader;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+
+import com.android.settings.AppLabelIconCache;
+import com.android.settings.privacyguard.PrivacyGuardManager.AppInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Loads the applications shown by {@link PrivacyGuardManager}, sorted by their enabled state,
+ * then by title.
+ *
+ * Only the application infos are read from the package manager.  The labels and privacy
+ * guard states are then read a page at a time, and the applications loaded so far are
+ * delivered after each page, so the list fills in while the rest is loading.  Once a full
+ * list was delivered, the reloads triggered by package changes only deliver the new full
+ * list, so the one shown is kept until then.
+ */
+public class AppListLoader extends AsyncTaskLoader<List<AppInfo>> {
+    private static final int PAGE_SIZE = 32;
+
+    private static final Comparator<AppInfo> COMPARATOR = new Comparator<AppInfo>() {
+        @Override
+        public int compare(AppInfo lhs, AppInfo rhs) {
+            if (lhs.enabled != rhs.enabled) {
+                return lhs.enabled ? -1 : 1;
+            }
+            return lhs.title.compareToIgnoreCase(rhs.title);
+        }
+    };
+
+    private final PackageManager mPm;
+    private final AppOpsManager mAppOps;
+    private final AppLabelIconCache mCache;
+    private final boolean mShowSystemApps;
+    private final Handler mHandler = new Handler();
+
+    private List<AppInfo> mApps;
+    private PackageReceiver mPackageReceiver;
+    // Incremented for each load, to drop the pages of a previous one
+    private volatile int mLoadGeneration;
+
+    public AppListLoader(Context context, boolean showSystemApps) {
+        super(context);
+        mPm = context.getPackageManager();
+        mAppOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+        mCache = AppLabelIconCache.getInstance(context);
+        mShowSystemApps = showSystemApps;
+    }
+
+    public boolean showsSystemApps() {
+        return mShowSystemApps;
+    }
+
+    @Override
+    public List<AppInfo> loadInBackground() {
+        final int generation = mLoadGeneration;
+        final List<ApplicationInfo> infos = mPm.getInstalledApplications(0);
+        final ArrayList<AppInfo> apps = new ArrayList<AppInfo>();
+
+        for (int start = 0; start < infos.size(); start += PAGE_SIZE) {
+            if (isLoadInBackgroundCanceled()) {
+                return null;
+            }
+            final int end = Math.min(start + PAGE_SIZE, infos.size());
+            boolean added = false;
+            for (int i = start; i < end; i++) {
+                final ApplicationInfo appInfo = infos.get(i);
+
+                // skip all system apps if they shall not be included
+                if (!mShowSystemApps && (appInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
+                    continue;
+                }
+
+                AppInfo app = new AppInfo();
+                app.title = mCache.getLabel(appInfo).toString();
+                app.packageName = appInfo.packageName;
+                app.enabled = appInfo.enabled;
+                app.uid = appInfo.uid;
+                app.info = appInfo;
+                app.privacyGuardEnabled = mAppOps.getPrivacyGuardSettingForPackage(
+                        app.uid, app.packageName);
+                apps.add(app);
+                added = true;
+            }
+            if (added) {
+                // Mostly a merge of the new page into the sorted ones
+                Collections.sort(apps, COMPARATOR);
+                if (end < infos.size()) {
+                    deliverPage(generation, new ArrayList<AppInfo>(apps));
+                }
+            }
+        }
+        return apps;
+    }
+
+    private void deliverPage(final int generation, final List<AppInfo> apps) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mLoadGeneration && isStarted() && mApps == null) {
+                    // Not kept as the result, the load goes on
+                    AppListLoader.super.deliverResult(apps);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void deliverResult(List<AppInfo> apps) {
+        if (isReset()) {
+            return;
+        }
+        mApps = apps;
+        if (isStarted()) {
+            super.deliverResult(apps);
+        }
+    }
+
+    @Override
+    protected void onForceLoad() {
+        mLoadGeneration++;
+        super.onForceLoad();
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mPackageReceiver == null) {
+            mPackageReceiver = new PackageReceiver();
+        }
+        if (mApps != null) {
+            deliverResult(mApps);
+        }
+        if (takeContentChanged() || mApps == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        mApps = null;
+        if (mPackageReceiver != null) {
+            getContext().unregisterReceiver(mPackageReceiver);
+            mPackageReceiver = null;
+        }
+    }
+
+    private class PackageReceiver extends BroadcastReceiver {
+        PackageReceiver() {
+            IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addDataScheme("package");
+            getContext().registerReceiver(this, filter);
+            // Register for events related to sdcard installation
+            IntentFilter sdFilter = new IntentFilter();
+            sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+            sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+            getContext().registerReceiver(this, sdFilter);
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            // Reloads now if started, else when started again
+            onContentChanged();
+        }
+    }
+}
@@ -17,9 +17,8 @@
 package com.android.settings.privacyguard;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -31,29 +30,64 @@ import android.widget.TextView;
 import com.android.settings.R;
 import com.android.settings.privacyguard.PrivacyGuardManager.AppInfo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIndexer {
 
     private LayoutInflater mInflater;
-    private PackageManager mPm;
 
-    private List<AppInfo> mApps;
-    private String[] mSections;
-    private int[] mPositions;
-    private ConcurrentHashMap<String, Drawable> mIcons;
+    private List<AppInfo> mApps = Collections.emptyList();
+    private String[] mSections = new String[0];
+    private int[] mPositions = new int[0];
+    private AppIconLoader mIconLoader;
     private Drawable mDefaultImg;
 
     private Context mContext;
 
     //constructor
-    public PrivacyGuardAppListAdapter(Context context, List<AppInfo> apps,
-            List<String> sections, List<Integer> positions) {
+    public PrivacyGuardAppListAdapter(Context context) {
         mContext = context;
         mInflater = LayoutInflater.from(mContext);
-        mPm = context.getPackageManager();
+
+        // set the default icon till the actual app icon is loaded in the background
+        mDefaultImg = mContext.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
+        mIconLoader = new AppIconLoader(context);
+    }
+
+    /**
+     * Show these apps, sorted by their enabled state then by title.
+     */
+    public void setApps(List<AppInfo> apps) {
+        String lastSectionIndex = null;
+        ArrayList<String> sections = new ArrayList<String>();
+        ArrayList<Integer> positions = new ArrayList<Integer>();
+        int count = apps.size(), offset = 0;
+
+        for (int i = 0; i < count; i++) {
+            AppInfo app = apps.get(i);
+            String sectionIndex;
+
+            if (!app.enabled) {
+                sectionIndex = "--"; //XXX
+            } else if (app.title.isEmpty()) {
+                sectionIndex = "";
+            } else {
+                sectionIndex = app.title.substring(0, 1).toUpperCase();
+            }
+            if (lastSectionIndex == null) {
+                lastSectionIndex = sectionIndex;
+            }
+
+            if (!TextUtils.equals(sectionIndex, lastSectionIndex)) {
+                sections.add(sectionIndex);
+                positions.add(offset);
+                lastSectionIndex = sectionIndex;
+            }
+            offset++;
+        }
 
         mApps = apps;
         mSections = sections.toArray(new String[sections.size()]);
@@ -61,12 +95,14 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
         for (int i = 0; i < positions.size(); i++) {
             mPositions[i] = positions.get(i);
         }
+        notifyDataSetChanged();
+    }
 
-        // set the default icon till the actual app icon is loaded in async task
-        mDefaultImg = mContext.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
-        mIcons = new ConcurrentHashMap<String, Drawable>();
-
-        new LoadIconsTask().execute(apps.toArray(new PrivacyGuardManager.AppInfo[]{}));
+    /**
+     * Stop loading the icons, when the list goes away.
+     */
+    public void release() {
+        mIconLoader.release();
     }
 
     @Override
@@ -105,8 +141,7 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
 
         appHolder.title.setText(app.title);
 
-        Drawable icon = mIcons.get(app.packageName);
-        appHolder.icon.setImageDrawable(icon != null ? icon : mDefaultImg);
+        mIconLoader.bind(appHolder.icon, app.info, mDefaultImg);
 
         int privacyGuardDrawableResId = app.privacyGuardEnabled
                 ? R.drawable.ic_privacy_guard_on :
@@ -149,31 +184,6 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
         return mSections;
     }
 
-    /**
-     * An asynchronous task to load the icons of the installed applications.
-     */
-    private class LoadIconsTask extends AsyncTask<PrivacyGuardManager.AppInfo, Void, Void> {
-        @Override
-        protected Void doInBackground(PrivacyGuardManager.AppInfo... apps) {
-            for (PrivacyGuardManager.AppInfo app : apps) {
-                try {
-                    Drawable icon = mPm.getApplicationIcon(app.packageName);
-                    mIcons.put(app.packageName, icon);
-                    publishProgress();
-                } catch (PackageManager.NameNotFoundException e) {
-                    // ignored; app will show up with default image
-                }
-            }
-
-            return null;
-        }
-
-        @Override
-        protected void onProgressUpdate(Void... progress) {
-            notifyDataSetChanged();
-        }
-    }
-
     /**
      * App view holder used to reuse the views inside the list.
      */
@@ -23,18 +23,18 @@ import android.app.Dialog;
 import android.app.DialogFragment;
 import android.app.Fragment;
 import android.app.FragmentManager;
+import android.app.LoaderManager;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.Loader;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
-import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -55,16 +55,18 @@ import com.android.settings.applications.AppOpsDetails;
 import com.android.settings.applications.AppOpsState;
 import com.android.settings.applications.AppOpsState.OpsTemplate;
 
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 public class PrivacyGuardManager extends Fragment
-        implements OnItemClickListener, OnItemLongClickListener {
+        implements OnItemClickListener, OnItemLongClickListener,
+        LoaderManager.LoaderCallbacks<List<PrivacyGuardManager.AppInfo>> {
 
     private static final String TAG = "PrivacyGuardManager";
 
+    private static final int LOADER_APPS = 0;
+    private static final String ARG_SHOW_SYSTEM_APPS = "show_system_apps";
+
     private TextView mNoUserAppsInstalled;
     private ListView mAppsList;
     private PrivacyGuardAppListAdapter mAdapter;
@@ -76,6 +78,9 @@ public class PrivacyGuardManager extends Fragment
     private SharedPreferences mPreferences;
     private AppOpsManager mAppOps;
 
+    // The app whose details were last opened, its privacy guard state may have changed
+    private AppInfo mDetailsApp;
+
     private int mSavedFirstVisiblePosition = AdapterView.INVALID_POSITION;
     private int mSavedFirstItemOffset;
 
@@ -90,6 +95,7 @@ public class PrivacyGuardManager extends Fragment
         boolean enabled;
         boolean privacyGuardEnabled;
         int uid;
+        ApplicationInfo info;
     }
 
     @Override
@@ -123,6 +129,10 @@ public class PrivacyGuardManager extends Fragment
         mAppsList.setOnItemClickListener(this);
         mAppsList.setOnItemLongClickListener(this);
 
+        mAdapter = new PrivacyGuardAppListAdapter(mActivity);
+        mAppsList.setAdapter(mAdapter);
+        mAppsList.setFastScrollEnabled(true);
+
         // get shared preference
         mPreferences = mActivity.getSharedPreferences("privacy_guard_manager", Activity.MODE_PRIVATE);
         if (!mPreferences.getBoolean("first_help_shown", false)) {
@@ -138,12 +148,17 @@ public class PrivacyGuardManager extends Fragment
             mSavedFirstItemOffset = 0;
         }
 
-        // load apps and construct the list
-        loadApps();
-
         setHasOptionsMenu(true);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mAdapter != null) {
+            mAdapter.release();
+        }
+    }
+
     @Override
     public void onViewStateRestored(Bundle savedInstanceState) {
         super.onViewStateRestored(savedInstanceState);
@@ -173,64 +188,69 @@ public class PrivacyGuardManager extends Fragment
     public void onResume() {
         super.onResume();
 
-        // rebuild the list; the user might have changed settings inbetween
-        loadApps();
+        // The loader reloads the list by itself when the packages change, it is only
+        // created again when the system apps are shown or hidden in between
+        final AppListLoader loader =
+                (AppListLoader) getLoaderManager().<List<AppInfo>>getLoader(LOADER_APPS);
+        if (loader != null && loader.showsSystemApps() == shouldShowSystemApps()) {
+            getLoaderManager().initLoader(LOADER_APPS, null, this);
+        } else {
+            loadApps();
+        }
 
-        if (mSavedFirstVisiblePosition != AdapterView.INVALID_POSITION) {
-            mAppsList.setSelectionFromTop(mSavedFirstVisiblePosition, mSavedFirstItemOffset);
-            mSavedFirstVisiblePosition = AdapterView.INVALID_POSITION;
+        // the user might have changed the settings of the app opened inbetween
+        if (mDetailsApp != null) {
+            mDetailsApp.privacyGuardEnabled = mAppOps.getPrivacyGuardSettingForPackage(
+                    mDetailsApp.uid, mDetailsApp.packageName);
+            mDetailsApp = null;
+            mAdapter.notifyDataSetChanged();
         }
     }
 
     private void loadApps() {
-        mApps = loadInstalledApps();
+        Bundle args = new Bundle();
+        args.putBoolean(ARG_SHOW_SYSTEM_APPS, shouldShowSystemApps());
+        getLoaderManager().restartLoader(LOADER_APPS, args, this);
+    }
+
+    @Override
+    public Loader<List<AppInfo>> onCreateLoader(int id, Bundle args) {
+        return new AppListLoader(mActivity, args.getBoolean(ARG_SHOW_SYSTEM_APPS));
+    }
+
+    @Override
+    public void onLoadFinished(Loader<List<AppInfo>> loader, List<AppInfo> apps) {
+        // Called after each page of apps, then with all of them; empty pages are not
+        // delivered, so an empty list means there is no app to show
+        if (apps == mApps) {
+            // the same list delivered again on resume
+            return;
+        }
+        mApps = apps;
 
         // if app list is empty inform the user
         // else go ahead and construct the list
-        if (mApps == null || mApps.isEmpty()) {
+        if (mApps.isEmpty()) {
             mNoUserAppsInstalled.setText(R.string.privacy_guard_no_user_apps);
             mNoUserAppsInstalled.setVisibility(View.VISIBLE);
             mAppsList.setVisibility(View.GONE);
-            mAppsList.setAdapter(null);
         } else {
             mNoUserAppsInstalled.setVisibility(View.GONE);
             mAppsList.setVisibility(View.VISIBLE);
-            mAdapter = createAdapter();
-            mAppsList.setAdapter(mAdapter);
-            mAppsList.setFastScrollEnabled(true);
         }
-    }
+        mAdapter.setApps(mApps);
 
-    private PrivacyGuardAppListAdapter createAdapter() {
-        String lastSectionIndex = null;
-        ArrayList<String> sections = new ArrayList<String>();
-        ArrayList<Integer> positions = new ArrayList<Integer>();
-        int count = mApps.size(), offset = 0;
-
-        for (int i = 0; i < count; i++) {
-            AppInfo app = mApps.get(i);
-            String sectionIndex;
-
-            if (!app.enabled) {
-                sectionIndex = "--"; //XXX
-            } else if (app.title.isEmpty()) {
-                sectionIndex = "";
-            } else {
-                sectionIndex = app.title.substring(0, 1).toUpperCase();
-            }
-            if (lastSectionIndex == null) {
-                lastSectionIndex = sectionIndex;
-            }
-
-            if (!TextUtils.equals(sectionIndex, lastSectionIndex)) {
-                sections.add(sectionIndex);
-                positions.add(offset);
-                lastSectionIndex = sectionIndex;
-            }
-            offset++;
+        if (mSavedFirstVisiblePosition != AdapterView.INVALID_POSITION
+                && mSavedFirstVisiblePosition < mApps.size()) {
+            mAppsList.setSelectionFromTop(mSavedFirstVisiblePosition, mSavedFirstItemOffset);
+            mSavedFirstVisiblePosition = AdapterView.INVALID_POSITION;
         }
+    }
 
-        return new PrivacyGuardAppListAdapter(mActivity, mApps, sections, positions);
+    @Override
+    public void onLoaderReset(Loader<List<AppInfo>> loader) {
+        mApps = null;
+        mAdapter.setApps(Collections.<AppInfo>emptyList());
     }
 
     private void resetPrivacyGuard() {
@@ -244,6 +264,7 @@ public class PrivacyGuardManager extends Fragment
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
         // on click open app details window
         final AppInfo app = (AppInfo) parent.getItemAtPosition(position);
+        mDetailsApp = app;
 
         Bundle args = new Bundle();
         args.putString(AppOpsDetails.ARG_PACKAGE_NAME, app.packageName);
@@ -266,50 +287,6 @@ public class PrivacyGuardManager extends Fragment
         return true;
     }
 
-    /**
-    * Uses the package manager to query for all currently installed apps
-    * for the list.
-    *
-    * @return the complete List off installed applications (@code PrivacyGuardAppInfo)
-    */
-    private List<AppInfo> loadInstalledApps() {
-        List<AppInfo> apps = new ArrayList<AppInfo>();
-        List<PackageInfo> packages = mPm.getInstalledPackages(
-            PackageManager.GET_PERMISSIONS | PackageManager.GET_SIGNATURES);
-        boolean showSystemApps = shouldShowSystemApps();
-
-        for (PackageInfo info : packages) {
-            final ApplicationInfo appInfo = info.applicationInfo;
-
-            // skip all system apps if they shall not be included
-            if (!showSystemApps && (appInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0) {
-                continue;
-            }
-
-            AppInfo app = new AppInfo();
-            app.title = appInfo.loadLabel(mPm).toString();
-            app.packageName = info.packageName;
-            app.enabled = appInfo.enabled;
-            app.uid = info.applicationInfo.uid;
-            app.privacyGuardEnabled = mAppOps.getPrivacyGuardSettingForPackage(
-                    app.uid, app.packageName);
-            apps.add(app);
-        }
-
-        // sort the apps by their enabled state, then by title
-        Collections.sort(apps, new Comparator<AppInfo>() {
-            @Override
-            public int compare(AppInfo lhs, AppInfo rhs) {
-                if (lhs.enabled != rhs.enabled) {
-                    return lhs.enabled ? -1 : 1;
-                }
-                return lhs.title.compareToIgnoreCase(rhs.title);
-            }
-        });
-
-        return apps;
-    }
-
     private boolean shouldShowSystemApps() {
         return mPreferences.getBoolean("show_system_apps", false);
     }
@@ -29,11 +29,13 @@ import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.print.PrintManager;
 import android.printservice.PrintService;
 import android.printservice.PrintServiceInfo;
 import android.provider.UserDictionary;
+import android.util.Log;
 import android.view.accessibility.AccessibilityManager;
 import android.view.inputmethod.InputMethodInfo;
 import android.view.inputmethod.InputMethodManager;
@@ -43,32 +45,49 @@ import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
 import com.android.settings.print.PrintSettingsFragment;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public final class DynamicIndexableContentMonitor extends PackageMonitor implements
         InputManager.InputDeviceListener {
 
+    private static final String TAG = "DynamicIndexableContentMonitor";
+
     private static final long DELAY_PROCESS_PACKAGE_CHANGE = 2000;
+    private static final long DELAY_PROCESS_CONTENT_CHANGE = 500;
+    // Max time a change can wait while other changes keep on coming
+    private static final long MAX_DELAY_PROCESS_CHANGES = 10000;
+
+    private static final int MSG_FLUSH_CHANGES = 1;
 
-    private static final int MSG_PACKAGE_AVAILABLE = 1;
-    private static final int MSG_PACKAGE_UNAVAILABLE = 2;
+    // Pending state of a package
+    private static final int PACKAGE_AVAILABLE = 1;
+    private static final int PACKAGE_UNAVAILABLE = 2;
+    // Removed then added again, e.g. upgraded: its old data must be replaced
+    private static final int PACKAGE_REPLACED = 3;
 
     private final List<String> mAccessibilityServices = new ArrayList<String>();
     private final List<String> mPrintServices = new ArrayList<String>();
     private final List<String> mImeServices = new ArrayList<String>();
 
+    // All the changes seen during the current window are coalesced into a single Index update.
+    // Those are only accessed from the main thread.
+    private final Map<String, Integer> mPendingPackages = new LinkedHashMap<String, Integer>();
+    private final Map<String, Boolean> mPendingUpdates = new LinkedHashMap<String, Boolean>();
+    private int mPendingEvents;
+    private long mFirstPendingEventTime;
+    private long mFlushTime;
+
+    private int mFlushCount;
+    private int mEventCount;
+
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_PACKAGE_AVAILABLE: {
-                    String packageName = (String) msg.obj;
-                    handlePackageAvailable(packageName);
-                } break;
-
-                case MSG_PACKAGE_UNAVAILABLE: {
-                    String packageName = (String) msg.obj;
-                    handlePackageUnavailable(packageName);
+                case MSG_FLUSH_CHANGES: {
+                    flushChanges();
                 } break;
             }
         }
@@ -177,6 +196,13 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                     mUserDictionaryContentObserver);
         }
 
+        // Index the changes still waiting for their batch, before the services are
+        // forgotten: the next full update is skipped if the locale is already indexed
+        mHandler.removeMessages(MSG_FLUSH_CHANGES);
+        if (mPendingEvents > 0) {
+            flushChanges();
+        }
+
         mAccessibilityServices.clear();
         mPrintServices.clear();
         mImeServices.clear();
@@ -185,13 +211,13 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
     // Covers installed, appeared external storage with the package, upgraded.
     @Override
     public void onPackageAppeared(String packageName, int uid) {
-        postMessage(MSG_PACKAGE_AVAILABLE, packageName);
+        postPackageChange(packageName, true);
     }
 
     // Covers uninstalled, removed external storage with the package.
     @Override
     public void onPackageDisappeared(String packageName, int uid) {
-        postMessage(MSG_PACKAGE_UNAVAILABLE, packageName);
+        postPackageChange(packageName, false);
     }
 
     // Covers enabled, disabled.
@@ -202,16 +228,15 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 packageName);
         if (state == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT
                 || state ==  PackageManager.COMPONENT_ENABLED_STATE_ENABLED) {
-            postMessage(MSG_PACKAGE_AVAILABLE, packageName);
+            postPackageChange(packageName, true);
         } else {
-            postMessage(MSG_PACKAGE_UNAVAILABLE, packageName);
+            postPackageChange(packageName, false);
         }
     }
 
     @Override
     public void onInputDeviceAdded(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), false, true);
+        postIndexUpdate(InputMethodAndLanguageSettings.class.getName(), false);
     }
 
     @Override
@@ -221,13 +246,86 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceChanged(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), true, true);
+        postIndexUpdate(InputMethodAndLanguageSettings.class.getName(), true);
+    }
+
+    private void postPackageChange(String packageName, boolean available) {
+        // Only the last state of a package matters, but a package that disappeared before
+        // appearing again must be re-indexed
+        final Integer pending = mPendingPackages.remove(packageName);
+        final int state;
+        if (!available) {
+            state = PACKAGE_UNAVAILABLE;
+        } else if (pending != null && pending != PACKAGE_AVAILABLE) {
+            state = PACKAGE_REPLACED;
+        } else {
+            state = PACKAGE_AVAILABLE;
+        }
+        mPendingPackages.put(packageName, state);
+        scheduleFlush(DELAY_PROCESS_PACKAGE_CHANGE);
+    }
+
+    private void postIndexUpdate(String className, boolean rebuild) {
+        addIndexUpdate(className, rebuild);
+        scheduleFlush(DELAY_PROCESS_CONTENT_CHANGE);
     }
 
-    private void postMessage(int what, String packageName) {
-        Message message = mHandler.obtainMessage(what, packageName);
-        mHandler.sendMessageDelayed(message, DELAY_PROCESS_PACKAGE_CHANGE);
+    private void addIndexUpdate(String className, boolean rebuild) {
+        final Boolean pendingRebuild = mPendingUpdates.get(className);
+        mPendingUpdates.put(className, rebuild || (pendingRebuild != null && pendingRebuild));
+    }
+
+    /**
+     * Debounce the flush of the pending changes: every new change pushes the flush back by the
+     * given delay, but never more than MAX_DELAY_PROCESS_CHANGES after the first pending change.
+     */
+    private void scheduleFlush(long delay) {
+        final long now = SystemClock.uptimeMillis();
+        if (mPendingEvents == 0) {
+            mFirstPendingEventTime = now;
+            mFlushTime = 0;
+        }
+        mPendingEvents++;
+
+        final long flushTime = Math.max(mFlushTime,
+                Math.min(now + delay, mFirstPendingEventTime + MAX_DELAY_PROCESS_CHANGES));
+        if (flushTime != mFlushTime) {
+            mFlushTime = flushTime;
+            mHandler.removeMessages(MSG_FLUSH_CHANGES);
+            mHandler.sendEmptyMessageAtTime(MSG_FLUSH_CHANGES, flushTime);
+        }
+    }
+
+    private void flushChanges() {
+        for (Map.Entry<String, Integer> entry : mPendingPackages.entrySet()) {
+            final String packageName = entry.getKey();
+            switch (entry.getValue()) {
+                case PACKAGE_AVAILABLE:
+                    handlePackageAvailable(packageName);
+                    break;
+                case PACKAGE_UNAVAILABLE:
+                    handlePackageUnavailable(packageName);
+                    break;
+                case PACKAGE_REPLACED:
+                    handlePackageUnavailable(packageName);
+                    handlePackageAvailable(packageName);
+                    break;
+            }
+        }
+
+        if (!mPendingUpdates.isEmpty()) {
+            Index.getInstance(mContext).updateFromClassNameResources(mPendingUpdates, true);
+        }
+
+        mFlushCount++;
+        mEventCount += mPendingEvents;
+        Log.d(TAG, "Coalesced " + mPendingEvents + " change(s) into " + mPendingUpdates.size()
+                + " Index update(s) - total: " + mEventCount + " change(s) in " + mFlushCount
+                + " flush(es)");
+
+        mPendingPackages.clear();
+        mPendingUpdates.clear();
+        mPendingEvents = 0;
     }
 
     private void handlePackageAvailable(String packageName) {
@@ -237,8 +335,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                     = mContext.getPackageManager().queryIntentServices(intent, 0);
             if (resolveInfos != null && !resolveInfos.isEmpty()) {
                 mAccessibilityServices.add(packageName);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        AccessibilitySettings.class.getName(), false, true);
+                addIndexUpdate(AccessibilitySettings.class.getName(), false);
             }
         }
 
@@ -249,8 +346,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                         = mContext.getPackageManager().queryIntentServices(intent, 0);
                 if (resolveInfos != null && !resolveInfos.isEmpty()) {
                     mPrintServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            PrintSettingsFragment.class.getName(), false, true);
+                    addIndexUpdate(PrintSettingsFragment.class.getName(), false);
                 }
             }
         }
@@ -262,8 +358,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                         = mContext.getPackageManager().queryIntentServices(intent, 0);
                 if (resolveInfos != null && !resolveInfos.isEmpty()) {
                     mImeServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            InputMethodAndLanguageSettings.class.getName(), false, true);
+                    addIndexUpdate(InputMethodAndLanguageSettings.class.getName(), false);
                 }
             }
         }
@@ -273,16 +368,14 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         final int accessibilityIndex = mAccessibilityServices.indexOf(packageName);
         if (accessibilityIndex >= 0) {
             mAccessibilityServices.remove(accessibilityIndex);
-            Index.getInstance(mContext).updateFromClassNameResource(
-                    AccessibilitySettings.class.getName(), true, true);
+            addIndexUpdate(AccessibilitySettings.class.getName(), true);
         }
 
         if (mHasFeaturePrinting) {
             final int printIndex = mPrintServices.indexOf(packageName);
             if (printIndex >= 0) {
                 mPrintServices.remove(printIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        PrintSettingsFragment.class.getName(), true, true);
+                addIndexUpdate(PrintSettingsFragment.class.getName(), true);
             }
         }
 
@@ -290,8 +383,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
             final int imeIndex = mImeServices.indexOf(packageName);
             if (imeIndex >= 0) {
                 mImeServices.remove(imeIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                addIndexUpdate(InputMethodAndLanguageSettings.class.getName(), true);
             }
         }
     }
@@ -305,8 +397,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (UserDictionary.Words.CONTENT_URI.equals(uri)) {
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                postIndexUpdate(InputMethodAndLanguageSettings.class.getName(), true);
             }
         };
     }
@@ -28,10 +28,14 @@ import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
-import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -51,11 +55,20 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
@@ -84,6 +97,7 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 
 import static com.android.settings.search.IndexDatabaseHelper.Tables;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.MetaFragmentsColumns;
 
 public class Index {
 
@@ -140,6 +154,10 @@ public class Index {
             IndexColumns.DATA_ENTRIES
     };
 
+    // Primary and secondary columns are matched in a single pass
+    private static final String[] MATCH_COLUMNS_ALL = concat(MATCH_COLUMNS_PRIMARY,
+            MATCH_COLUMNS_SECONDARY);
+
     // Max number of saved search queries (who will be used for proposing suggestions)
     private static long MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
@@ -147,6 +165,14 @@ public class Index {
 
     private static final String BASE_AUTHORITY = "com.android.settings";
 
+    private static final char LIKE_ESCAPE_CHAR = '\\';
+
+    // Those SQL statements are constant so that their compiled form is reused from the
+    // database statement cache: the query only changes the bound arguments.
+    private static final String SEARCH_SQL = buildSearchSQL();
+    private static final String SUGGESTIONS_SQL = buildSuggestionsSQL(false);
+    private static final String RECENT_SUGGESTIONS_SQL = buildSuggestionsSQL(true);
+
     private static final String EMPTY = "";
     private static final String NON_BREAKING_HYPHEN = "\u2011";
     private static final String HYPHEN = "-";
@@ -160,6 +186,59 @@ public class Index {
 
     private static final List<String> EMPTY_LIST = Collections.<String>emptyList();
 
+    // Prefix of the meta data records kept for a whole SearchIndexablesProvider authority
+    private static final String META_FRAGMENT_PROVIDER_PREFIX = "provider:";
+
+    // If you change the order of columns here, you SHOULD change the values of an index row
+    // built by updateOneRow()
+    private static final String[] INSERT_COLUMNS = new String[] {
+            IndexColumns.DOCID,                         // 0
+            IndexColumns.LOCALE,                        // 1
+            IndexColumns.DATA_RANK,                     // 2
+            IndexColumns.DATA_TITLE,                    // 3
+            IndexColumns.DATA_TITLE_NORMALIZED,         // 4
+            IndexColumns.DATA_SUMMARY_ON,               // 5
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,    // 6
+            IndexColumns.DATA_SUMMARY_OFF,              // 7
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,   // 8
+            IndexColumns.DATA_ENTRIES,                  // 9
+            IndexColumns.DATA_KEYWORDS,                 // 10
+            IndexColumns.DATA_KEYWORDS_NORMALIZED,      // 11
+            IndexColumns.CLASS_NAME,                    // 12
+            IndexColumns.SCREEN_TITLE,                  // 13
+            IndexColumns.INTENT_ACTION,                 // 14
+            IndexColumns.INTENT_TARGET_PACKAGE,         // 15
+            IndexColumns.INTENT_TARGET_CLASS,           // 16
+            IndexColumns.ICON,                          // 17
+            IndexColumns.ENABLED,                       // 18
+            IndexColumns.DATA_KEY_REF,                  // 19
+            IndexColumns.USER_ID                        // 20
+    };
+
+    private static final String INSERT_SQL = buildInsertSQL();
+
+    // Max number of threads parsing the indexable data
+    private static final int MAX_INDEXING_THREADS = 8;
+
+    // The parsing threads must not compete with the UI thread
+    private static final ThreadFactory INDEXING_THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "Index #" + mCount.getAndIncrement());
+        }
+    };
+
+    private static final long HASH_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long HASH_PRIME = 0x100000001b3L;
+
     private static Index sInstance;
 
     private static final Pattern REMOVE_DIACRITICALS_PATTERN
@@ -172,6 +251,8 @@ public class Index {
         public List<SearchIndexableData> dataToUpdate;
         public List<SearchIndexableData> dataToDelete;
         public Map<String, List<String>> nonIndexableKeys;
+        // Authority -> package name of the providers indexed by a full update
+        public Map<String, String> providers;
 
         public boolean forceUpdate = false;
 
@@ -179,12 +260,14 @@ public class Index {
             dataToUpdate = new ArrayList<SearchIndexableData>();
             dataToDelete = new ArrayList<SearchIndexableData>();
             nonIndexableKeys = new HashMap<String, List<String>>();
+            providers = new HashMap<String, String>();
         }
 
         public UpdateData(UpdateData other) {
             dataToUpdate = new ArrayList<SearchIndexableData>(other.dataToUpdate);
             dataToDelete = new ArrayList<SearchIndexableData>(other.dataToDelete);
             nonIndexableKeys = new HashMap<String, List<String>>(other.nonIndexableKeys);
+            providers = new HashMap<String, String>(other.providers);
             forceUpdate = other.forceUpdate;
         }
 
@@ -196,11 +279,90 @@ public class Index {
             dataToUpdate.clear();
             dataToDelete.clear();
             nonIndexableKeys.clear();
+            providers.clear();
             forceUpdate = false;
         }
     }
 
+    /**
+     * A private class to collect the rows produced when indexing one fragment.
+     *
+     * A hash of the rows content is computed as they are added. It is recorded in the
+     * meta data so that a fragment whose XML resource, SearchIndexProvider output or non
+     * indexable keys did not change does not need to be deleted and inserted again.
+     *
+     * A FragmentRows is filled by a single {@link ParseTask} and is only read once the task
+     * is done, by the thread writing into the database.
+     */
+    private static class FragmentRows {
+        // Null for data that is not tracked in the meta data (e.g. a single raw data)
+        public final String className;
+        public final String packageName;
+        // Each row holds the values of INSERT_COLUMNS
+        public final List<Object[]> rows = new ArrayList<Object[]>();
+        public boolean failed = false;
+        public long parseMillis;
+
+        private long mHash = HASH_OFFSET_BASIS;
+
+        public FragmentRows(String className, String packageName) {
+            this.className = className;
+            this.packageName = packageName;
+        }
+
+        public void add(Object[] row) {
+            rows.add(row);
+            for (Object value : row) {
+                mHash = hash(mHash, (value != null) ? value.toString() : null);
+            }
+        }
+
+        public boolean isTracked() {
+            return className != null;
+        }
+
+        public String getHash() {
+            return Long.toHexString(mHash);
+        }
+    }
+
+    private static String buildInsertSQL() {
+        final StringBuilder sb = new StringBuilder("INSERT OR REPLACE INTO ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" (");
+        for (int n = 0; n < INSERT_COLUMNS.length; n++) {
+            sb.append(INSERT_COLUMNS[n]);
+            if (n < INSERT_COLUMNS.length - 1) {
+                sb.append(", ");
+            }
+        }
+        sb.append(") VALUES (");
+        for (int n = 0; n < INSERT_COLUMNS.length; n++) {
+            sb.append("?");
+            if (n < INSERT_COLUMNS.length - 1) {
+                sb.append(", ");
+            }
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    private static long hash(long hash, String value) {
+        if (value != null) {
+            final int length = value.length();
+            for (int n = 0; n < length; n++) {
+                hash ^= value.charAt(n);
+                hash *= HASH_PRIME;
+            }
+        }
+        // Separate the values, and null from empty
+        hash ^= (value != null) ? 0x1F : 0x1E;
+        hash *= HASH_PRIME;
+        return hash;
+    }
+
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
     private final UpdateData mDataToProcess = new UpdateData();
     private Context mContext;
     private final String mBaseAuthority;
@@ -230,34 +392,49 @@ public class Index {
         return mIsAvailable.get();
     }
 
-    public Cursor search(String query) {
-        final SQLiteDatabase database = getReadableDatabase();
-        final Cursor[] cursors = new Cursor[2];
-
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
-        Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
-
-        // We need to use an EXCEPT operator as negate MATCH queries do not work.
-        StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
-        sql.append(" EXCEPT ");
-        sql.append(primarySql);
+    /**
+     * Return the generation of the Index data. It changes each time the indexed data or the
+     * saved queries are updated, so that search results can be cached for a generation.
+     */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
 
-        final String secondarySql = sql.toString();
-        Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+    /**
+     * Search the Index for the given query.
+     *
+     * Primary (title and keywords) and secondary (summaries and entries) columns are matched in
+     * a single FTS pass. The results whose title or keywords have a token starting with the
+     * query come first, then all the results are ordered by rank.
+     */
+    public Cursor search(String query) {
+        return search(query, null);
+    }
 
-        return new MergeCursor(cursors);
+    /**
+     * Search the Index for the given query, the search can be canceled with the given
+     * {@link CancellationSignal}.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        final String normalizedQuery = normalizeString(query);
+        final String[] args = new String[] {
+                buildSearchMatchStringForColumns(query, MATCH_COLUMNS_ALL),
+                Locale.getDefault().toString(),
+                escapeLikeString(normalizedQuery) + "%",
+                "% " + escapeLikeString(normalizedQuery) + "%"
+        };
+        return getReadableDatabase().rawQuery(SEARCH_SQL, args, cancellationSignal);
     }
 
     public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+        if (TextUtils.isEmpty(query)) {
+            return getReadableDatabase().rawQuery(RECENT_SUGGESTIONS_SQL, null);
+        }
+        final String[] args = new String[] { escapeLikeString(query) + "%" };
+        return getReadableDatabase().rawQuery(SUGGESTIONS_SQL, args);
     }
 
-    private String buildSuggestionsSQL(String query) {
+    private static String buildSuggestionsSQL(boolean recent) {
         StringBuilder sb = new StringBuilder();
 
         sb.append("SELECT ");
@@ -265,15 +442,13 @@ public class Index {
         sb.append(" FROM ");
         sb.append(Tables.TABLE_SAVED_QUERIES);
 
-        if (TextUtils.isEmpty(query)) {
+        if (recent) {
             sb.append(" ORDER BY rowId DESC");
         } else {
             sb.append(" WHERE ");
             sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
+            sb.append(" LIKE ? ESCAPE '");
+            sb.append(LIKE_ESCAPE_CHAR);
             sb.append("'");
         }
 
@@ -283,6 +458,26 @@ public class Index {
         return sb.toString();
     }
 
+    private static String escapeLikeString(String value) {
+        final StringBuilder sb = new StringBuilder(value.length());
+        final int length = value.length();
+        for (int n = 0; n < length; n++) {
+            final char c = value.charAt(n);
+            if (c == '%' || c == '_' || c == LIKE_ESCAPE_CHAR) {
+                sb.append(LIKE_ESCAPE_CHAR);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        final String[] result = new String[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
     public long addSavedQuery(String query){
         final SaveSearchQueryTask task = new SaveSearchQueryTask();
         task.execute(query);
@@ -311,7 +506,9 @@ public class Index {
             final String authority = info.providerInfo.authority;
             final String packageName = info.providerInfo.packageName;
 
-            addIndexablesFromRemoteProvider(packageName, authority);
+            if (addIndexablesFromRemoteProvider(packageName, authority)) {
+                addIndexedProvider(authority, packageName);
+            }
             addNonIndexablesKeysFromRemoteProvider(packageName, authority);
         }
 
@@ -415,6 +612,12 @@ public class Index {
         }
     }
 
+    private void addIndexedProvider(String authority, String packageName) {
+        synchronized (mDataToProcess) {
+            mDataToProcess.providers.put(authority, packageName);
+        }
+    }
+
     /**
      * Only allow a "well known" SearchIndexablesProvider. The provider should:
      *
@@ -489,6 +692,47 @@ public class Index {
         res.enabled = false;
     }
 
+    /**
+     * Update the Index for several class name resources at once, in a single update of the
+     * Index database.
+     *
+     * @param classNames the class names (typically fragment names), each one mapped to true if
+     *                   you want to delete its data from the Index first.
+     * @param includeInSearchResults true means that you want the bit "enabled" set so that the
+     *                               data will be seen included into the search results
+     */
+    public void updateFromClassNameResources(Map<String, Boolean> classNames,
+            boolean includeInSearchResults) {
+        final List<SearchIndexableResource> resources = new ArrayList<SearchIndexableResource>();
+        synchronized (mDataToProcess) {
+            for (Map.Entry<String, Boolean> entry : classNames.entrySet()) {
+                final String className = entry.getKey();
+                final SearchIndexableResource res =
+                        SearchIndexableResources.getResourceByName(className);
+                if (res == null) {
+                    Log.e(LOG_TAG, "Cannot find SearchIndexableResources for class name: "
+                            + className);
+                    continue;
+                }
+                res.context = mContext;
+                res.enabled = includeInSearchResults;
+                if (entry.getValue()) {
+                    deleteIndexableData(res);
+                }
+                addIndexableData(res);
+                resources.add(res);
+            }
+            if (resources.isEmpty()) {
+                return;
+            }
+            mDataToProcess.forceUpdate = true;
+            updateInternal();
+        }
+        for (SearchIndexableResource res : resources) {
+            res.enabled = false;
+        }
+    }
+
     public void updateFromSearchIndexableData(SearchIndexableData data) {
         addIndexableData(data);
         mDataToProcess.forceUpdate = true;
@@ -637,17 +881,11 @@ public class Index {
         }
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
-        if (withOrderBy) {
-            sb.append(" ORDER BY ");
-            sb.append(IndexColumns.DATA_RANK);
-        }
-        return sb.toString();
-    }
-
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
+    /**
+     * Build the search SQL. The arguments are: the MATCH expression, the locale, then the
+     * LIKE patterns for a query matching the start of a token.
+     */
+    private static String buildSearchSQL() {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
         for (int n = 0; n < SELECT_COLUMNS.length; n++) {
@@ -659,27 +897,36 @@ public class Index {
         sb.append(" FROM ");
         sb.append(Tables.TABLE_PREFS_INDEX);
         sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
-
-        return sb.toString();
-    }
-
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
-        final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
-        sb.append(" MATCH ");
-        DatabaseUtils.appendEscapedSQLString(sb,
-                buildSearchMatchStringForColumns(query, columnNames));
-        sb.append(" AND ");
+        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(" MATCH ?1 AND ");
         sb.append(IndexColumns.LOCALE);
-        sb.append(" = ");
-        DatabaseUtils.appendEscapedSQLString(sb, Locale.getDefault().toString());
-        sb.append(" AND ");
+        sb.append(" = ?2 AND ");
         sb.append(IndexColumns.ENABLED);
         sb.append(" = 1");
+        sb.append(" ORDER BY CASE WHEN ");
+        final String[] rankedColumns = new String[] {
+                IndexColumns.DATA_TITLE_NORMALIZED,
+                IndexColumns.DATA_KEYWORDS_NORMALIZED
+        };
+        for (int n = 0; n < rankedColumns.length; n++) {
+            if (n > 0) {
+                sb.append(" OR ");
+            }
+            sb.append(rankedColumns[n]);
+            sb.append(" LIKE ?3 ESCAPE '");
+            sb.append(LIKE_ESCAPE_CHAR);
+            sb.append("' OR ");
+            sb.append(rankedColumns[n]);
+            sb.append(" LIKE ?4 ESCAPE '");
+            sb.append(LIKE_ESCAPE_CHAR);
+            sb.append("'");
+        }
+        sb.append(" THEN 0 ELSE 1 END, ");
+        sb.append(IndexColumns.DATA_RANK);
         return sb.toString();
     }
 
-    private String buildSearchMatchStringForColumns(String query, String[] columnNames) {
+    private static String buildSearchMatchStringForColumns(String query, String[] columnNames) {
         final String value = query + "*";
         StringBuilder sb = new StringBuilder();
         final int count = columnNames.length;
@@ -694,23 +941,23 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
+    private void indexOneSearchIndexableData(FragmentRows rows, String localeStr,
             SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(rows, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(FragmentRows rows, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -743,7 +990,7 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
+    private void indexOneResource(FragmentRows rows, String localeStr,
             SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
 
         if (sir == null) {
@@ -759,7 +1006,7 @@ public class Index {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            indexFromResource(sir.context, rows, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
                     nonIndexableKeys);
@@ -785,7 +1032,7 @@ public class Index {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
+                indexFromProvider(mContext, rows, localeStr, provider, sir.className,
                         sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
             }
         }
@@ -811,7 +1058,7 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, FragmentRows rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
@@ -851,7 +1098,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -883,7 +1130,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -895,7 +1142,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -911,7 +1158,7 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, FragmentRows rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
             boolean enabled, List<String> nonIndexableKeys) {
 
@@ -936,7 +1183,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -972,7 +1219,7 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                indexFromResource(context, rows, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
                         item.intentTargetClass, nonIndexableKeys);
@@ -980,7 +1227,7 @@ public class Index {
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(FragmentRows rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -995,7 +1242,7 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
@@ -1003,18 +1250,39 @@ public class Index {
                 key, userId);
     }
 
-    private static String normalizeHyphen(String input) {
+    static String normalizeHyphen(String input) {
         return (input != null) ? input.replaceAll(NON_BREAKING_HYPHEN, HYPHEN) : EMPTY;
     }
 
-    private static String normalizeString(String input) {
+    static String normalizeString(String input) {
         final String nohyphen = (input != null) ? input.replaceAll(HYPHEN, EMPTY) : EMPTY;
         final String normalized = Normalizer.normalize(nohyphen, Normalizer.Form.NFD);
 
         return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    /**
+     * Normalize the comma separated keywords into words separated by a space, so that the
+     * start of each keyword can be matched like the start of a word of the normalized title.
+     */
+    static String normalizeKeywords(String keywords) {
+        if (TextUtils.isEmpty(keywords)) {
+            return EMPTY;
+        }
+        final StringBuilder sb = new StringBuilder(keywords.length());
+        for (String keyword : keywords.split(",")) {
+            final String normalized = normalizeString(normalizeHyphen(keyword)).trim();
+            if (normalized.length() > 0) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(normalized);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void updateOneRow(FragmentRows rows, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
@@ -1032,29 +1300,29 @@ public class Index {
         sb.append(screenTitle);
         int docId = sb.toString().hashCode();
 
-        ContentValues values = new ContentValues();
-        values.put(IndexColumns.DOCID, docId);
-        values.put(IndexColumns.LOCALE, locale);
-        values.put(IndexColumns.DATA_RANK, rank);
-        values.put(IndexColumns.DATA_TITLE, updatedTitle);
-        values.put(IndexColumns.DATA_TITLE_NORMALIZED, normalizedTitle);
-        values.put(IndexColumns.DATA_SUMMARY_ON, updatedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_ON_NORMALIZED, normalizedSummaryOn);
-        values.put(IndexColumns.DATA_SUMMARY_OFF, updatedSummaryOff);
-        values.put(IndexColumns.DATA_SUMMARY_OFF_NORMALIZED, normalizedSummaryOff);
-        values.put(IndexColumns.DATA_ENTRIES, entries);
-        values.put(IndexColumns.DATA_KEYWORDS, keywords);
-        values.put(IndexColumns.CLASS_NAME, className);
-        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
-        values.put(IndexColumns.INTENT_ACTION, intentAction);
-        values.put(IndexColumns.INTENT_TARGET_PACKAGE, intentTargetPackage);
-        values.put(IndexColumns.INTENT_TARGET_CLASS, intentTargetClass);
-        values.put(IndexColumns.ICON, iconResId);
-        values.put(IndexColumns.ENABLED, enabled);
-        values.put(IndexColumns.DATA_KEY_REF, key);
-        values.put(IndexColumns.USER_ID, userId);
-
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        rows.add(new Object[] {
+                docId,
+                locale,
+                rank,
+                updatedTitle,
+                normalizedTitle,
+                updatedSummaryOn,
+                normalizedSummaryOn,
+                updatedSummaryOff,
+                normalizedSummaryOff,
+                entries,
+                keywords,
+                normalizeKeywords(keywords),
+                className,
+                screenTitle,
+                intentAction,
+                intentTargetPackage,
+                intentTargetClass,
+                iconResId,
+                enabled,
+                key,
+                userId
+        });
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1145,6 +1413,45 @@ public class Index {
         }
    }
 
+    /**
+     * A private class for parsing the data of one fragment into index rows
+     */
+    private class ParseTask implements Callable<FragmentRows> {
+        private final String mClassName;
+        private final String mPackageName;
+        private final List<SearchIndexableData> mData;
+        private final String mLocaleStr;
+        private final Map<String, List<String>> mNonIndexableKeys;
+
+        public ParseTask(String className, String packageName, List<SearchIndexableData> data,
+                String localeStr, Map<String, List<String>> nonIndexableKeys) {
+            mClassName = className;
+            mPackageName = packageName;
+            mData = data;
+            mLocaleStr = localeStr;
+            mNonIndexableKeys = nonIndexableKeys;
+        }
+
+        @Override
+        public FragmentRows call() {
+            final long start = SystemClock.elapsedRealtime();
+            final FragmentRows rows = new FragmentRows(mClassName, mPackageName);
+            final int count = mData.size();
+            for (int n = 0; n < count; n++) {
+                final SearchIndexableData data = mData.get(n);
+                try {
+                    indexOneSearchIndexableData(rows, mLocaleStr, data, mNonIndexableKeys);
+                } catch (Exception e) {
+                    rows.failed = true;
+                    Log.e(LOG_TAG,
+                            "Cannot index: " + data.className + " for locale: " + mLocaleStr, e);
+                }
+            }
+            rows.parseMillis = SystemClock.elapsedRealtime() - start;
+            return rows;
+        }
+    }
+
     /**
      * A private class for updating the Index database
      */
@@ -1159,6 +1466,7 @@ public class Index {
         @Override
         protected void onPostExecute(Void aVoid) {
             super.onPostExecute(aVoid);
+            mGeneration.incrementAndGet();
             mIsAvailable.set(true);
         }
 
@@ -1167,6 +1475,7 @@ public class Index {
             final List<SearchIndexableData> dataToUpdate = params[0].dataToUpdate;
             final List<SearchIndexableData> dataToDelete = params[0].dataToDelete;
             final Map<String, List<String>> nonIndexableKeys = params[0].nonIndexableKeys;
+            final Map<String, String> providers = params[0].providers;
 
             final boolean forceUpdate = params[0].forceUpdate;
 
@@ -1180,9 +1489,12 @@ public class Index {
                 }
                 if (dataToUpdate.size() > 0) {
                     processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+                            providers, forceUpdate);
                 }
                 database.setTransactionSuccessful();
+            } catch (InterruptedException e) {
+                // Do not commit a partial update: the purge would lose the data not written
+                Log.w(LOG_TAG, "Interrupted while indexing, the index is left unchanged");
             } finally {
                 database.endTransaction();
             }
@@ -1192,7 +1504,8 @@ public class Index {
 
         private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
+                Map<String, String> providers, boolean forceUpdate)
+                throws InterruptedException {
 
             if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
                 Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
@@ -1200,25 +1513,180 @@ public class Index {
             }
 
             boolean result = false;
-            final long current = System.currentTimeMillis();
+            final long current = SystemClock.elapsedRealtime();
+
+            // Group the data per fragment, as several data can contribute to the same one.
+            // Data that is not tracked in the meta data gets its own group.
+            final Map<String, List<SearchIndexableData>> fragmentsData =
+                    new LinkedHashMap<String, List<SearchIndexableData>>();
+            final List<SearchIndexableData> untrackedData = new ArrayList<SearchIndexableData>();
 
             final int count = dataToUpdate.size();
             for (int n = 0; n < count; n++) {
                 final SearchIndexableData data = dataToUpdate.get(n);
-                try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
-                } catch (Exception e) {
-                    Log.e(LOG_TAG,
-                            "Cannot index: " + data.className + " for locale: " + localeStr, e);
+                if (data instanceof SearchIndexableResource && !TextUtils.isEmpty(data.className)) {
+                    List<SearchIndexableData> list = fragmentsData.get(data.className);
+                    if (list == null) {
+                        list = new ArrayList<SearchIndexableData>();
+                        fragmentsData.put(data.className, list);
+                    }
+                    list.add(data);
+                } else {
+                    untrackedData.add(data);
                 }
             }
 
-            final long now = System.currentTimeMillis();
+            // Parse stage: every fragment is parsed by a pool of worker threads
+            final int threads = Math.max(1, Math.min(MAX_INDEXING_THREADS,
+                    Runtime.getRuntime().availableProcessors()));
+            final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                    INDEXING_THREAD_FACTORY);
+            final List<Future<FragmentRows>> results = new ArrayList<Future<FragmentRows>>();
+            try {
+                for (Map.Entry<String, List<SearchIndexableData>> entry :
+                        fragmentsData.entrySet()) {
+                    final List<SearchIndexableData> list = entry.getValue();
+                    results.add(executor.submit(new ParseTask(entry.getKey(),
+                            list.get(0).packageName, list, localeStr, nonIndexableKeys)));
+                }
+                final int untrackedCount = untrackedData.size();
+                for (int n = 0; n < untrackedCount; n++) {
+                    final SearchIndexableData data = untrackedData.get(n);
+                    final List<SearchIndexableData> list = new ArrayList<SearchIndexableData>(1);
+                    list.add(data);
+                    results.add(executor.submit(new ParseTask(null, data.packageName, list,
+                            localeStr, nonIndexableKeys)));
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            final String build = Build.VERSION.INCREMENTAL;
+            if (providers.size() > 0) {
+                // This is a full update: forget about everything that is no more provided
+                // before writing the new data
+                final Set<String> provided = new HashSet<String>(fragmentsData.keySet());
+                for (String authority : providers.keySet()) {
+                    provided.add(META_FRAGMENT_PROVIDER_PREFIX + authority);
+                }
+                purgeStaleFragments(database, localeStr, provided);
+            }
+
+            final Map<String, String> hashes = getFragmentHashes(database, localeStr);
+            final Map<String, FragmentRows> fragments = new LinkedHashMap<String, FragmentRows>();
+            final SQLiteStatement statement = database.compileStatement(INSERT_SQL);
+            int unchanged = 0;
+            int rowsCount = 0;
+            long parseMillis = 0;
+            long waitMillis = 0;
+            long writeMillis = 0;
+
+            // Write stage: this thread is the only one writing, in the order of the data
+            try {
+                final int resultsCount = results.size();
+                for (int n = 0; n < resultsCount; n++) {
+                    final long waitStart = SystemClock.elapsedRealtime();
+                    final FragmentRows fragment = getParseResult(results.get(n));
+                    final long writeStart = SystemClock.elapsedRealtime();
+                    waitMillis += writeStart - waitStart;
+                    if (fragment == null) {
+                        continue;
+                    }
+                    parseMillis += fragment.parseMillis;
+
+                    if (!fragment.isTracked()) {
+                        rowsCount += insertRows(statement, fragment);
+                        writeMillis += SystemClock.elapsedRealtime() - writeStart;
+                        continue;
+                    }
+
+                    fragments.put(fragment.className, fragment);
+                    final String hash = fragment.getHash();
+                    if (!fragment.failed && hash.equals(hashes.get(fragment.className))) {
+                        // Nothing changed, just record that the fragment is current for this
+                        // build
+                        saveFragmentHash(database, localeStr, fragment.className, hash, build);
+                        unchanged++;
+                    } else {
+                        delete(database, localeStr, IndexColumns.CLASS_NAME, fragment.className);
+                        rowsCount += insertRows(statement, fragment);
+                        if (fragment.failed) {
+                            // Make sure it will be indexed again next time
+                            deleteFragmentHash(database, localeStr, fragment.className);
+                        } else {
+                            saveFragmentHash(database, localeStr, fragment.className, hash,
+                                    build);
+                        }
+                    }
+                    writeMillis += SystemClock.elapsedRealtime() - writeStart;
+                }
+            } finally {
+                statement.close();
+                executor.shutdownNow();
+            }
+
+            if (providers.size() > 0) {
+                // This was a full update: record each provider
+                for (Map.Entry<String, String> entry : providers.entrySet()) {
+                    final String authority = entry.getKey();
+                    final String packageName = entry.getValue();
+                    saveFragmentHash(database, localeStr, META_FRAGMENT_PROVIDER_PREFIX + authority,
+                            getProviderHash(packageName, fragments, nonIndexableKeys), build);
+                }
+            }
+
+            final long now = SystemClock.elapsedRealtime();
             Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
+                    (now - current) + " millis (" + (fragments.size() - unchanged) +
+                    " fragment(s) updated, " + unchanged + " unchanged)");
+            Log.d(LOG_TAG, "  parse: " + parseMillis + " millis on " + threads +
+                    " thread(s), waiting for parse: " + waitMillis + " millis, write: " +
+                    writeMillis + " millis for " + rowsCount + " row(s)");
             return result;
         }
 
+        private FragmentRows getParseResult(Future<FragmentRows> future)
+                throws InterruptedException {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Cannot parse indexing data", e);
+            }
+            return null;
+        }
+
+        private int insertRows(SQLiteStatement statement, FragmentRows fragment) {
+            final int count = fragment.rows.size();
+            for (int n = 0; n < count; n++) {
+                final Object[] row = fragment.rows.get(n);
+                statement.clearBindings();
+                for (int i = 0; i < row.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1, row[i]);
+                }
+                statement.executeInsert();
+            }
+            return count;
+        }
+
+        private String getProviderHash(String packageName, Map<String, FragmentRows> fragments,
+                Map<String, List<String>> nonIndexableKeys) {
+            long hash = HASH_OFFSET_BASIS;
+            for (FragmentRows fragment : fragments.values()) {
+                if (packageName.equals(fragment.packageName)) {
+                    hash = hash(hash, fragment.className);
+                    hash = hash(hash, fragment.getHash());
+                }
+            }
+            final List<String> keys = nonIndexableKeys.get(packageName);
+            if (keys != null) {
+                final int count = keys.size();
+                for (int n = 0; n < count; n++) {
+                    hash = hash(hash, keys.get(n));
+                }
+            }
+            return Long.toHexString(hash);
+        }
+
         private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
                 List<SearchIndexableData> dataToDelete) {
 
@@ -1233,6 +1701,7 @@ public class Index {
                 }
                 if (!TextUtils.isEmpty(data.className)) {
                     delete(database, IndexColumns.CLASS_NAME, data.className);
+                    deleteFragmentHash(database, null, data.className);
                 } else  {
                     if (data instanceof SearchIndexableRaw) {
                         final SearchIndexableRaw raw = (SearchIndexableRaw) data;
@@ -1256,16 +1725,107 @@ public class Index {
             return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
         }
 
+        private int delete(SQLiteDatabase database, String locale, String columName,
+                String value) {
+            final String whereClause = columName + "=? AND " + IndexColumns.LOCALE + "=?";
+            final String[] whereArgs = new String[] { value, locale };
+
+            return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
+        }
+
+        private Map<String, String> getFragmentHashes(SQLiteDatabase database, String locale) {
+            final Map<String, String> result = new HashMap<String, String>();
+            final Cursor cursor = database.query(Tables.TABLE_META_FRAGMENTS,
+                    new String[] {
+                            MetaFragmentsColumns.FRAGMENT, MetaFragmentsColumns.CONTENT_HASH },
+                    MetaFragmentsColumns.LOCALE + "=?", new String[] { locale },
+                    null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    result.put(cursor.getString(0), cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            return result;
+        }
+
+        private void saveFragmentHash(SQLiteDatabase database, String locale, String fragment,
+                String hash, String build) {
+            final ContentValues values = new ContentValues();
+            values.put(MetaFragmentsColumns.LOCALE, locale);
+            values.put(MetaFragmentsColumns.FRAGMENT, fragment);
+            values.put(MetaFragmentsColumns.CONTENT_HASH, hash);
+            values.put(MetaFragmentsColumns.BUILD, build);
+            database.replaceOrThrow(Tables.TABLE_META_FRAGMENTS, null, values);
+        }
+
+        /**
+         * Delete the hash of a fragment for a locale, or for all locales if locale is null.
+         */
+        private void deleteFragmentHash(SQLiteDatabase database, String locale, String fragment) {
+            if (locale == null) {
+                database.delete(Tables.TABLE_META_FRAGMENTS,
+                        MetaFragmentsColumns.FRAGMENT + "=?", new String[] { fragment });
+            } else {
+                database.delete(Tables.TABLE_META_FRAGMENTS,
+                        MetaFragmentsColumns.FRAGMENT + "=? AND " +
+                                MetaFragmentsColumns.LOCALE + "=?",
+                        new String[] { fragment, locale });
+            }
+        }
+
+        /**
+         * Delete the data of the fragments that are not provided anymore, and all the rows that
+         * are not tracked by a fragment (raw data), as a full update is going to insert again
+         * the ones that are still provided.
+         */
+        private void purgeStaleFragments(SQLiteDatabase database, String locale,
+                Set<String> provided) {
+            final Cursor cursor = database.query(Tables.TABLE_META_FRAGMENTS,
+                    new String[] { MetaFragmentsColumns.FRAGMENT },
+                    MetaFragmentsColumns.LOCALE + "=?", new String[] { locale },
+                    null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    final String fragment = cursor.getString(0);
+                    if (provided.contains(fragment)) {
+                        continue;
+                    }
+                    if (!fragment.startsWith(META_FRAGMENT_PROVIDER_PREFIX)) {
+                        Log.d(LOG_TAG, "Removing stale fragment: " + fragment);
+                    }
+                    deleteFragmentHash(database, locale, fragment);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            final String whereClause = IndexColumns.LOCALE + "=? AND (" +
+                    IndexColumns.CLASS_NAME + " IS NULL OR " +
+                    IndexColumns.CLASS_NAME + " NOT IN (SELECT " +
+                    MetaFragmentsColumns.FRAGMENT + " FROM " + Tables.TABLE_META_FRAGMENTS +
+                    " WHERE " + MetaFragmentsColumns.LOCALE + "=?))";
+            final int count = database.delete(Tables.TABLE_PREFS_INDEX, whereClause,
+                    new String[] { locale, locale });
+            Log.d(LOG_TAG, "Removed " + count + " untracked or stale row(s)");
+        }
+
+        /**
+         * A locale is indexed when a full update has been done for it with the current build.
+         */
         private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
             Cursor cursor = null;
             boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
+            final String whereClause = MetaFragmentsColumns.LOCALE + "=? AND " +
+                    MetaFragmentsColumns.BUILD + "=? AND " +
+                    MetaFragmentsColumns.FRAGMENT + " LIKE ?";
+            final String[] whereArgs = new String[] {
+                    locale, Build.VERSION.INCREMENTAL, META_FRAGMENT_PROVIDER_PREFIX + "%" };
             try {
                 // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
+                cursor = database.query(Tables.TABLE_META_FRAGMENTS, null,
+                        whereClause, whereArgs, null, null, null, "1");
                 final int count = cursor.getCount();
                 result = (count >= 1);
             } finally {
@@ -1310,6 +1870,7 @@ public class Index {
                             new String[] { Long.toString(delta) });
                     Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
                 }
+                mGeneration.incrementAndGet();
             } catch (Exception e) {
                 Log.d(LOG_TAG, "Cannot update saved Search queries", e);
             }
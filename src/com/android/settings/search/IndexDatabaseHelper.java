@@ -28,12 +28,13 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 117;
 
     public interface Tables {
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_META_FRAGMENTS = "meta_fragments";
     }
 
     public interface IndexColumns {
@@ -48,6 +49,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String DATA_SUMMARY_OFF_NORMALIZED = "data_summary_off_normalized";
         public static final String DATA_ENTRIES = "data_entries";
         public static final String DATA_KEYWORDS = "data_keywords";
+        public static final String DATA_KEYWORDS_NORMALIZED = "data_keywords_normalized";
         public static final String CLASS_NAME = "class_name";
         public static final String SCREEN_TITLE = "screen_title";
         public static final String INTENT_ACTION = "intent_action";
@@ -63,6 +65,13 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String BUILD = "build";
     }
 
+    public interface MetaFragmentsColumns {
+        public static final String LOCALE = "locale";
+        public static final String FRAGMENT = "fragment";
+        public static final String CONTENT_HASH = "content_hash";
+        public static final String BUILD = "build";
+    }
+
     public interface SavedQueriesColums  {
         public static final String QUERY = "query";
         public static final String TIME_STAMP = "timestamp";
@@ -91,6 +100,8 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     ", " +
                     IndexColumns.DATA_KEYWORDS +
                     ", " +
+                    IndexColumns.DATA_KEYWORDS_NORMALIZED +
+                    ", " +
                     IndexColumns.SCREEN_TITLE +
                     ", " +
                     IndexColumns.CLASS_NAME +
@@ -116,6 +127,21 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     MetaColumns.BUILD + " VARCHAR(32) NOT NULL" +
                     ")";
 
+    private static final String CREATE_META_FRAGMENTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_META_FRAGMENTS +
+                    "(" +
+                    MetaFragmentsColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    MetaFragmentsColumns.FRAGMENT + " TEXT NOT NULL" +
+                    ", " +
+                    MetaFragmentsColumns.CONTENT_HASH + " VARCHAR(16) NOT NULL" +
+                    ", " +
+                    MetaFragmentsColumns.BUILD + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    "PRIMARY KEY (" + MetaFragmentsColumns.LOCALE + ", " +
+                    MetaFragmentsColumns.FRAGMENT + ")" +
+                    ")";
+
     private static final String CREATE_SAVED_QUERIES_TABLE =
             "CREATE TABLE " + Tables.TABLE_SAVED_QUERIES +
                     "(" +
@@ -153,6 +179,7 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_META_FRAGMENTS_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
     }
@@ -164,9 +191,11 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         Log.i(TAG, "Using schema version: " + db.getVersion());
 
         if (!Build.VERSION.INCREMENTAL.equals(getBuildVersion(db))) {
-            Log.w(TAG, "Index needs to be rebuilt as build-version is not the same");
-            // We need to drop the tables and recreate them
-            reconstruct(db);
+            Log.w(TAG, "Index needs to be refreshed as build-version is not the same");
+            // The schema did not change, so keep the data: the per fragment content hashes
+            // will tell which fragments really need to be re-indexed for the new build, and
+            // the full update of the new build purges everything that is no more provided
+            updateBuildVersion(db);
         } else {
             Log.i(TAG, "Index is fine");
         }
@@ -195,6 +224,11 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         bootstrapDB(db);
     }
 
+    private void updateBuildVersion(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + Tables.TABLE_META_INDEX);
+        db.execSQL(INSERT_BUILD_VERSION);
+    }
+
     private String getBuildVersion(SQLiteDatabase db) {
         String version = null;
         Cursor cursor = null;
@@ -219,5 +253,6 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_FRAGMENTS);
     }
 }
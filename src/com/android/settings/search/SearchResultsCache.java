@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An in-memory LRU of recent search results and suggestions.
+ *
+ * Entries are only valid for one locale and one {@link Index#getGeneration()}: the cache is
+ * cleared as soon as one of them changes. When a single word query extends a cached one, its
+ * results are narrowed in memory from the cached results instead of querying the Index again.
+ */
+public class SearchResultsCache {
+
+    private static final int MAX_ENTRIES = 32;
+
+    /**
+     * An immutable copy of the rows of a Cursor.
+     */
+    public static class Snapshot {
+        private final String[] mColumns;
+        private final List<String[]> mRows;
+
+        private Snapshot(String[] columns, List<String[]> rows) {
+            mColumns = columns;
+            mRows = rows;
+        }
+
+        public static Snapshot fromCursor(Cursor cursor) {
+            final String[] columns = cursor.getColumnNames();
+            final List<String[]> rows = new ArrayList<String[]>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                final String[] row = new String[columns.length];
+                for (int n = 0; n < columns.length; n++) {
+                    row[n] = cursor.getString(n);
+                }
+                rows.add(row);
+            }
+            return new Snapshot(columns, Collections.unmodifiableList(rows));
+        }
+
+        public int getCount() {
+            return mRows.size();
+        }
+
+        /**
+         * Return a new Cursor over the rows of this snapshot. The caller owns the Cursor.
+         */
+        public Cursor newCursor() {
+            final MatrixCursor cursor = new MatrixCursor(mColumns, mRows.size());
+            final int count = mRows.size();
+            for (int n = 0; n < count; n++) {
+                cursor.addRow(mRows.get(n));
+            }
+            return cursor;
+        }
+    }
+
+    private final LruCache<String, Snapshot> mResults =
+            new LruCache<String, Snapshot>(MAX_ENTRIES);
+    private final LruCache<String, Snapshot> mSuggestions =
+            new LruCache<String, Snapshot>(MAX_ENTRIES);
+
+    private String mLocale;
+    private int mGeneration;
+
+    /**
+     * Return the cached results for exactly this query, or null.
+     */
+    public synchronized Snapshot getResults(String locale, int generation, String query) {
+        if (!checkValidity(locale, generation)) {
+            return null;
+        }
+        return mResults.get(query);
+    }
+
+    /**
+     * Return the results for this query, narrowing the results of a cached query it extends if
+     * possible, or null if the Index needs to be queried.
+     */
+    public Snapshot getOrNarrowResults(String locale, int generation, String query) {
+        final Snapshot base;
+        synchronized (this) {
+            if (!checkValidity(locale, generation)) {
+                return null;
+            }
+            final Snapshot cached = mResults.get(query);
+            if (cached != null) {
+                return cached;
+            }
+            base = findNarrowableResults(query);
+            if (base == null) {
+                return null;
+            }
+        }
+        final Snapshot narrowed = narrow(base, query);
+        putResults(locale, generation, query, narrowed);
+        return narrowed;
+    }
+
+    /**
+     * Cache the results of a query. They are dropped if they were computed for an older
+     * generation than the cached ones.
+     */
+    public synchronized void putResults(String locale, int generation, String query,
+            Snapshot snapshot) {
+        if (checkValidity(locale, generation)) {
+            mResults.put(query, snapshot);
+        }
+    }
+
+    public synchronized Snapshot getSuggestions(String locale, int generation, String query) {
+        if (!checkValidity(locale, generation)) {
+            return null;
+        }
+        return mSuggestions.get(query);
+    }
+
+    public synchronized void putSuggestions(String locale, int generation, String query,
+            Snapshot snapshot) {
+        if (checkValidity(locale, generation)) {
+            mSuggestions.put(query, snapshot);
+        }
+    }
+
+    /**
+     * Clear the cache when a newer generation or another locale is seen.
+     *
+     * @return false if the generation is older than the cached one: a task started before the
+     *         Index changed must neither read nor publish results.
+     */
+    private boolean checkValidity(String locale, int generation) {
+        if (generation < mGeneration) {
+            return false;
+        }
+        if (generation != mGeneration || !TextUtils.equals(locale, mLocale)) {
+            mResults.evictAll();
+            mSuggestions.evictAll();
+            mLocale = locale;
+            mGeneration = generation;
+        }
+        return true;
+    }
+
+    /**
+     * Find the cached results of the longest query this query extends. Only single word queries
+     * can be narrowed: a multi words FTS query does not restrict its terms to a column.
+     */
+    private Snapshot findNarrowableResults(String query) {
+        if (!isSingleWord(query)) {
+            return null;
+        }
+        for (int length = query.length() - 1; length > 0; length--) {
+            final Snapshot snapshot = mResults.get(query.substring(0, length));
+            if (snapshot != null) {
+                return snapshot;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSingleWord(String query) {
+        final int length = query.length();
+        for (int n = 0; n < length; n++) {
+            if (!Character.isLetterOrDigit(query.charAt(n))) {
+                return false;
+            }
+        }
+        return length > 0;
+    }
+
+    /**
+     * Keep the rows having a token starting with the query in one of the searched columns,
+     * ordered as {@link Index#search(String)} would do.
+     */
+    private static Snapshot narrow(Snapshot base, String query) {
+        final String normalizedQuery = Index.normalizeString(query);
+        final List<String[]> rows = new ArrayList<String[]>();
+        final List<String[]> primaryRows = new ArrayList<String[]>();
+
+        final int count = base.mRows.size();
+        for (int n = 0; n < count; n++) {
+            final String[] row = base.mRows.get(n);
+            if (!matches(row[Index.COLUMN_INDEX_TITLE], normalizedQuery)
+                    && !matches(row[Index.COLUMN_INDEX_KEYWORDS], normalizedQuery)
+                    && !matches(row[Index.COLUMN_INDEX_SUMMARY_ON], normalizedQuery)
+                    && !matches(row[Index.COLUMN_INDEX_SUMMARY_OFF], normalizedQuery)
+                    && !matches(row[Index.COLUMN_INDEX_ENTRIES], normalizedQuery)) {
+                continue;
+            }
+            // Same ranking as the Index: title or keywords starting a token first
+            if (startsToken(Index.normalizeString(row[Index.COLUMN_INDEX_TITLE]),
+                    normalizedQuery) || startsToken(
+                    Index.normalizeKeywords(row[Index.COLUMN_INDEX_KEYWORDS]), normalizedQuery)) {
+                primaryRows.add(row);
+            } else {
+                rows.add(row);
+            }
+        }
+
+        final Comparator<String[]> rankComparator = new Comparator<String[]>() {
+            @Override
+            public int compare(String[] lhs, String[] rhs) {
+                return parseRank(lhs[Index.COLUMN_INDEX_RANK])
+                        - parseRank(rhs[Index.COLUMN_INDEX_RANK]);
+            }
+        };
+        Collections.sort(primaryRows, rankComparator);
+        Collections.sort(rows, rankComparator);
+        primaryRows.addAll(rows);
+
+        return new Snapshot(base.mColumns, Collections.unmodifiableList(primaryRows));
+    }
+
+    /**
+     * Whether the value has a token starting with the query, either as stored or normalized as
+     * the Index does.
+     */
+    private static boolean matches(String value, String normalizedQuery) {
+        if (TextUtils.isEmpty(value)) {
+            return false;
+        }
+        return hasTokenPrefix(lowerCase(value), normalizedQuery)
+                || hasTokenPrefix(Index.normalizeString(Index.normalizeHyphen(value)),
+                        normalizedQuery);
+    }
+
+    private static boolean hasTokenPrefix(String value, String normalizedQuery) {
+        int start = 0;
+        final int length = value.length();
+        while (start < length) {
+            while (start < length && !Character.isLetterOrDigit(value.charAt(start))) {
+                start++;
+            }
+            if (value.startsWith(normalizedQuery, start)) {
+                return true;
+            }
+            while (start < length && Character.isLetterOrDigit(value.charAt(start))) {
+                start++;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsToken(String value, String normalizedQuery) {
+        return value.startsWith(normalizedQuery) || value.contains(" " + normalizedQuery);
+    }
+
+    private static String lowerCase(String value) {
+        return (value != null) ? value.toLowerCase() : "";
+    }
+
+    private static int parseRank(String rank) {
+        try {
+            return (rank != null) ? Integer.parseInt(rank) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
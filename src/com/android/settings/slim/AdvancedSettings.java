@@ -98,7 +98,7 @@ public class AdvancedSettings extends SettingsPreferenceFragment {
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference.getKey().equals(KEY_BUGREPORT)) {
             if (mBugReportTask == null || mBugReportTask.getStatus() != AsyncTask.Status.RUNNING) {
-                mBugReportTask = new BugReport();
+                mBugReportTask = new BugReport(preference);
                 mBugReportTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, getActivity());
             }
             return true;
@@ -17,123 +17,231 @@
 package com.android.settings.slim.util;
 
 import android.content.Context;
-import android.content.res.Resources;
 import android.os.AsyncTask;
-import android.os.Bundle;
 import android.os.Environment;
-import android.view.LayoutInflater;
-import android.view.View;
-import android.view.ViewGroup;
+import android.preference.Preference;
+import android.text.format.Formatter;
+import android.util.Log;
 import android.widget.Toast;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileNotFoundException;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import com.android.settings.R;
 
-public class BugReport extends AsyncTask<Context, Void, Context> {
+/**
+ * Collects logcat, last_kmsg and dmesg into bugreport.zip.
+ *
+ * Each log is collected by its own root shell, all at the same time, and its lines are
+ * written straight into its zip entry, without going through a file.  The entries are
+ * written one after another, so the logs not zipped yet are buffered in memory up to
+ * {@link #MAX_BUFFERED_LINES} lines each; logcat, the largest, is zipped first.
+ */
+public class BugReport extends AsyncTask<Context, Long, Context> {
+
+    private static final String TAG = "BugReport";
+
+    // Lines kept per log before its collection waits for the zip to catch up
+    private static final int MAX_BUFFERED_LINES = 8192;
+    private static final long PROGRESS_INTERVAL = 64 * 1024;
+    // Including the time waiting for root access to be granted
+    private static final long COLLECT_TIMEOUT = 5 * 60 * 1000;
+
+    private final LogSource[] mSources = {
+        new LogSource("logcat.log", "logcat -v time -d *:V"),
+        new LogSource("last_kmsg.log", "cat /proc/last_kmsg"),
+        new LogSource("dmesg.log", "dmesg"),
+    };
 
-    private File mLogcat;
-    private File mLastKmsg;
-    private File mDmesg;
+    private final Preference mPreference;
     private File mZip;
+    private boolean mFailed;
+    private long mBytes;
+    private long mLastProgress;
+
+    // A log collected by its own root shell, its lines queued until they are zipped
+    private static class LogSource implements RootShell.OutputListener {
+        final String mName;
+        final String mCommand;
+        final LinkedBlockingQueue<String> mLines =
+                new LinkedBlockingQueue<String>(MAX_BUFFERED_LINES);
+        RootShell.Command mResult;
+        volatile boolean mAbandoned;
+
+        LogSource(String name, String command) {
+            mName = name;
+            mCommand = command;
+        }
+
+        void start() {
+            RootShell shell = new RootShell("su");
+            mResult = shell.submit(mCommand, COLLECT_TIMEOUT, this);
+            // Exits once the command completed
+            shell.close();
+        }
+
+        /**
+         * @return the next line, or null once the log is complete.
+         */
+        String takeLine() throws InterruptedException {
+            while (true) {
+                String line = mLines.poll(100, TimeUnit.MILLISECONDS);
+                if (line != null) {
+                    return line;
+                }
+                // All the lines are queued before the command completes
+                if (mResult.isDone() && mLines.isEmpty()) {
+                    return null;
+                }
+            }
+        }
+
+        void abandon() {
+            mAbandoned = true;
+            mResult.cancel(true);
+            mLines.clear();
+        }
+
+        @Override
+        public void onStdout(String line) {
+            try {
+                while (!mAbandoned) {
+                    if (mLines.offer(line, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-    public BugReport() {
+        @Override
+        public void onStderr(String line) {
+            Log.w(TAG, mName + ": " + line);
+        }
+    }
+
+    /**
+     * @param preference shows the progress in its summary, if not null.
+     */
+    public BugReport(Preference preference) {
+        mPreference = preference;
         File extdir = Environment.getExternalStorageDirectory();
         File path = new File(extdir.getAbsolutePath(), "Bugreport");
         if (!path.exists()) {
             path.mkdirs();
         }
-        mLogcat = new File(path, "logcat.log");
-        mLastKmsg = new File(path, "last_kmsg.log");
-        mDmesg = new File(path, "dmesg.log");
         mZip = new File(path, "bugreport.zip");
-        if (mLogcat.exists()) {
-            mLogcat.delete();
+        if (mZip.exists()) {
+            mZip.delete();
         }
-        if (mLastKmsg.exists()) {
-            mLastKmsg.delete();
+        // Left by the versions that collected the logs into files first
+        for (int i = 0; i < mSources.length; i++) {
+            File log = new File(path, mSources[i].mName);
+            if (log.exists()) {
+                log.delete();
+            }
         }
-        if (mDmesg.exists()) {
-            mDmesg.delete();
+    }
+
+    @Override
+    protected Context doInBackground(Context... arg) {
+        Context context = arg[0];
+        for (int i = 0; i < mSources.length; i++) {
+            mSources[i].start();
         }
-        if (mZip.exists()) {
+
+        ZipOutputStream zos = null;
+        try {
+            zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(mZip)));
+            Writer writer = new OutputStreamWriter(zos, "UTF-8");
+            int collected = 0;
+            for (int i = 0; i < mSources.length; i++) {
+                if (zipLog(mSources[i], zos, writer)) {
+                    collected++;
+                }
+            }
+            writer.flush();
+            // Without root access, there is nothing worth reporting
+            mFailed = collected == 0;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + mZip, e);
+            mFailed = true;
+        } catch (InterruptedException e) {
+            mFailed = true;
+        } finally {
+            for (int i = 0; i < mSources.length; i++) {
+                mSources[i].abandon();
+            }
+            if (zos != null) try { zos.close(); } catch (IOException e) { mFailed = true; }
+        }
+        if (mFailed) {
             mZip.delete();
         }
+        return context;
     }
 
-    @Override
-    protected void onPreExecute() {
-        super.onPreExecute();
-        RootUtils.rootAccess();
+    /**
+     * @return whether the whole log was collected.
+     */
+    private boolean zipLog(LogSource source, ZipOutputStream zos, Writer writer)
+            throws IOException, InterruptedException {
+        zos.putNextEntry(new ZipEntry(source.mName));
+        String line;
+        while ((line = source.takeLine()) != null) {
+            writer.write(line);
+            writer.write('\n');
+            mBytes += line.length() + 1;
+            if (mBytes - mLastProgress >= PROGRESS_INTERVAL) {
+                mLastProgress = mBytes;
+                publishProgress(mBytes);
+            }
+        }
+        writer.flush();
+        zos.closeEntry();
+
+        try {
+            source.mResult.get();
+            return true;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Unable to collect " + source.mName, e.getCause());
+            return false;
+        }
     }
 
     @Override
-    protected Context doInBackground(Context... arg) {
-        Context context = arg[0];
-        RootUtils.runCommand("logcat -v time -d -f " + mLogcat.toString() + " *:V\n");
-        RootUtils.runCommand("cat /proc/last_kmsg > " + mLastKmsg.toString());
-        RootUtils.runCommand("dmesg > " + mDmesg.toString());
-        return context;
+    protected void onProgressUpdate(Long... bytes) {
+        if (mPreference != null) {
+            Context context = mPreference.getContext();
+            mPreference.setSummary(context.getString(R.string.bug_report_progress,
+                    Formatter.formatShortFileSize(context, bytes[0])));
+        }
     }
 
     @Override
     protected void onPostExecute(Context context) {
-        zipLogs(context);
-        RootUtils.closeSU();
+        if (mPreference != null) {
+            mPreference.setSummary(R.string.bug_report_summary);
+        }
+        if (mFailed) {
+            toast(context.getResources().getString(R.string.bug_report_failed), context);
+        } else {
+            Log.i(TAG, "Zipped " + mBytes + " bytes of logs into " + mZip.length() + " bytes");
+            toast(context.getResources().getString(R.string.bug_report_success), context);
+        }
     }
 
     private void toast(String text, Context context) {
         Toast toast = Toast.makeText(context, text, Toast.LENGTH_SHORT);
         toast.show();
     }
-
-    private void zipLogs(Context context) {
-        FileOutputStream fos = null;
-        ZipOutputStream zos = null;
-        try {
-            fos = new FileOutputStream(mZip);
-            zos = new ZipOutputStream(fos);
-            addToZipFile(mLogcat, zos);
-            addToZipFile(mLastKmsg, zos);
-            addToZipFile(mDmesg, zos);
-            toast(context.getResources().getString(R.string.bug_report_success), context);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            toast(context.getResources().getString(R.string.bug_report_failed), context);
-        } catch (IOException e) {
-            e.printStackTrace();
-            toast(context.getResources().getString(R.string.bug_report_failed), context);
-        } finally {
-            if (zos != null) try { zos.close(); } catch (IOException e) { e.printStackTrace(); }
-            if (fos != null) try { fos.close(); } catch (IOException e) { e.printStackTrace(); }
-        }
-    }
-
-    private void addToZipFile(File file, ZipOutputStream zos) throws FileNotFoundException, IOException {
-        if (zos == null || file == null || !file.exists()) {
-            return;
-        }
-        FileInputStream fis = null;
-        try {
-            fis = new FileInputStream(file);
-            ZipEntry zipEntry = new ZipEntry(file.getName());
-            zos.putNextEntry(zipEntry);
-
-            byte[] bytes = new byte[1024];
-            int length;
-            while ((length = fis.read(bytes)) >= 0) {
-                zos.write(bytes, 0, length);
-            }
-        } finally {
-            zos.closeEntry();
-            if (fis != null) fis.close();
-        }
-   }
 }
@@ -0,0 +1,583 @@
+/*
+ * Copyright (C) 2015 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.slim.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs commands in one persistent shell, such as "su", or "sh" for testing.
+ *
+ * Commands are written to the shell as soon as they are submitted, so they run back to back
+ * without waiting for the output of the previous ones to be read.  Each command returns a
+ * {@link Future} of its exit code and the lines it wrote to stdout and stderr, which are read
+ * separately.  Large outputs can be handed line by line to an {@link OutputListener} instead
+ * of being kept.
+ *
+ * Each command ends with a marker echoed on both streams, so a command must not read from
+ * stdin (it is redirected from /dev/null), exit the shell or leave a syntax error open.
+ *
+ * The shell runs one command at a time: the timeout of a command starts once the commands
+ * before it completed.  When the running command times out or is cancelled, the shell is
+ * killed and the commands after it, which did not start yet, are sent to a new shell.
+ */
+public class RootShell {
+    private static final String TAG = "RootShell";
+
+    /**
+     * The outcome of a command.
+     */
+    public static class Result {
+        public final int exitCode;
+        // The lines of the output, null if they were given to an OutputListener
+        public final List<String> stdout;
+        public final List<String> stderr;
+
+        Result(int exitCode, List<String> stdout, List<String> stderr) {
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+
+        /**
+         * @return the lines written to stdout, joined and trimmed.
+         */
+        public String getOutput() {
+            if (stdout == null) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < stdout.size(); i++) {
+                if (i > 0) {
+                    sb.append('\n');
+                }
+                sb.append(stdout.get(i));
+            }
+            return sb.toString().trim();
+        }
+    }
+
+    public interface OutputListener {
+        /**
+         * Called on a background thread for each line written to stdout.
+         */
+        void onStdout(String line);
+
+        /**
+         * Called on a background thread for each line written to stderr.
+         */
+        void onStderr(String line);
+    }
+
+    /**
+     * A command submitted to the shell.
+     */
+    public final class Command implements Future<Result> {
+        final int mId;
+        final String mCommand;
+        final long mTimeout;
+        final OutputListener mListener;
+
+        // ----- following protected by mLock of the shell -----
+        List<String> mStdout;
+        List<String> mStderr;
+        int mExitCode;
+        boolean mStdoutDone;
+        boolean mStderrDone;
+        Runnable mTimeoutRunnable;
+
+        // ----- following protected by this -----
+        private boolean mDone;
+        private boolean mCancelled;
+        private Result mResult;
+        private Throwable mFailure;
+
+        Command(int id, String command, long timeout, OutputListener listener) {
+            mId = id;
+            mCommand = command;
+            mTimeout = timeout;
+            mListener = listener;
+            reset();
+        }
+
+        void reset() {
+            mStdout = mListener == null ? new ArrayList<String>() : null;
+            mStderr = mListener == null ? new ArrayList<String>() : null;
+            mStdoutDone = false;
+            mStderrDone = false;
+            mTimeoutRunnable = null;
+        }
+
+        synchronized boolean finish(Result result, Throwable failure, boolean cancelled) {
+            if (mDone) {
+                return false;
+            }
+            mDone = true;
+            mResult = result;
+            mFailure = failure;
+            mCancelled = cancelled;
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return RootShell.this.cancel(this, mayInterruptIfRunning);
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        @Override
+        public synchronized Result get() throws InterruptedException, ExecutionException {
+            while (!mDone) {
+                wait();
+            }
+            return getResult();
+        }
+
+        @Override
+        public synchronized Result get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            final long end = System.nanoTime() + unit.toNanos(timeout);
+            while (!mDone) {
+                final long remaining = end - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return getResult();
+        }
+
+        private Result getResult() throws ExecutionException {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            if (mFailure != null) {
+                throw new ExecutionException(mFailure);
+            }
+            return mResult;
+        }
+    }
+
+    // A running shell process
+    private class Session {
+        final Process mProcess;
+        final Writer mWriter;
+        // The commands written to this shell that did not complete yet, in order
+        final LinkedList<Command> mRunning = new LinkedList<Command>();
+        int mOpenStreams = 2;
+        volatile boolean mDead;
+
+        Session() throws IOException {
+            mProcess = new ProcessBuilder(mShell).start();
+            mWriter = new BufferedWriter(new OutputStreamWriter(mProcess.getOutputStream()));
+            new StreamReader(this, mProcess.getInputStream(), false).start();
+            new StreamReader(this, mProcess.getErrorStream(), true).start();
+        }
+    }
+
+    private class StreamReader extends Thread {
+        private final Session mSession;
+        private final InputStream mStream;
+        private final boolean mStderr;
+
+        StreamReader(Session session, InputStream stream, boolean stderr) {
+            super(stderr ? "RootShell:stderr" : "RootShell:stdout");
+            mSession = session;
+            mStream = stream;
+            mStderr = stderr;
+        }
+
+        @Override
+        public void run() {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(mStream));
+            Command current = null;
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int marker = line.indexOf(mMarker);
+                    if (marker > 0) {
+                        // The output did not end with a new line
+                        current = deliver(current, line.substring(0, marker));
+                        line = line.substring(marker);
+                        marker = 0;
+                    }
+                    if (marker == 0) {
+                        onMarker(mSession, line.substring(mMarker.length()), mStderr);
+                        current = null;
+                    } else {
+                        current = deliver(current, line);
+                    }
+                }
+            } catch (IOException e) {
+                // The shell was killed
+            }
+            onSessionExit(mSession);
+        }
+
+        private Command deliver(Command current, String line) {
+            if (mSession.mDead) {
+                // Killed, its commands may have been sent to a new shell
+                return null;
+            }
+            if (current == null) {
+                current = getCurrentCommand(mSession, mStderr);
+                if (current == null) {
+                    // Not written by a command, such as a message of su
+                    return null;
+                }
+            }
+            if (current.mListener != null) {
+                if (!current.isDone()) {
+                    if (mStderr) {
+                        current.mListener.onStderr(line);
+                    } else {
+                        current.mListener.onStdout(line);
+                    }
+                }
+            } else if (mStderr) {
+                current.mStderr.add(line);
+            } else {
+                current.mStdout.add(line);
+            }
+            return current;
+        }
+    }
+
+    private final String[] mShell;
+    private final String mMarker;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    // ----- following protected by mLock -----
+
+    private Session mSession;
+    // The commands not written to the shell yet
+    private final LinkedList<Command> mPending = new LinkedList<Command>();
+    private int mNextId;
+    private boolean mClosed;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param shell the command starting the shell, such as "su".
+     */
+    public RootShell(String... shell) {
+        mShell = shell;
+        // Not to be mistaken for the output of a command
+        mMarker = ":RootShell:" + Long.toHexString(new Random().nextLong()) + ":";
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public Command submit(String command) {
+        return submit(command, 0, null);
+    }
+
+    /**
+     * Queue a command.
+     *
+     * @param timeout how long the command may run in milliseconds, 0 for no limit.
+     * @param listener receives the output of the command instead of its {@link Result}.
+     */
+    public Command submit(String command, long timeout, OutputListener listener) {
+        synchronized (mLock) {
+            if (mClosed) {
+                throw new IllegalStateException("Shell closed");
+            }
+            Command cmd = new Command(mNextId++, command, timeout, listener);
+            mPending.add(cmd);
+            mHandler.post(mFlushRunnable);
+            return cmd;
+        }
+    }
+
+    /**
+     * Let the commands queued so far complete, then exit the shell.
+     */
+    public void close() {
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Session session;
+                synchronized (mLock) {
+                    session = mSession;
+                    if (session == null) {
+                        if (mPending.isEmpty()) {
+                            mThread.quit();
+                        }
+                        return;
+                    }
+                }
+                try {
+                    session.mWriter.write("exit\n");
+                    session.mWriter.flush();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to exit shell", e);
+                    session.mProcess.destroy();
+                }
+            }
+        });
+    }
+
+    public boolean isClosed() {
+        synchronized (mLock) {
+            return mClosed;
+        }
+    }
+
+    private void flush() {
+        final Session session;
+        final StringBuilder script = new StringBuilder();
+        synchronized (mLock) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            if (mSession == null) {
+                try {
+                    mSession = new Session();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to run shell " + mShell[0], e);
+                    while (!mPending.isEmpty()) {
+                        mPending.removeFirst().finish(null, e, false);
+                    }
+                    if (mClosed) {
+                        mThread.quit();
+                    }
+                    return;
+                }
+            }
+            session = mSession;
+            while (!mPending.isEmpty()) {
+                Command cmd = mPending.removeFirst();
+                session.mRunning.add(cmd);
+                script.append("{\n").append(cmd.mCommand).append("\n} </dev/null\n");
+                script.append("echo \"").append(mMarker).append(cmd.mId).append(" $?\"\n");
+                script.append("echo \"").append(mMarker).append(cmd.mId).append("\" >&2\n");
+            }
+            if (mClosed) {
+                // Commands sent again to a new shell after close()
+                script.append("exit\n");
+            }
+            startTimeout(session);
+        }
+
+        // Not under the lock: the shell may wait for its output to be read
+        try {
+            session.mWriter.write(script.toString());
+            session.mWriter.flush();
+        } catch (IOException e) {
+            // The readers will fail the commands once the shell is gone
+            Log.w(TAG, "Unable to write to shell", e);
+            session.mProcess.destroy();
+        }
+    }
+
+    // Called with mLock held, when the first command of the shell may have changed
+    private void startTimeout(final Session session) {
+        final Command cmd = session.mRunning.peek();
+        if (cmd == null || cmd.mTimeout <= 0 || cmd.mTimeoutRunnable != null) {
+            return;
+        }
+        cmd.mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (!session.mDead && session.mRunning.peek() == cmd) {
+                        Log.w(TAG, "Command timed out: " + cmd.mCommand);
+                        killRunning(session, new TimeoutException(
+                                "Timed out after " + cmd.mTimeout + "ms"), false);
+                    }
+                }
+            }
+        };
+        mHandler.postDelayed(cmd.mTimeoutRunnable, cmd.mTimeout);
+    }
+
+    // Called with mLock held: fail the running command and restart the shell for the others
+    private void killRunning(Session session, Throwable failure, boolean cancelled) {
+        session.mDead = true;
+        if (mSession == session) {
+            mSession = null;
+        }
+        final Command running = session.mRunning.removeFirst();
+        if (running.mTimeoutRunnable != null) {
+            mHandler.removeCallbacks(running.mTimeoutRunnable);
+        }
+        running.finish(null, failure, cancelled);
+        session.mProcess.destroy();
+
+        for (int i = session.mRunning.size() - 1; i >= 0; i--) {
+            Command cmd = session.mRunning.get(i);
+            if (!cmd.isDone()) {
+                cmd.reset();
+                mPending.addFirst(cmd);
+            }
+        }
+        session.mRunning.clear();
+        if (!mPending.isEmpty()) {
+            mHandler.post(mFlushRunnable);
+        } else if (mClosed) {
+            mThread.quit();
+        }
+    }
+
+    private boolean cancel(Command cmd, boolean mayInterruptIfRunning) {
+        synchronized (mLock) {
+            if (cmd.isDone()) {
+                return false;
+            }
+            if (mPending.remove(cmd)) {
+                return cmd.finish(null, null, true);
+            }
+            final Session session = mSession;
+            if (mayInterruptIfRunning && session != null && session.mRunning.peek() == cmd) {
+                killRunning(session, null, true);
+                return true;
+            }
+            // It is in the shell already: it will run, but its output is dropped
+            return cmd.finish(null, null, true);
+        }
+    }
+
+    private Command getCurrentCommand(Session session, boolean stderr) {
+        synchronized (mLock) {
+            for (int i = 0; i < session.mRunning.size(); i++) {
+                Command cmd = session.mRunning.get(i);
+                if (!(stderr ? cmd.mStderrDone : cmd.mStdoutDone)) {
+                    return cmd;
+                }
+            }
+            return null;
+        }
+    }
+
+    private void onMarker(Session session, String marker, boolean stderr) {
+        int id;
+        int exitCode = 0;
+        try {
+            final int space = marker.indexOf(' ');
+            if (space >= 0) {
+                id = Integer.parseInt(marker.substring(0, space));
+                exitCode = Integer.parseInt(marker.substring(space + 1).trim());
+            } else {
+                id = Integer.parseInt(marker.trim());
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Bad marker: " + marker);
+            return;
+        }
+
+        synchronized (mLock) {
+            Command cmd = null;
+            for (int i = 0; i < session.mRunning.size(); i++) {
+                if (session.mRunning.get(i).mId == id) {
+                    cmd = session.mRunning.get(i);
+                    break;
+                }
+            }
+            if (cmd == null) {
+                return;
+            }
+            if (stderr) {
+                cmd.mStderrDone = true;
+            } else {
+                cmd.mStdoutDone = true;
+                cmd.mExitCode = exitCode;
+            }
+            if (!cmd.mStdoutDone || !cmd.mStderrDone) {
+                return;
+            }
+            session.mRunning.remove(cmd);
+            if (cmd.mTimeoutRunnable != null) {
+                mHandler.removeCallbacks(cmd.mTimeoutRunnable);
+            }
+            cmd.finish(new Result(cmd.mExitCode,
+                    cmd.mStdout != null ? Collections.unmodifiableList(cmd.mStdout) : null,
+                    cmd.mStderr != null ? Collections.unmodifiableList(cmd.mStderr) : null),
+                    null, false);
+            startTimeout(session);
+        }
+    }
+
+    // Called by each reader of the shell at the end of its stream
+    private void onSessionExit(Session session) {
+        synchronized (mLock) {
+            // Let the other stream deliver the markers it read
+            if (--session.mOpenStreams > 0 || session.mDead) {
+                return;
+            }
+            session.mDead = true;
+            if (mSession == session) {
+                mSession = null;
+            }
+            final IOException failure = new IOException("Shell exited");
+            while (!session.mRunning.isEmpty()) {
+                Command cmd = session.mRunning.removeFirst();
+                if (cmd.mTimeoutRunnable != null) {
+                    mHandler.removeCallbacks(cmd.mTimeoutRunnable);
+                }
+                cmd.finish(null, failure, false);
+            }
+            if (mClosed && mPending.isEmpty()) {
+                mThread.quit();
+            }
+        }
+    }
+}
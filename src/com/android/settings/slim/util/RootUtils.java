@@ -18,12 +18,7 @@ package com.android.settings.slim.util;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Created by willi on 14.12.14.
@@ -32,7 +27,7 @@ public class RootUtils {
 
     private static final String TAG = "RootUtils";
 
-    public static SU su;
+    private static RootShell sShell;
 
     public enum SELINUX_STATUS {
         NOSELINUX, DISABLED, PERMISSIVE, ENFORCING
@@ -40,6 +35,9 @@ public class RootUtils {
 
     public static SELINUX_STATUS getSelinux() {
         String status = runCommand("getenforce");
+        if (status == null) {
+            return SELINUX_STATUS.NOSELINUX;
+        }
         switch (status.toLowerCase()) {
             case "disabled":
                 return SELINUX_STATUS.DISABLED;
@@ -53,94 +51,49 @@ public class RootUtils {
     }
 
     public static boolean rootAccess() {
-        SU su = getSU();
-        su.runCommand("mount");
-        return !su.denied;
+        try {
+            // Fails once su exits, when root access is denied
+            getShell().submit("mount").get();
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            return false;
+        }
     }
 
     public static void mount(boolean writeable, String mountpoint) {
         runCommand(writeable ? "mount -o rw,remount " + mountpoint : "mount -o ro,remount " + mountpoint);
     }
 
-    public static void closeSU() {
-        if (su != null) su.close();
-        su = null;
+    public static synchronized void closeSU() {
+        if (sShell != null) sShell.close();
+        sShell = null;
     }
 
+    /**
+     * Run a command as root and wait for it.
+     *
+     * @return what the command wrote to stdout, trimmed, or null if it could not be run.
+     */
     public static String runCommand(String command) {
-        return getSU().runCommand(command);
-    }
-
-    private static SU getSU() {
-        if (su == null) su = new SU();
-        if (su.closed) su = new SU();
-        return su;
+        try {
+            return getShell().submit(command).get().getOutput();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to run " + command, e.getCause());
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted running " + command);
+        }
+        return null;
     }
 
     /**
-     * Based on AndreiLux's SU code in Synapse
-     * https://github.com/AndreiLux/Synapse/blob/master/src/main/java/com/af/synapse/utils/Utils.java#L238
+     * @return the root shell shared by the app, which runs the commands submitted to it in
+     *         order, see {@link RootShell}.
      */
-    public static class SU {
-
-        private Process process;
-        private BufferedWriter bufferedWriter;
-        private BufferedReader bufferedReader;
-        private boolean closed;
-        private boolean denied;
-
-        public SU() {
-            try {
-                Log.i(TAG, "SU initialized");
-                process = Runtime.getRuntime().exec("su");
-                bufferedWriter = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
-                bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to run shell as su");
-            }
-        }
-
-        public synchronized String runCommand(final String command) {
-            try {
-                StringBuilder sb = new StringBuilder();
-                String callback = "/shellCallback/";
-                bufferedWriter.write(command + "\necho " + callback + "\n");
-                bufferedWriter.flush();
-
-                int i;
-                char[] buffer = new char[256];
-                while (true) {
-                    sb.append(buffer, 0, bufferedReader.read(buffer));
-                    if ((i = sb.indexOf(callback)) > -1) {
-                        sb.delete(i, i + callback.length());
-                        break;
-                    }
-                }
-                return sb.toString().trim();
-            } catch (IOException e) {
-                denied = true;
-                e.printStackTrace();
-            } catch (ArrayIndexOutOfBoundsException e) {
-                denied = true;
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            return null;
-        }
-
-        public void close() {
-            try {
-                bufferedWriter.write("exit\n");
-                bufferedWriter.flush();
-
-                process.waitFor();
-                Log.i(TAG, "SU closed: " + process.exitValue());
-                closed = true;
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-
+    public static synchronized RootShell getShell() {
+        if (sShell == null || sShell.isClosed()) sShell = new RootShell("su");
+        return sShell;
     }
 
 }
@@ -37,6 +37,7 @@ import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.List;
 import java.util.Map;
 
 
@@ -138,7 +139,7 @@ class AccessPoint extends Preference {
         return (config.wepKeys[0] != null) ? SECURITY_WEP : SECURITY_NONE;
     }
 
-    private static int getSecurity(ScanResult result) {
+    static int getSecurity(ScanResult result) {
         if (result.capabilities.contains("WEP")) {
             return SECURITY_WEP;
         } else if (result.capabilities.contains("PSK")) {
@@ -213,6 +214,16 @@ class AccessPoint extends Preference {
         refresh();
     }
 
+    /**
+     * Create an access point from its configuration, if any, and scan results, to be kept
+     * across scans and updated with {@link #update(WifiConfiguration, List)}.
+     */
+    AccessPoint(Context context, WifiConfiguration config, List<ScanResult> results) {
+        super(context);
+        security = config != null ? getSecurity(config) : getSecurity(results.get(0));
+        update(config, results);
+    }
+
     AccessPoint(Context context, Bundle savedState) {
         super(context);
 
@@ -393,6 +404,62 @@ class AccessPoint extends Preference {
         return false;
     }
 
+    /**
+     * Replace the configuration and scan results of an access point kept across scans.  The
+     * results all have the SSID and security of this access point, and there must be at least
+     * one if there is no configuration.
+     */
+    void update(WifiConfiguration config, List<ScanResult> results) {
+        if (config != null) {
+            loadConfig(config);
+        } else {
+            mConfig = null;
+            networkId = WifiConfiguration.INVALID_NETWORK_ID;
+            ssid = results.get(0).SSID;
+            bssid = results.get(0).BSSID;
+            wpsAvailable = security != SECURITY_EAP
+                    && results.get(0).capabilities.contains("WPS");
+        }
+        setScanResults(results);
+        refresh();
+    }
+
+    /**
+     * Replace the scan results of an access point kept across scans, when they did not change
+     * what is shown: neither the title, summary nor icon is updated.
+     */
+    void updateScanResults(List<ScanResult> results) {
+        if (mConfig == null) {
+            bssid = results.get(0).BSSID;
+        }
+        setScanResults(results);
+    }
+
+    private void setScanResults(List<ScanResult> results) {
+        mRssi = mInfo != null ? mInfo.getRssi() : Integer.MAX_VALUE;
+        mScanResult = null;
+        for (int i = 0; i < results.size(); i++) {
+            final ScanResult result = results.get(i);
+            if (mRssi == Integer.MAX_VALUE || result.level > mRssi) {
+                mRssi = result.level;
+            }
+            if (result.seen > mSeen) {
+                mSeen = result.seen;
+            }
+            if (WifiSettings.mVerboseLogging > 0) {
+                if (mScanResultCache == null) {
+                    mScanResultCache = new LruCache<String, ScanResult>(32);
+                }
+                mScanResultCache.put(result.BSSID, result);
+            }
+            // This flag only comes from scans, is not easily saved in config
+            if (security == SECURITY_PSK) {
+                pskType = getPskType(result);
+            }
+            mScanResult = result;
+        }
+    }
+
     public void setSortPreference(boolean sort) {
         mSortPreference = sort;
     }
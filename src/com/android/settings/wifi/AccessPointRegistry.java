@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.wifi;
+
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Parcel;
+import android.os.Process;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The access points of {@link WifiSettings}, kept across scans and keyed by SSID and security.
+ *
+ * The configured networks and scan results are read and grouped on a background thread, and
+ * compared with those of the previous update.  Only the access points added, changed or
+ * removed since then are handed to the main thread, so the same {@link AccessPoint}
+ * preferences are updated in place instead of being built again on every scan.
+ */
+class AccessPointRegistry {
+    private static final String TAG = "AccessPointRegistry";
+
+    interface Callback {
+        /**
+         * Called on the main thread with the changes since the last update.
+         */
+        void onAccessPointsChanged(Diff diff);
+    }
+
+    /**
+     * The configuration and scan results of one access point.
+     */
+    static final class Record {
+        final String key;
+        final WifiConfiguration config;
+        final ArrayList<ScanResult> results = new ArrayList<ScanResult>(3);
+
+        // Parceled config, to tell whether it changed
+        private final byte[] mConfigContent;
+        // Signal level of the strongest result, -1 if out of range
+        private int mLevel = -1;
+
+        Record(String key, WifiConfiguration config) {
+            this.key = key;
+            this.config = config;
+            mConfigContent = config != null ? marshall(config) : null;
+        }
+
+        void addResult(ScanResult result) {
+            results.add(result);
+            mLevel = Math.max(mLevel, WifiManager.calculateSignalLevel(result.level, 4));
+        }
+
+        /**
+         * Whether the access point shows the same with both records.
+         */
+        boolean sameAs(Record other) {
+            return mLevel == other.mLevel && Arrays.equals(mConfigContent, other.mConfigContent);
+        }
+
+        /**
+         * Whether both records have the same scan results, from the same scan.
+         */
+        boolean sameResultsAs(Record other) {
+            if (results.size() != other.results.size()) {
+                return false;
+            }
+            for (int i=0; i<results.size(); i++) {
+                final ScanResult result = results.get(i);
+                final ScanResult otherResult = other.results.get(i);
+                if (result.timestamp != otherResult.timestamp
+                        || !TextUtils.equals(result.BSSID, otherResult.BSSID)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The changes of the access points since the last update.
+     */
+    static final class Diff {
+        final ArrayList<Record> added = new ArrayList<Record>();
+        final ArrayList<Record> changed = new ArrayList<Record>();
+        // Only their scan results changed, they show the same
+        final ArrayList<Record> refreshed = new ArrayList<Record>();
+        final ArrayList<String> removed = new ArrayList<String>();
+        boolean savedNetworksExist;
+        // Whether this update follows new scan results
+        final boolean scanned;
+        // Whether an access point was added or removed, or changed its configuration or
+        // signal level.  The verbose updates also report unchanged access points.
+        boolean significant;
+
+        private final int mGeneration;
+
+        Diff(int generation, boolean scanned) {
+            mGeneration = generation;
+            this.scanned = scanned;
+        }
+
+        boolean isEmpty() {
+            return added.isEmpty() && changed.isEmpty() && refreshed.isEmpty()
+                    && removed.isEmpty();
+        }
+    }
+
+    private static final int MSG_UPDATE = 1;
+    private static final int MSG_UPDATE_SCANNED = 2;
+    private static final int MSG_RESET = 3;
+
+    private final WifiManager mWifiManager;
+    private final HandlerThread mThread;
+    private final BackgroundHandler mBackgroundHandler;
+    private final Handler mMainHandler = new Handler();
+    private Callback mCallback;
+
+    // Main thread only
+    private final HashMap<String, AccessPoint> mAccessPoints = new HashMap<String, AccessPoint>();
+    private int mGeneration;
+
+    AccessPointRegistry(WifiManager wifiManager, Callback callback) {
+        mWifiManager = wifiManager;
+        mCallback = callback;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+    }
+
+    /**
+     * Read the configured networks and scan results again, and report the changes to the
+     * callback.  Pending requests are merged.
+     *
+     * @param scanned whether new scan results are available.  The update is then reported
+     *        even if nothing changed, so that the scans can be scheduled.
+     */
+    void requestUpdate(boolean verbose, boolean scanned) {
+        if (mBackgroundHandler.hasMessages(MSG_UPDATE_SCANNED)) {
+            scanned = true;
+        }
+        mBackgroundHandler.removeMessages(MSG_UPDATE);
+        mBackgroundHandler.removeMessages(MSG_UPDATE_SCANNED);
+        mBackgroundHandler.obtainMessage(scanned ? MSG_UPDATE_SCANNED : MSG_UPDATE,
+                mGeneration, verbose ? 1 : 0).sendToTarget();
+    }
+
+    /**
+     * Forget all the access points, when the list is cleared.  The next update reports them
+     * all as added, and the updates requested before are dropped.
+     */
+    void reset() {
+        mGeneration++;
+        mAccessPoints.clear();
+        mBackgroundHandler.removeMessages(MSG_UPDATE);
+        mBackgroundHandler.removeMessages(MSG_UPDATE_SCANNED);
+        mBackgroundHandler.sendEmptyMessage(MSG_RESET);
+    }
+
+    void release() {
+        mCallback = null;
+        mThread.quit();
+    }
+
+    AccessPoint get(String key) {
+        return mAccessPoints.get(key);
+    }
+
+    void put(String key, AccessPoint accessPoint) {
+        mAccessPoints.put(key, accessPoint);
+    }
+
+    AccessPoint remove(String key) {
+        return mAccessPoints.remove(key);
+    }
+
+    Collection<AccessPoint> getAccessPoints() {
+        return mAccessPoints.values();
+    }
+
+    int size() {
+        return mAccessPoints.size();
+    }
+
+    private void dispatchDiff(final Diff diff) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null && diff.mGeneration == mGeneration) {
+                    mCallback.onAccessPointsChanged(diff);
+                }
+            }
+        });
+    }
+
+    private class BackgroundHandler extends Handler {
+        // The records of the last update
+        private HashMap<String, Record> mRecords = new HashMap<String, Record>();
+        private boolean mSavedNetworksExist;
+        // Whether the next update is reported even if nothing changed, after a reset
+        private boolean mReportNext = true;
+
+        BackgroundHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_UPDATE:
+                case MSG_UPDATE_SCANNED: {
+                    final Diff diff = update(msg.arg1, msg.arg2 != 0,
+                            msg.what == MSG_UPDATE_SCANNED);
+                    if (mReportNext || diff.scanned || !diff.isEmpty()
+                            || diff.savedNetworksExist != mSavedNetworksExist) {
+                        mReportNext = false;
+                        mSavedNetworksExist = diff.savedNetworksExist;
+                        dispatchDiff(diff);
+                    }
+                } break;
+                case MSG_RESET: {
+                    mRecords.clear();
+                    mReportNext = true;
+                } break;
+            }
+        }
+
+        private Diff update(int generation, boolean verbose, boolean scanned) {
+            final LinkedHashMap<String, Record> records = new LinkedHashMap<String, Record>();
+            final Diff diff = new Diff(generation, scanned);
+            diff.savedNetworksExist = mSavedNetworksExist;
+
+            final List<WifiConfiguration> configs = mWifiManager.getConfiguredNetworks();
+            if (configs != null) {
+                diff.savedNetworksExist = configs.size() > 0;
+                for (int i=0; i<configs.size(); i++) {
+                    final WifiConfiguration config = configs.get(i);
+                    if (config.selfAdded && config.numAssociation == 0) {
+                        continue;
+                    }
+                    String key = getKey(config.SSID == null ? ""
+                            : AccessPoint.removeDoubleQuotes(config.SSID),
+                            AccessPoint.getSecurity(config));
+                    if (records.containsKey(key)) {
+                        // Duplicate configuration, shown separately
+                        key = key + "," + config.networkId;
+                    }
+                    records.put(key, new Record(key, config));
+                }
+            }
+
+            final List<ScanResult> results = mWifiManager.getScanResults();
+            if (results != null) {
+                for (int i=0; i<results.size(); i++) {
+                    final ScanResult result = results.get(i);
+                    // Ignore hidden and ad-hoc networks.
+                    if (result.SSID == null || result.SSID.length() == 0 ||
+                            result.capabilities.contains("[IBSS]")) {
+                        continue;
+                    }
+                    final String key = getKey(result.SSID, AccessPoint.getSecurity(result));
+                    Record record = records.get(key);
+                    if (record == null) {
+                        record = new Record(key, null);
+                        records.put(key, record);
+                    }
+                    record.addResult(result);
+                }
+            }
+
+            for (Record record : records.values()) {
+                final Record old = mRecords.remove(record.key);
+                if (old == null) {
+                    diff.added.add(record);
+                } else if (!record.sameAs(old)) {
+                    diff.changed.add(record);
+                    diff.significant = true;
+                } else if (verbose) {
+                    // The verbose summary shows the age of the results, always refresh it
+                    diff.changed.add(record);
+                } else if (!record.sameResultsAs(old)) {
+                    // Keep the BSSID, scan result and seen time of the access point current
+                    diff.refreshed.add(record);
+                }
+            }
+            diff.removed.addAll(mRecords.keySet());
+            diff.significant |= !diff.added.isEmpty() || !diff.removed.isEmpty();
+            mRecords = records;
+            return diff;
+        }
+    }
+
+    private static String getKey(String ssid, int security) {
+        return ssid + "," + security;
+    }
+
+    private static byte[] marshall(WifiConfiguration config) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            config.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -43,6 +43,7 @@ import android.nfc.NfcAdapter;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.preference.Preference;
 import android.preference.PreferenceScreen;
@@ -64,10 +65,13 @@ import com.android.settings.search.BaseSearchIndexProvider;
 import com.android.settings.search.Indexable;
 import com.android.settings.search.SearchIndexableRaw;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -80,7 +84,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * and menus.
  */
 public class WifiSettings extends RestrictedSettingsFragment
-        implements DialogInterface.OnClickListener, Indexable  {
+        implements DialogInterface.OnClickListener, Indexable, AccessPointRegistry.Callback {
 
     private static final String TAG = "WifiSettings";
 
@@ -102,6 +106,10 @@ public class WifiSettings extends RestrictedSettingsFragment
 
     // Combo scans can take 5-6s to complete - set to 10s.
     private static final int WIFI_RESCAN_INTERVAL_MS = 10 * 1000;
+    // Longest interval between scans when the results do not change.
+    private static final int WIFI_RESCAN_MAX_INTERVAL_MS = 60 * 1000;
+    // Scans without change before the interval is doubled.
+    private static final int WIFI_RESCAN_QUIET_SCANS = 2;
 
     // Instance state keys
     private static final String SAVE_DIALOG_EDIT_MODE = "edit_mode";
@@ -119,6 +127,8 @@ public class WifiSettings extends RestrictedSettingsFragment
     private WifiManager.ActionListener mForgetListener;
 
     private WifiEnabler mWifiEnabler;
+    // The access points, updated in place on every scan
+    private AccessPointRegistry mRegistry;
     // An access point being editted is stored here.
     private AccessPoint mSelectedAccessPoint;
 
@@ -142,6 +152,9 @@ public class WifiSettings extends RestrictedSettingsFragment
     // should Next button only be enabled when we have a connection?
     private boolean mEnableNextOnConnection;
 
+    // SSID of the network to open the connect dialog on, once the access points are loaded
+    private String mStartConnectSsid;
+
     // Save the dialog details
     private boolean mDlgEdit;
     private AccessPoint mDlgAccessPoint;
@@ -172,10 +185,33 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
     }
 
+    /**
+     * Schedules the scans while the list is shown.  Scans start every
+     * {@link #WIFI_RESCAN_INTERVAL_MS}; once a few scans in a row have not changed the access
+     * points or their signal levels, the interval is doubled after each such scan, up to
+     * {@link #WIFI_RESCAN_MAX_INTERVAL_MS}.  A changed scan, a refresh requested by the user
+     * or a connectivity change brings it back to the shortest interval.
+     */
     private static class Scanner extends Handler {
         private int mRetry = 0;
         private WifiSettings mWifiSettings = null;
 
+        // Scans in a row whose results did not change the list
+        private int mQuietScans = 0;
+        private long mInterval = WIFI_RESCAN_INTERVAL_MS;
+        // Uptime of the last scan started, 0 if none
+        private long mLastScanTime = 0;
+
+        // Stats, printed by dump()
+        private int mScanCount;
+        private int mFailedScanCount;
+        private int mForcedScanCount;
+        private int mChangedResultCount;
+        private int mQuietResultCount;
+        private int mIntervalCount;
+        private long mTotalInterval;
+        private long mMaxInterval;
+
         Scanner(WifiSettings wifiSettings) {
             mWifiSettings = wifiSettings;
         }
@@ -187,28 +223,95 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
 
         void forceScan() {
+            mForcedScanCount++;
+            mQuietScans = 0;
+            mInterval = WIFI_RESCAN_INTERVAL_MS;
             removeMessages(0);
             sendEmptyMessage(0);
         }
 
         void pause() {
             mRetry = 0;
+            mLastScanTime = 0;
             removeMessages(0);
         }
 
+        /**
+         * Called when the results of a scan were applied to the list.
+         *
+         * @param changed whether the access points or their signal levels changed.
+         */
+        void onScanResults(boolean changed) {
+            if (changed) {
+                mChangedResultCount++;
+                mQuietScans = 0;
+            } else {
+                mQuietResultCount++;
+                mQuietScans++;
+            }
+            updateInterval();
+        }
+
+        /**
+         * Called when the connection changed, the list is likely to change soon.
+         */
+        void onConnectivityChanged() {
+            mQuietScans = 0;
+            updateInterval();
+        }
+
+        private void updateInterval() {
+            final int doublings = mQuietScans - WIFI_RESCAN_QUIET_SCANS + 1;
+            long interval = WIFI_RESCAN_INTERVAL_MS;
+            if (doublings > 0) {
+                interval = Math.min((long) WIFI_RESCAN_INTERVAL_MS << Math.min(doublings, 8),
+                        WIFI_RESCAN_MAX_INTERVAL_MS);
+            }
+            if (interval != mInterval) {
+                mInterval = interval;
+                // Move the pending scan, if the scans were not paused meanwhile
+                if (mLastScanTime != 0 && hasMessages(0)) {
+                    removeMessages(0);
+                    sendEmptyMessageAtTime(0, mLastScanTime + mInterval);
+                }
+            }
+        }
+
         @Override
         public void handleMessage(Message message) {
+            final long now = SystemClock.uptimeMillis();
             if (mWifiSettings.mWifiManager.startScan()) {
                 mRetry = 0;
+                if (mLastScanTime != 0) {
+                    mIntervalCount++;
+                    mTotalInterval += now - mLastScanTime;
+                    mMaxInterval = Math.max(mMaxInterval, now - mLastScanTime);
+                }
+                mScanCount++;
+                mLastScanTime = now;
             } else if (++mRetry >= 3) {
+                mFailedScanCount++;
                 mRetry = 0;
+                mLastScanTime = 0;
                 Activity activity = mWifiSettings.getActivity();
                 if (activity != null) {
                     Toast.makeText(activity, R.string.wifi_fail_to_scan, Toast.LENGTH_LONG).show();
                 }
                 return;
+            } else {
+                mFailedScanCount++;
             }
-            sendEmptyMessageDelayed(0, WIFI_RESCAN_INTERVAL_MS);
+            sendEmptyMessageDelayed(0, mInterval);
+        }
+
+        void dump(String prefix, PrintWriter writer) {
+            writer.println(prefix + "Scans: " + mScanCount + " failed=" + mFailedScanCount
+                    + " forced=" + mForcedScanCount);
+            writer.println(prefix + "Results: changed=" + mChangedResultCount
+                    + " quiet=" + mQuietResultCount + " quietInRow=" + mQuietScans);
+            writer.println(prefix + "Interval (ms): current=" + mInterval
+                    + " avg=" + (mIntervalCount > 0 ? mTotalInterval / mIntervalCount : 0)
+                    + " max=" + mMaxInterval);
         }
     }
 
@@ -239,6 +342,7 @@ public class WifiSettings extends RestrictedSettingsFragment
         super.onActivityCreated(savedInstanceState);
 
         mWifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
+        mRegistry = new AccessPointRegistry(mWifiManager, this);
 
         mConnectListener = new WifiManager.ActionListener() {
                                    @Override
@@ -317,20 +421,9 @@ public class WifiSettings extends RestrictedSettingsFragment
         setHasOptionsMenu(true);
 
         if (intent.hasExtra(EXTRA_START_CONNECT_SSID)) {
-            String ssid = intent.getStringExtra(EXTRA_START_CONNECT_SSID);
+            // The dialog is opened by onAccessPointsChanged()
+            mStartConnectSsid = intent.getStringExtra(EXTRA_START_CONNECT_SSID);
             updateAccessPoints();
-            PreferenceScreen preferenceScreen = getPreferenceScreen();
-            for (int i = 0; i < preferenceScreen.getPreferenceCount(); i++) {
-                Preference preference = preferenceScreen.getPreference(i);
-                if (preference instanceof AccessPoint) {
-                    AccessPoint accessPoint = (AccessPoint) preference;
-                    if (ssid.equals(accessPoint.ssid) && accessPoint.networkId == -1
-                            && accessPoint.security != AccessPoint.SECURITY_NONE) {
-                        onPreferenceTreeClick(preferenceScreen, preference);
-                        break;
-                    }
-                }
-            }
         }
     }
 
@@ -343,6 +436,15 @@ public class WifiSettings extends RestrictedSettingsFragment
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        if (mRegistry != null) {
+            mRegistry.release();
+        }
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -382,6 +484,12 @@ public class WifiSettings extends RestrictedSettingsFragment
         mScanner.pause();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        mScanner.dump(prefix, writer);
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         // If the user is not allowed to configure wifi, do not show the menu.
@@ -638,6 +746,13 @@ public class WifiSettings extends RestrictedSettingsFragment
      * the strength of network and the security for it.
      */
     private void updateAccessPoints() {
+        updateAccessPoints(false);
+    }
+
+    /**
+     * @param scanned whether new scan results are available, to schedule the next scans.
+     */
+    private void updateAccessPoints(boolean scanned) {
         // Safeguard from some delayed event handling
         if (getActivity() == null) return;
 
@@ -652,25 +767,12 @@ public class WifiSettings extends RestrictedSettingsFragment
 
         switch (wifiState) {
             case WifiManager.WIFI_STATE_ENABLED:
-                // AccessPoints are automatically sorted with TreeSet.
-                final Collection<AccessPoint> accessPoints =
-                        constructAccessPoints(getActivity(), mWifiManager, mLastInfo,
-                                mLastNetworkInfo);
-                getPreferenceScreen().removeAll();
-                if (accessPoints.size() == 0) {
-                    addMessagePreference(R.string.wifi_empty_list_wifi_on);
-                }
-
-                for (AccessPoint accessPoint : accessPoints) {
-                    // Ignore access points that are out of range.
-                    if (accessPoint.getLevel() != -1) {
-                        getPreferenceScreen().addPreference(accessPoint);
-                    }
-                }
+                // The changes are applied by onAccessPointsChanged()
+                mRegistry.requestUpdate(mVerboseLogging > 0, scanned);
                 break;
 
             case WifiManager.WIFI_STATE_ENABLING:
-                getPreferenceScreen().removeAll();
+                removeAccessPoints();
                 break;
 
             case WifiManager.WIFI_STATE_DISABLING:
@@ -706,15 +808,153 @@ public class WifiSettings extends RestrictedSettingsFragment
                 mEmptyView.append(charSeq);
             }
         }
-        getPreferenceScreen().removeAll();
+        removeAccessPoints();
     }
 
     private void addMessagePreference(int messageId) {
         if (mEmptyView != null) mEmptyView.setText(messageId);
+        removeAccessPoints();
+    }
+
+    private void removeAccessPoints() {
+        mRegistry.reset();
         getPreferenceScreen().removeAll();
     }
 
-    /** Returns sorted list of access points */
+    @Override
+    public void onAccessPointsChanged(AccessPointRegistry.Diff diff) {
+        final Activity activity = getActivity();
+        // Safeguard from some delayed event handling
+        if (activity == null) return;
+
+        if (diff.scanned) {
+            mScanner.onScanResults(diff.significant);
+        }
+
+        // Update "Saved Networks" menu option.
+        if (savedNetworksExist != diff.savedNetworksExist) {
+            savedNetworksExist = diff.savedNetworksExist;
+            activity.invalidateOptionsMenu();
+        }
+
+        final PreferenceScreen screen = getPreferenceScreen();
+        for (int i = 0; i < diff.removed.size(); i++) {
+            final AccessPoint accessPoint = mRegistry.remove(diff.removed.get(i));
+            if (accessPoint != null) {
+                screen.removePreference(accessPoint);
+            }
+        }
+        for (int i = 0; i < diff.changed.size(); i++) {
+            final AccessPointRegistry.Record record = diff.changed.get(i);
+            final AccessPoint accessPoint = mRegistry.get(record.key);
+            if (accessPoint != null) {
+                accessPoint.update(record.config, record.results);
+            }
+        }
+        for (int i = 0; i < diff.refreshed.size(); i++) {
+            final AccessPointRegistry.Record record = diff.refreshed.get(i);
+            final AccessPoint accessPoint = mRegistry.get(record.key);
+            if (accessPoint != null) {
+                accessPoint.updateScanResults(record.results);
+            }
+        }
+        for (int i = 0; i < diff.added.size(); i++) {
+            final AccessPointRegistry.Record record = diff.added.get(i);
+            final AccessPoint accessPoint =
+                    new AccessPoint(activity, record.config, record.results);
+            accessPoint.setKey(record.key);
+            accessPoint.setPersistent(false);
+            if (mLastInfo != null && mLastNetworkInfo != null) {
+                accessPoint.update(mLastInfo, mLastNetworkInfo);
+            }
+            mRegistry.put(record.key, accessPoint);
+        }
+        sortAccessPoints();
+
+        if (mRegistry.size() == 0 && mEmptyView != null) {
+            mEmptyView.setText(R.string.wifi_empty_list_wifi_on);
+        }
+
+        if (mStartConnectSsid != null) {
+            final String ssid = mStartConnectSsid;
+            mStartConnectSsid = null;
+            for (int i = 0; i < screen.getPreferenceCount(); i++) {
+                Preference preference = screen.getPreference(i);
+                if (preference instanceof AccessPoint) {
+                    AccessPoint accessPoint = (AccessPoint) preference;
+                    if (ssid.equals(accessPoint.ssid) && accessPoint.networkId == -1
+                            && accessPoint.security != AccessPoint.SECURITY_NONE) {
+                        onPreferenceTreeClick(screen, preference);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts the shown access points back in order after they were updated in place, and shows
+     * or hides the ones coming in or going out of range.  The longest run of access points
+     * still in order is left alone; only the others are removed and inserted again at their
+     * new position, so a scan only touches the preferences which moved.
+     */
+    private void sortAccessPoints() {
+        final PreferenceScreen screen = getPreferenceScreen();
+        final int count = screen.getPreferenceCount();
+        final AccessPoint[] shown = new AccessPoint[count];
+        int shownCount = 0;
+        for (int i = 0; i < count; i++) {
+            final Preference preference = screen.getPreference(i);
+            if (preference instanceof AccessPoint) {
+                shown[shownCount++] = (AccessPoint) preference;
+            }
+        }
+
+        // Longest non decreasing subsequence: tails[n] is the index of the smallest last
+        // access point of the runs of length n + 1, previous[] links the runs.
+        final int[] tails = new int[shownCount];
+        final int[] previous = new int[shownCount];
+        int length = 0;
+        for (int i = 0; i < shownCount; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (shown[tails[mid]].compareTo(shown[i]) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        final boolean[] inOrder = new boolean[shownCount];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            inOrder[i] = true;
+        }
+
+        final HashSet<String> keep = new HashSet<String>();
+        for (int i = 0; i < shownCount; i++) {
+            final AccessPoint accessPoint = shown[i];
+            if (inOrder[i] && accessPoint.getLevel() != -1) {
+                keep.add(accessPoint.getKey());
+            } else {
+                screen.removePreference(accessPoint);
+            }
+        }
+        for (AccessPoint accessPoint : mRegistry.getAccessPoints()) {
+            // Ignore access points that are out of range.
+            if (accessPoint.getLevel() != -1 && !keep.contains(accessPoint.getKey())) {
+                screen.addPreference(accessPoint);
+            }
+        }
+    }
+
+    /** Returns sorted list of access points, built from scratch for the search index */
     private static List<AccessPoint> constructAccessPoints(Context context,
             WifiManager wifiManager, WifiInfo lastInfo, NetworkInfo lastNetworkInfo) {
         ArrayList<AccessPoint> accessPoints = new ArrayList<AccessPoint>();
@@ -779,8 +1019,9 @@ public class WifiSettings extends RestrictedSettingsFragment
         if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
             updateWifiState(intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE,
                     WifiManager.WIFI_STATE_UNKNOWN));
-        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action) ||
-                WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
+        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
+            updateAccessPoints(true);
+        } else if (WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action) ||
                 WifiManager.LINK_CONFIGURATION_CHANGED_ACTION.equals(action)) {
                 updateAccessPoints();
         } else if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action)) {
@@ -788,6 +1029,10 @@ public class WifiSettings extends RestrictedSettingsFragment
                     WifiManager.EXTRA_NETWORK_INFO);
             mConnected.set(info.isConnected());
             changeNextButtonState(info.isConnected());
+            if (mLastNetworkInfo == null
+                    || mLastNetworkInfo.getDetailedState() != info.getDetailedState()) {
+                mScanner.onConnectivityChanged();
+            }
             updateAccessPoints();
             updateNetworkInfo(info);
         } else if (WifiManager.RSSI_CHANGED_ACTION.equals(action)) {
@@ -814,14 +1059,11 @@ public class WifiSettings extends RestrictedSettingsFragment
             mLastNetworkInfo = networkInfo;
         }
 
-        for (int i = getPreferenceScreen().getPreferenceCount() - 1; i >= 0; --i) {
-            // Maybe there's a WifiConfigPreference
-            Preference preference = getPreferenceScreen().getPreference(i);
-            if (preference instanceof AccessPoint) {
-                final AccessPoint accessPoint = (AccessPoint) preference;
-                accessPoint.update(mLastInfo, mLastNetworkInfo);
-            }
+        for (AccessPoint accessPoint : mRegistry.getAccessPoints()) {
+            accessPoint.update(mLastInfo, mLastNetworkInfo);
         }
+        // The active access point goes first
+        sortAccessPoints();
     }
 
     private void updateWifiState(int state) {
@@ -940,7 +1182,7 @@ public class WifiSettings extends RestrictedSettingsFragment
             mScanner.resume();
         }
 
-        getPreferenceScreen().removeAll();
+        removeAccessPoints();
     }
 
     /**
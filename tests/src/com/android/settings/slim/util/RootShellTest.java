@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 The SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.slim.util;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests of {@link RootShell}, run against a plain shell rather than su.
+ */
+public class RootShellTest extends AndroidTestCase {
+
+    private RootShell mShell;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mShell = new RootShell("sh");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mShell.close();
+        super.tearDown();
+    }
+
+    public void testExitCodeAndStreams() throws Exception {
+        RootShell.Result result = mShell.submit("echo out; echo err >&2; sh -c 'exit 3'").get();
+        assertEquals(3, result.exitCode);
+        assertEquals(1, result.stdout.size());
+        assertEquals("out", result.stdout.get(0));
+        assertEquals(1, result.stderr.size());
+        assertEquals("err", result.stderr.get(0));
+    }
+
+    public void testOutputWithoutNewLine() throws Exception {
+        RootShell.Result result = mShell.submit("printf abc").get();
+        assertEquals(0, result.exitCode);
+        assertEquals("abc", result.getOutput());
+    }
+
+    public void testPipelinedCommands() throws Exception {
+        List<RootShell.Command> commands = new ArrayList<RootShell.Command>();
+        for (int i = 0; i < 50; i++) {
+            commands.add(mShell.submit("echo " + i));
+        }
+        for (int i = 0; i < commands.size(); i++) {
+            assertEquals(String.valueOf(i), commands.get(i).get().getOutput());
+        }
+    }
+
+    public void testShellStateIsKept() throws Exception {
+        mShell.submit("FOO=bar");
+        assertEquals("bar", mShell.submit("echo $FOO").get().getOutput());
+    }
+
+    public void testListener() throws Exception {
+        final int[] lines = new int[2];
+        RootShell.Result result = mShell.submit(
+                "i=0; while [ $i -lt 1000 ]; do echo $i; echo $i >&2; i=$((i+1)); done", 0,
+                new RootShell.OutputListener() {
+                    @Override
+                    public void onStdout(String line) {
+                        lines[0]++;
+                    }
+
+                    @Override
+                    public void onStderr(String line) {
+                        lines[1]++;
+                    }
+                }).get();
+        assertNull(result.stdout);
+        assertNull(result.stderr);
+        assertEquals(1000, lines[0]);
+        assertEquals(1000, lines[1]);
+    }
+
+    public void testTimeout() throws Exception {
+        RootShell.Command slow = mShell.submit("sleep 10", 200, null);
+        RootShell.Command next = mShell.submit("echo next");
+        try {
+            slow.get();
+            fail("Expected a timeout");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // Sent again to a new shell
+        assertEquals("next", next.get().getOutput());
+    }
+
+    public void testCancel() throws Exception {
+        RootShell.Command slow = mShell.submit("sleep 10");
+        RootShell.Command next = mShell.submit("echo next");
+        assertTrue(slow.cancel(true));
+        assertTrue(slow.isCancelled());
+        try {
+            slow.get();
+            fail("Expected a cancellation");
+        } catch (CancellationException e) {
+        }
+        assertEquals("next", next.get().getOutput());
+    }
+}